@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.BatchMessageCallback;
+
+/**
+ * Implements the {@link BatchMessageCallback} interface and provides a convenience implementation
+ * of the {@link #getMessageClass()} method.
+ */
+public abstract class AbstractBatchMessageCallback<T> implements BatchMessageCallback<T> {
+
+  @Override
+  public Class<T> getMessageClass() {
+    return (Class<T>)
+        AbstractMessageCallback.messageClassOf(getClass(), AbstractBatchMessageCallback.class);
+  }
+}
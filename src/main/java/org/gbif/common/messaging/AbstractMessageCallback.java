@@ -28,18 +28,23 @@ public abstract class AbstractMessageCallback<T> implements MessageCallback<T> {
   // http://stackoverflow.com/questions/182636/how-to-determine-the-class-of-a-generic-type
   @Override
   public Class<T> getMessageClass() {
-    Class<?> superClass = getClass(); // initial value
+    return (Class<T>) messageClassOf(getClass(), AbstractMessageCallback.class);
+  }
+
+  /** @return the class of the type argument given to the abstract callback by the subclass */
+  static Class<?> messageClassOf(Class<?> subclass, Class<?> abstractCallback) {
+    Class<?> superClass = subclass; // initial value
     Type superType;
     do {
       superType = superClass.getGenericSuperclass();
       superClass = extractClassFromType(superType);
-    } while (!superClass.equals(AbstractMessageCallback.class));
+    } while (!superClass.equals(abstractCallback));
 
     Type actualArg = ((ParameterizedType) superType).getActualTypeArguments()[0];
-    return (Class<T>) extractClassFromType(actualArg);
+    return extractClassFromType(actualArg);
   }
 
-  private Class<?> extractClassFromType(Type t) throws ClassCastException {
+  private static Class<?> extractClassFromType(Type t) throws ClassCastException {
     if (t instanceof Class<?>) {
       return (Class<?>) t;
     }
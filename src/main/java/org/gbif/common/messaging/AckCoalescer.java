@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Collects the acks of a channel and sends them as one multiple ack every so many acks, and when
+ * {@link #flush() flushed} periodically, instead of one ack per delivery.
+ *
+ * <p>Callbacks can finish out of order, so it tracks the watermark below which every delivery
+ * has been settled and only acks up to there. Nacks and rejects are sent right away by the
+ * consumer and reported here so the watermark can pass them; a multiple ack never names a tag
+ * which was settled already, as the broker would close the channel for an unknown tag.
+ */
+@ThreadSafe
+class AckCoalescer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AckCoalescer.class);
+
+  private final Channel channel;
+  private final int maxPendingAcks;
+  private final Lock lock = new ReentrantLock();
+
+  /** Every delivery up to this tag has been settled or is waiting to be acked. */
+  @GuardedBy("lock")
+  private long watermark;
+
+  /** The highest tag up to which acks are waiting to be sent. */
+  @GuardedBy("lock")
+  private long ackTarget;
+
+  @GuardedBy("lock")
+  private int pendingAcks;
+
+  /** Deliveries finished above the watermark, whether they are to be acked by tag. */
+  @GuardedBy("lock")
+  private final TreeMap<Long, Boolean> finishedAhead = new TreeMap<>();
+
+  /**
+   * @param maxPendingAcks acks below the watermark which trigger sending them
+   */
+  AckCoalescer(Channel channel, int maxPendingAcks) {
+    this.channel = Objects.requireNonNull(channel, "channel can't be null");
+    this.maxPendingAcks = maxPendingAcks;
+  }
+
+  /** Acks the delivery, now or with a later multiple ack. */
+  void ack(long deliveryTag) throws IOException {
+    lock.lock();
+    try {
+      finished(deliveryTag, true);
+      if (pendingAcks >= maxPendingAcks) {
+        send();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Records a delivery which was nacked or rejected, and so is settled already. */
+  void settled(long deliveryTag) {
+    lock.lock();
+    try {
+      finished(deliveryTag, false);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Sends the acks waiting below the watermark. */
+  void flush() {
+    lock.lock();
+    try {
+      if (pendingAcks > 0 && channel.isOpen()) {
+        send();
+      }
+    } catch (IOException e) {
+      LOG.warn("Failure acknowledging messages up to [{}]", ackTarget, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sends the acks waiting below the watermark, and the ones above it one by one, for when the
+   * deliveries in between won't be settled here, e.g. when they are requeued by draining.
+   */
+  void flushAll() {
+    lock.lock();
+    try {
+      if (!channel.isOpen()) {
+        return;
+      }
+      if (pendingAcks > 0) {
+        send();
+      }
+      for (Map.Entry<Long, Boolean> ahead : finishedAhead.entrySet()) {
+        if (ahead.getValue()) {
+          channel.basicAck(ahead.getKey(), false);
+          // still lets the watermark pass it, without acking it again
+          ahead.setValue(false);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failure acknowledging messages above [{}]", watermark, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** @return the number of acks waiting to be sent */
+  int getPendingAcks() {
+    lock.lock();
+    try {
+      return pendingAcks + (int) finishedAhead.values().stream().filter(ack -> ack).count();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @GuardedBy("lock")
+  private void finished(long deliveryTag, boolean ack) {
+    if (deliveryTag != watermark + 1) {
+      finishedAhead.put(deliveryTag, ack);
+      return;
+    }
+    advance(deliveryTag, ack);
+    Map.Entry<Long, Boolean> next;
+    while ((next = finishedAhead.firstEntry()) != null && next.getKey() == watermark + 1) {
+      finishedAhead.pollFirstEntry();
+      advance(next.getKey(), next.getValue());
+    }
+  }
+
+  @GuardedBy("lock")
+  private void advance(long deliveryTag, boolean ack) {
+    watermark = deliveryTag;
+    if (ack) {
+      ackTarget = deliveryTag;
+      pendingAcks++;
+    }
+  }
+
+  @GuardedBy("lock")
+  private void send() throws IOException {
+    channel.basicAck(ackTarget, true);
+    pendingAcks = 0;
+  }
+}
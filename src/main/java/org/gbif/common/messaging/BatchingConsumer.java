@@ -0,0 +1,320 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.BatchMessageCallback;
+import org.gbif.common.messaging.api.PartialBatchFailureException;
+import org.gbif.common.messaging.codec.MessageCodecs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * The consumer used by {@link MessageListener} for {@link BatchMessageCallback batch callbacks}.
+ * It collects deserialized messages until the batch is full or the first message of the batch has
+ * waited for the maximum linger time, then hands the batch to the callback and acknowledges it
+ * with a single multiple ack.
+ *
+ * <p>A multiple ack settles every outstanding delivery of the channel up to its tag, so batches
+ * are processed one at a time and in delivery order, and every consumer needs a channel of its
+ * own. Messages which can't be deserialized are rejected right away.
+ *
+ * @param <T> type of message to handle
+ */
+@ThreadSafe
+class BatchingConsumer<T> extends DefaultConsumer implements StoppableConsumer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BatchingConsumer.class);
+
+  private final MessageDecoder<T> decoder;
+  private final BatchMessageCallback<T> callback;
+  private final int maxBatchSize;
+  private final long maxLingerMs;
+  private final ScheduledExecutorService scheduler;
+  private final Executor flusher;
+  private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+  private final LongAdder handled = new LongAdder();
+  private final Supplier<Predicate<MessageHeaders>> filter;
+  private volatile boolean draining;
+
+  /** Held while a batch is taken, processed and settled. */
+  private final Lock flushLock = new ReentrantLock();
+
+  private final Lock batchLock = new ReentrantLock();
+
+  @GuardedBy("batchLock")
+  private List<Delivery<T>> batch;
+
+  /**
+   * @param scheduler timing batches which weren't filled within the linger time
+   * @param flusher flushing the batches which lingered, off the thread of the scheduler
+   */
+  BatchingConsumer(
+      Channel channel,
+      MessageCodecs codecs,
+      BatchMessageCallback<T> callback,
+      int maxBatchSize,
+      long maxLingerMs,
+      ScheduledExecutorService scheduler,
+      Executor flusher) {
+    this(channel, codecs, callback, maxBatchSize, maxLingerMs, scheduler, flusher, null);
+  }
+
+  /**
+   * @param scheduler timing batches which weren't filled within the linger time
+   * @param flusher flushing the batches which lingered, off the thread of the scheduler
+   * @param filter supplying the filter of the queue, which supplies {@code null} while there is
+   *     none; {@code null} to never filter
+   */
+  BatchingConsumer(
+      Channel channel,
+      MessageCodecs codecs,
+      BatchMessageCallback<T> callback,
+      int maxBatchSize,
+      long maxLingerMs,
+      ScheduledExecutorService scheduler,
+      Executor flusher,
+      @Nullable Supplier<Predicate<MessageHeaders>> filter) {
+    super(channel);
+    Objects.requireNonNull(channel, "channel can't be null");
+    this.callback = Objects.requireNonNull(callback, "callback can't be null");
+    this.decoder = new MessageDecoder<>(callback.getMessageClass(), codecs);
+    this.maxBatchSize = maxBatchSize;
+    this.maxLingerMs = maxLingerMs;
+    this.scheduler = Objects.requireNonNull(scheduler, "scheduler can't be null");
+    this.flusher = Objects.requireNonNull(flusher, "flusher can't be null");
+    this.batch = new ArrayList<>(maxBatchSize);
+    this.filter = filter;
+  }
+
+  @Override
+  public void handleDelivery(
+      String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+      throws IOException {
+    if (draining) {
+      // left to be requeued, the multiple acks of the batch only reach below its tag
+      return;
+    }
+    if (!MessageHeaders.accept(filter, properties)) {
+      // acked on its own, multiple acks and nacks of batches only settle what is outstanding
+      getChannel().basicAck(envelope.getDeliveryTag(), false);
+      return;
+    }
+    T object = decoder.decode(envelope, properties, body);
+    if (object == null) {
+      getChannel().basicReject(envelope.getDeliveryTag(), false);
+      return;
+    }
+
+    List<Delivery<T>> full = null;
+    batchLock.lock();
+    try {
+      batch.add(new Delivery<>(envelope.getDeliveryTag(), object));
+      if (batch.size() >= maxBatchSize) {
+        full = batch;
+      } else if (batch.size() == 1) {
+        scheduleLinger(batch);
+      }
+    } finally {
+      batchLock.unlock();
+    }
+    if (full != null) {
+      flush(full);
+    }
+  }
+
+  /** Processes what was delivered before the consumer was cancelled, e.g. by pausing the queue. */
+  @Override
+  public void handleCancelOk(String consumerTag) {
+    flush(null);
+    stopped.complete(null);
+  }
+
+  /** The deliveries of a closed channel can't be acknowledged anymore, the broker requeues them. */
+  @Override
+  public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+    batchLock.lock();
+    try {
+      batch = new ArrayList<>(maxBatchSize);
+    } finally {
+      batchLock.unlock();
+    }
+    stopped.complete(null);
+  }
+
+  @Override
+  public CompletableFuture<Void> whenStopped() {
+    return stopped;
+  }
+
+  @Override
+  public void drain() {
+    draining = true;
+  }
+
+  @Override
+  public long getHandled() {
+    return handled.sum();
+  }
+
+  /**
+   * Flushes the batch once it lingered for too long. The scheduler is shared by all consumers of
+   * the queue, so it only times the batch and the callback runs on the flusher.
+   */
+  private void scheduleLinger(List<Delivery<T>> lingering) {
+    try {
+      scheduler.schedule(() -> flushLingering(lingering), maxLingerMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // the listener is closing, the channel is closed with it
+      LOG.debug("Couldn't schedule flushing the batch", e);
+    }
+  }
+
+  private void flushLingering(List<Delivery<T>> lingering) {
+    try {
+      flusher.execute(() -> flush(lingering));
+    } catch (RejectedExecutionException e) {
+      // the listener is closing, the channel is closed with it
+      LOG.debug("Couldn't flush the lingering batch", e);
+    }
+  }
+
+  /**
+   * Processes the current batch.
+   *
+   * @param expected the batch to process, if it was replaced in the meantime nothing is done;
+   *     {@code null} to process whatever is waiting
+   */
+  private void flush(@Nullable List<Delivery<T>> expected) {
+    flushLock.lock();
+    try {
+      List<Delivery<T>> taken;
+      batchLock.lock();
+      try {
+        if (batch.isEmpty() || (expected != null && batch != expected)) {
+          return;
+        }
+        taken = batch;
+        batch = new ArrayList<>(maxBatchSize);
+      } finally {
+        batchLock.unlock();
+      }
+      process(taken);
+      handled.add(taken.size());
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  @GuardedBy("flushLock")
+  private void process(List<Delivery<T>> deliveries) {
+    List<T> messages = new ArrayList<>(deliveries.size());
+    for (Delivery<T> delivery : deliveries) {
+      messages.add(delivery.message);
+    }
+    long lastTag = deliveries.get(deliveries.size() - 1).tag;
+
+    try {
+      callback.handleMessages(Collections.unmodifiableList(messages));
+    } catch (PartialBatchFailureException e) {
+      LOG.warn(
+          "Error handling {} of {} messages of type [{}]. Reject and send nacks",
+          e.getFailedIndexes().size(),
+          messages.size(),
+          callback.getMessageClass().getSimpleName(),
+          e);
+      settlePartially(deliveries, e.getFailedIndexes());
+      return;
+    } catch (Exception e) {
+      LOG.warn(
+          "Error handling batch of {} messages of type [{}]. Reject and send a nack",
+          messages.size(),
+          callback.getMessageClass().getSimpleName(),
+          e);
+      settle(lastTag, false);
+      return;
+    }
+    settle(lastTag, true);
+  }
+
+  /** Nacks the failed messages one by one and acks the others with a single multiple ack. */
+  private void settlePartially(List<Delivery<T>> deliveries, Set<Integer> failedIndexes) {
+    long lastSucceeded = -1;
+    for (int i = 0; i < deliveries.size(); i++) {
+      long tag = deliveries.get(i).tag;
+      if (!failedIndexes.contains(i)) {
+        lastSucceeded = tag;
+        continue;
+      }
+      try {
+        getChannel().basicNack(tag, false, false);
+      } catch (IOException e) {
+        LOG.warn("Failed to nack message [{}]", tag, e);
+      }
+    }
+    if (lastSucceeded >= 0) {
+      settle(lastSucceeded, true);
+    }
+  }
+
+  /** Acks or nacks all outstanding deliveries up to the tag. */
+  private void settle(long tag, boolean ack) {
+    try {
+      if (ack) {
+        getChannel().basicAck(tag, true);
+      } else {
+        getChannel().basicNack(tag, true, false);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to {} messages up to [{}]", ack ? "ack" : "nack", tag, e);
+    }
+  }
+
+  private static class Delivery<T> {
+    private final long tag;
+    private final T message;
+
+    private Delivery(long tag, T message) {
+      this.tag = tag;
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.PublisherConfiguration;
+import org.gbif.utils.PreconditionUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * A bounded pool of channels used by {@link DefaultMessagePublisher}.
+ *
+ * <p>At most {@link PublisherConfiguration#maxChannels} channels are open at any time. When all of
+ * them are in use, callers either wait for one to be returned or fail straight away, depending on
+ * {@link PublisherConfiguration#whenExhausted}. Idle channels are kept most-recently-used first so
+ * the same few channels stay warm, and channels that have been idle for longer than {@link
+ * PublisherConfiguration#channelIdleTimeoutMs} are closed whenever the pool is used, down to {@link
+ * PublisherConfiguration#minChannels}. With {@link PublisherConfiguration#channelAffinity} a thread
+ * is preferably given the channel it returned last.
+ *
+ * @param <C> the pooled type, either a plain {@link Channel} or a wrapper around one
+ */
+@ThreadSafe
+class ChannelPool<C> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChannelPool.class);
+
+  /** Creates the pooled channels. */
+  @FunctionalInterface
+  interface ChannelFactory<C> {
+    C create() throws IOException;
+  }
+
+  private static final class Idle<C> {
+    private final C channel;
+    private final long idleSince;
+
+    private Idle(C channel, long idleSince) {
+      this.channel = channel;
+      this.idleSince = idleSince;
+    }
+  }
+
+  private final String name;
+  private final ChannelFactory<C> factory;
+  private final Function<C, Channel> unwrap;
+  private final int minChannels;
+  private final int maxChannels;
+  private final long idleTimeoutNanos;
+  private final boolean affinity;
+  private final boolean blockWhenExhausted;
+  private final long maxBorrowWaitMs;
+
+  // One permit per channel that can be handed out
+  private final Semaphore permits;
+  private final AtomicInteger open = new AtomicInteger();
+  private final ConcurrentLinkedDeque<Idle<C>> idle = new ConcurrentLinkedDeque<>();
+  private final ThreadLocal<Idle<C>> lastReleased = new ThreadLocal<>();
+
+  private final LongAdder borrows = new LongAdder();
+  private final LongAdder borrowWaitNanos = new LongAdder();
+  private final LongAccumulator maxBorrowWaitNanos = new LongAccumulator(Math::max, 0);
+  private final LongAdder exhausted = new LongAdder();
+  private final LongAdder creations = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  ChannelPool(
+      String name,
+      PublisherConfiguration config,
+      ChannelFactory<C> factory,
+      Function<C, Channel> unwrap)
+      throws IOException {
+    Objects.requireNonNull(config, "config can't be null");
+    this.name = Objects.requireNonNull(name, "name can't be null");
+    this.factory = Objects.requireNonNull(factory, "factory can't be null");
+    this.unwrap = Objects.requireNonNull(unwrap, "unwrap can't be null");
+    PreconditionUtils.checkArgument(config.maxChannels >= 1, "maxChannels needs to be at least 1");
+    PreconditionUtils.checkArgument(
+        config.minChannels >= 0 && config.minChannels <= config.maxChannels,
+        "minChannels needs to be between 0 and maxChannels");
+    this.minChannels = config.minChannels;
+    this.maxChannels = config.maxChannels;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.channelIdleTimeoutMs);
+    this.affinity = config.channelAffinity;
+    this.blockWhenExhausted = config.whenExhausted == PublisherConfiguration.WhenExhausted.BLOCK;
+    this.maxBorrowWaitMs = config.maxBorrowWaitMs;
+    this.permits = new Semaphore(maxChannels);
+
+    for (int i = 0; i < minChannels; i++) {
+      open.incrementAndGet();
+      idle.addLast(new Idle<>(create(), System.nanoTime()));
+    }
+  }
+
+  /**
+   * Callers must return the channel using {@link #release(Object)}, or {@link #discard(Object)} if
+   * it is not usable anymore.
+   *
+   * @return an idle channel, or a new one if none is idle and the pool is not at its maximum size
+   * @throws IOException if no channel became available in time or a new one couldn't be created
+   */
+  C borrow() throws IOException {
+    long start = System.nanoTime();
+    acquirePermit();
+    try {
+      C channel = takeIdle();
+      while (channel == null) {
+        int current = open.get();
+        if (current < maxChannels) {
+          if (open.compareAndSet(current, current + 1)) {
+            channel = create();
+          }
+        } else {
+          // Another borrower is about to return its channel to the idle list
+          Thread.onSpinWait();
+          channel = takeIdle();
+        }
+      }
+      long waited = System.nanoTime() - start;
+      borrows.increment();
+      borrowWaitNanos.add(waited);
+      maxBorrowWaitNanos.accumulate(waited);
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a channel to the pool for reuse. Closed channels are discarded.
+   *
+   * @param channel To free up for another use
+   */
+  void release(C channel) {
+    if (unwrap.apply(channel).isOpen()) {
+      Idle<C> entry = new Idle<>(channel, System.nanoTime());
+      idle.addFirst(entry);
+      if (affinity) {
+        lastReleased.set(entry);
+      }
+      LOG.debug("Channel returned to the {} pool", name);
+    } else {
+      LOG.debug("Discarding {} channel since it is closed", name);
+      open.decrementAndGet();
+    }
+    permits.release();
+    evictIdle();
+  }
+
+  /**
+   * Closes a borrowed channel that is assumed to be broken and frees up its slot in the pool.
+   *
+   * @param channel To discard
+   */
+  void discard(C channel) {
+    closeQuietly(channel);
+    open.decrementAndGet();
+    permits.release();
+  }
+
+  /** Closes channels that have been idle for too long, keeping at least the minimum open. */
+  void evictIdle() {
+    long now = System.nanoTime();
+    Idle<C> oldest;
+    while ((oldest = idle.peekLast()) != null
+        && now - oldest.idleSince >= idleTimeoutNanos
+        && open.get() > minChannels) {
+      if (idle.removeLastOccurrence(oldest)) {
+        closeQuietly(oldest.channel);
+        open.decrementAndGet();
+        evictions.increment();
+        LOG.debug("Evicted idle {} channel", name);
+      }
+    }
+  }
+
+  /** @return the channels currently not in use */
+  List<C> idleChannels() {
+    List<C> channels = new ArrayList<>();
+    for (Idle<C> entry : idle) {
+      channels.add(entry.channel);
+    }
+    return channels;
+  }
+
+  ChannelPoolStats getStats() {
+    return new ChannelPoolStats(
+        open.get(),
+        idle.size(),
+        borrows.sum(),
+        borrowWaitNanos.sum(),
+        maxBorrowWaitNanos.get(),
+        exhausted.sum(),
+        creations.sum(),
+        evictions.sum());
+  }
+
+  private void acquirePermit() throws IOException {
+    if (permits.tryAcquire()) {
+      return;
+    }
+    exhausted.increment();
+    if (!blockWhenExhausted) {
+      throw new IOException("All " + maxChannels + " " + name + " channels are in use");
+    }
+    try {
+      if (!permits.tryAcquire(maxBorrowWaitMs, TimeUnit.MILLISECONDS)) {
+        throw new IOException(
+            "Timed out after " + maxBorrowWaitMs + "ms waiting for a " + name + " channel");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a " + name + " channel");
+    }
+  }
+
+  /** @return an open idle channel or null, preferring the channel this thread returned last */
+  private C takeIdle() {
+    if (affinity) {
+      Idle<C> last = lastReleased.get();
+      if (last != null && idle.removeFirstOccurrence(last)) {
+        if (unwrap.apply(last.channel).isOpen()) {
+          return last.channel;
+        }
+        open.decrementAndGet();
+      }
+    }
+    Idle<C> entry;
+    while ((entry = idle.pollFirst()) != null) {
+      if (unwrap.apply(entry.channel).isOpen()) {
+        return entry.channel;
+      }
+      open.decrementAndGet();
+    }
+    return null;
+  }
+
+  private C create() throws IOException {
+    try {
+      C channel = factory.create();
+      creations.increment();
+      LOG.debug("Created a new {} channel, {} open", name, open.get());
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      open.decrementAndGet();
+      throw e;
+    }
+  }
+
+  private void closeQuietly(C channel) {
+    Channel ch = unwrap.apply(channel);
+    if (ch.isOpen()) {
+      try {
+        ch.abort();
+      } catch (IOException | RuntimeException e) {
+        LOG.debug("Error closing {} channel", name, e);
+      }
+    }
+  }
+}
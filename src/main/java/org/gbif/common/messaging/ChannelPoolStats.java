@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A point in time snapshot of the counters of a publisher channel pool, meant to be exported to a
+ * metrics system to size the pool from data.
+ */
+@Immutable
+public final class ChannelPoolStats {
+
+  private final int openChannels;
+  private final int idleChannels;
+  private final long borrows;
+  private final long borrowWaitNanos;
+  private final long maxBorrowWaitNanos;
+  private final long exhausted;
+  private final long creations;
+  private final long evictions;
+
+  ChannelPoolStats(
+      int openChannels,
+      int idleChannels,
+      long borrows,
+      long borrowWaitNanos,
+      long maxBorrowWaitNanos,
+      long exhausted,
+      long creations,
+      long evictions) {
+    this.openChannels = openChannels;
+    this.idleChannels = idleChannels;
+    this.borrows = borrows;
+    this.borrowWaitNanos = borrowWaitNanos;
+    this.maxBorrowWaitNanos = maxBorrowWaitNanos;
+    this.exhausted = exhausted;
+    this.creations = creations;
+    this.evictions = evictions;
+  }
+
+  /** @return the number of channels currently open, idle or in use */
+  public int getOpenChannels() {
+    return openChannels;
+  }
+
+  /** @return the number of open channels currently not in use */
+  public int getIdleChannels() {
+    return idleChannels;
+  }
+
+  /** @return the total number of times a channel was handed out */
+  public long getBorrows() {
+    return borrows;
+  }
+
+  /** @return the accumulated time callers spent waiting for a channel */
+  public long getBorrowWaitNanos() {
+    return borrowWaitNanos;
+  }
+
+  /** @return the longest time a single caller waited for a channel */
+  public long getMaxBorrowWaitNanos() {
+    return maxBorrowWaitNanos;
+  }
+
+  /** @return how often a channel was requested while all channels were in use */
+  public long getExhausted() {
+    return exhausted;
+  }
+
+  /** @return the total number of channels created */
+  public long getCreations() {
+    return creations;
+  }
+
+  /** @return the total number of channels closed because they were idle for too long */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /** @return the counters of both snapshots added up, e.g. to report several pools as one */
+  public ChannelPoolStats plus(ChannelPoolStats other) {
+    return new ChannelPoolStats(
+        openChannels + other.openChannels,
+        idleChannels + other.idleChannels,
+        borrows + other.borrows,
+        borrowWaitNanos + other.borrowWaitNanos,
+        Math.max(maxBorrowWaitNanos, other.maxBorrowWaitNanos),
+        exhausted + other.exhausted,
+        creations + other.creations,
+        evictions + other.evictions);
+  }
+
+  @Override
+  public String toString() {
+    return new StringJoiner(", ", ChannelPoolStats.class.getSimpleName() + "[", "]")
+        .add("openChannels=" + openChannels)
+        .add("idleChannels=" + idleChannels)
+        .add("borrows=" + borrows)
+        .add("borrowWaitMs=" + TimeUnit.NANOSECONDS.toMillis(borrowWaitNanos))
+        .add("maxBorrowWaitMs=" + TimeUnit.NANOSECONDS.toMillis(maxBorrowWaitNanos))
+        .add("exhausted=" + exhausted)
+        .add("creations=" + creations)
+        .add("evictions=" + evictions)
+        .toString();
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * Wraps a {@link Channel} that has been put into confirm mode and keeps track of all messages that
+ * have been published but not yet been confirmed by the broker.
+ *
+ * <p>Every publish registers a future under the delivery tag the broker will use to confirm it.
+ * Acks and nacks complete the futures, honouring the {@code multiple} flag which confirms every
+ * outstanding tag up to and including the given one. If the channel is shut down all outstanding
+ * futures are failed.
+ *
+ * <p>Publishing itself is not thread-safe (the delivery tag has to be read and the message published
+ * atomically) so a channel must only be used by one publisher at a time, which the channel pool of
+ * {@link DefaultMessagePublisher} and the {@link RetryChannel} guarantee. Confirms may arrive on
+ * any thread.
+ */
+@ThreadSafe
+class ConfirmingChannel {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ConfirmingChannel.class);
+
+  private final Channel channel;
+  private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> outstanding =
+      new ConcurrentSkipListMap<>();
+
+  ConfirmingChannel(Channel channel) throws IOException {
+    this.channel = Objects.requireNonNull(channel, "channel can't be null");
+    channel.confirmSelect();
+    channel.addConfirmListener(
+        new ConfirmListener() {
+          @Override
+          public void handleAck(long deliveryTag, boolean multiple) {
+            confirm(deliveryTag, multiple, true);
+          }
+
+          @Override
+          public void handleNack(long deliveryTag, boolean multiple) {
+            confirm(deliveryTag, multiple, false);
+          }
+        });
+    channel.addShutdownListener(cause -> failAll(new IOException("Channel was shut down", cause)));
+  }
+
+  Channel getChannel() {
+    return channel;
+  }
+
+  boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  /** @return the number of messages published on this channel that are still awaiting a confirm */
+  int getOutstandingCount() {
+    return outstanding.size();
+  }
+
+  /**
+   * Publishes a message and returns a future that completes once the broker confirmed it. The
+   * future fails with an {@link IOException} if the broker nacks the message or the channel is
+   * closed before the confirm arrives.
+   *
+   * @throws IOException if the message could not be handed to the channel at all
+   */
+  CompletableFuture<Void> publish(
+      String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body)
+      throws IOException {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    long deliveryTag = channel.getNextPublishSeqNo();
+    outstanding.put(deliveryTag, future);
+    try {
+      channel.basicPublish(exchange, routingKey, properties, body);
+    } catch (IOException | RuntimeException e) {
+      outstanding.remove(deliveryTag);
+      throw e;
+    }
+    return future;
+  }
+
+  /** Fails all outstanding futures, e.g. because the channel is being discarded. */
+  void failAll(Throwable cause) {
+    Map.Entry<Long, CompletableFuture<Void>> entry;
+    while ((entry = outstanding.pollFirstEntry()) != null) {
+      entry.getValue().completeExceptionally(cause);
+    }
+  }
+
+  private void confirm(long deliveryTag, boolean multiple, boolean ack) {
+    if (multiple) {
+      ConcurrentNavigableMap<Long, CompletableFuture<Void>> confirmed =
+          outstanding.headMap(deliveryTag, true);
+      for (CompletableFuture<Void> future : confirmed.values()) {
+        complete(future, deliveryTag, ack);
+      }
+      confirmed.clear();
+    } else {
+      CompletableFuture<Void> future = outstanding.remove(deliveryTag);
+      if (future != null) {
+        complete(future, deliveryTag, ack);
+      }
+    }
+  }
+
+  private static void complete(CompletableFuture<Void> future, long deliveryTag, boolean ack) {
+    if (ack) {
+      future.complete(null);
+    } else {
+      LOG.warn("Message with delivery tag [{}] was nacked by the broker", deliveryTag);
+      future.completeExceptionally(
+          new IOException("Message with delivery tag " + deliveryTag + " was nacked by the broker"));
+    }
+  }
+}
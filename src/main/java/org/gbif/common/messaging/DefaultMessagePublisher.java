@@ -16,33 +16,51 @@ package org.gbif.common.messaging;
 import org.gbif.common.messaging.api.Message;
 import org.gbif.common.messaging.api.MessagePublisher;
 import org.gbif.common.messaging.api.MessageRegistry;
+import org.gbif.common.messaging.codec.MessageCodecs;
+import org.gbif.common.messaging.config.PublisherConfiguration;
 import org.gbif.utils.PreconditionUtils;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.type.TypeFactory;
 import com.rabbitmq.client.AMQP;
-import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.DefaultConsumer;
-import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.MessageProperties;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /** This class can be used to publish messages easily. */
 @ThreadSafe
@@ -50,17 +68,50 @@ public class DefaultMessagePublisher implements MessagePublisher, Closeable {
 
   private static final Logger LOG = LoggerFactory.getLogger(DefaultMessagePublisher.class);
   private static final int NUMBER_OF_RETRIES = 3;
-  private final Connection connection;
+  private static final int OUTBOX_REPLAY_CHUNK = 1_000;
+  private static final long OUTBOX_CLOSE_WAIT_SECONDS = 10;
+  /** Replies of the untyped RPC calls are decoded like JSON of unknown structure. */
+  private static final JavaType OBJECT_TYPE =
+      TypeFactory.defaultInstance().constructType(Object.class);
   private final MessageRegistry registry;
   private final ObjectMapper mapper;
+  private final MessageEncoder encoder;
+  private final MessageCodecs codecs;
   protected String customContentType = null;
 
   /**
-   * The pool of channels available for use. Clients will reuse available channels, but when the
-   * pool is exhausted, new channels are created. This is unbounded in size and dependent on
-   * consumer load (e.g. concurrent threads).
+   * The connections channels are spread over. Most publishers use a single connection, but as each
+   * connection is written by a single thread, more can be configured to scale on many-core hosts.
    */
-  private final ConcurrentLinkedQueue<Channel> channelPool = new ConcurrentLinkedQueue<>();
+  private final List<PublisherConnection> connections;
+
+  private final PublisherConfiguration.StripeBy stripeBy;
+  private final AtomicInteger nextConnection = new AtomicInteger();
+
+  /**
+   * Buffers sends while the broker is unreachable, {@code null} unless enabled in the
+   * configuration. It is replayed by a single thread, periodically and whenever a connection
+   * recovers.
+   */
+  private final Outbox outbox;
+
+  private final ScheduledExecutorService outboxReplayer;
+  private final AtomicBoolean replaying = new AtomicBoolean();
+
+  /** Sends the requests of RPC calls and receives their replies, on the first connection. */
+  private final RpcClient rpc;
+
+  /**
+   * Persistent sends, batches and asynchronous sends included, are written to this journal until
+   * the broker confirmed them, {@code null} unless enabled in the configuration. Messages which
+   * weren't confirmed are published again by a single thread until they are.
+   */
+  private final PublishJournal journal;
+
+  private final ScheduledExecutorService journalRetrier;
+  private final long journalRetryIntervalMs;
+  // confirms of journaled messages waiting to be published again, failed on close
+  private final Set<CompletableFuture<Void>> journalRetries = ConcurrentHashMap.newKeySet();
 
   /**
    * Convenience constructor that uses a default {@link ObjectMapper} and the {@link
@@ -84,20 +135,137 @@ public class DefaultMessagePublisher implements MessagePublisher, Closeable {
   public DefaultMessagePublisher(
       ConnectionParameters connectionParameters, MessageRegistry registry, ObjectMapper mapper)
       throws IOException {
+    this(connectionParameters, registry, mapper, new PublisherConfiguration());
+  }
+
+  /**
+   * Builds a new MessagingService with the provided components and tuning options, and declares
+   * all the necessary exchanges as topic based.
+   *
+   * @param connectionParameters to use
+   * @param registry to use
+   * @param mapper to use
+   * @param config tuning options such as the channel pool sizes
+   */
+  public DefaultMessagePublisher(
+      ConnectionParameters connectionParameters,
+      MessageRegistry registry,
+      ObjectMapper mapper,
+      PublisherConfiguration config)
+      throws IOException {
     Objects.requireNonNull(connectionParameters, "connectionParameters can't be null");
+    Objects.requireNonNull(config, "config can't be null");
     this.mapper = Objects.requireNonNull(mapper, "mapper can't be null");
     this.registry = Objects.requireNonNull(registry, "registry can't be null");
 
-    this.mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+    this.encoder = new MessageEncoder(this.mapper, config);
+    this.codecs = encoder.getCodecs();
 
-    LOG.info("Connecting to AMQP broker {}", connectionParameters);
+    PreconditionUtils.checkArgument(config.connections >= 1, "connections needs to be at least 1");
+    PreconditionUtils.checkArgument(
+        config.journalRetryIntervalMs > 0, "journalRetryIntervalMs needs to be greater than 0");
+    this.journalRetryIntervalMs = config.journalRetryIntervalMs;
+    this.stripeBy = Objects.requireNonNull(config.stripeBy, "stripeBy can't be null");
+
+    LOG.info(
+        "Connecting to AMQP broker {} using {} connection(s)",
+        connectionParameters,
+        config.connections);
+    List<PublisherConnection> opened = new ArrayList<>(config.connections);
     try {
-      connection = connectionParameters.getConnectionFactory().newConnection();
-      declareAllExchanges(registry, connection);
+      for (int i = 0; i < config.connections; i++) {
+        Connection connection = connectionParameters.getConnectionFactory().newConnection();
+        opened.add(new PublisherConnection(connection, config));
+      }
+      declareAllExchanges(registry, opened.get(0).getConnection());
     } catch (TimeoutException e) {
+      closeAll(opened);
       LOG.error("Timeout connecting to AMQP broker", e);
       throw new IOException(e);
+    } catch (IOException | RuntimeException e) {
+      closeAll(opened);
+      throw e;
+    }
+    connections = Collections.unmodifiableList(opened);
+    rpc = new RpcClient(connections.get(0).getConnection(), codecs);
+
+    if (config.outboxCapacity > 0) {
+      outbox = new Outbox(config);
+      outboxReplayer =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread thread = new Thread(r, "postal-service-outbox");
+                thread.setDaemon(true);
+                return thread;
+              });
+      outboxReplayer.scheduleWithFixedDelay(
+          this::replayOutbox,
+          config.outboxRetryIntervalMs,
+          config.outboxRetryIntervalMs,
+          TimeUnit.MILLISECONDS);
+      for (PublisherConnection connection : connections) {
+        if (connection.getConnection() instanceof Recoverable) {
+          ((Recoverable) connection.getConnection())
+              .addRecoveryListener(recoverable -> outboxReplayer.execute(this::replayOutbox));
+        }
+      }
+    } else {
+      outbox = null;
+      outboxReplayer = null;
+    }
+
+    if (config.journalDirectory != null) {
+      journalRetrier =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread thread = new Thread(r, "postal-service-journal");
+                thread.setDaemon(true);
+                return thread;
+              });
+      try {
+        journal = new PublishJournal(config);
+      } catch (IOException | RuntimeException e) {
+        close();
+        throw e;
+      }
+      for (PublishJournal.Entry entry : journal.getUnconfirmed()) {
+        publishJournaled(entry);
+      }
+    } else {
+      journalRetrier = null;
+      journal = null;
+    }
+  }
+
+  /** @return the counters of the pools of channels used by the synchronous send methods */
+  public ChannelPoolStats getChannelPoolStats() {
+    ChannelPoolStats stats = connections.get(0).getChannelPool().getStats();
+    for (int i = 1; i < connections.size(); i++) {
+      stats = stats.plus(connections.get(i).getChannelPool().getStats());
     }
+    return stats;
+  }
+
+  /** @return the counters of the pools of channels in confirm mode used for asynchronous sends */
+  public ChannelPoolStats getConfirmChannelPoolStats() {
+    ChannelPoolStats stats = connections.get(0).getConfirmChannelPool().getStats();
+    for (int i = 1; i < connections.size(); i++) {
+      stats = stats.plus(connections.get(i).getConfirmChannelPool().getStats());
+    }
+    return stats;
+  }
+
+  /**
+   * @return the codecs messages can be published with, custom codecs can be registered here and
+   *     selected with {@link org.gbif.common.messaging.codec.Codec} or the configuration
+   */
+  public MessageCodecs getCodecs() {
+    return codecs;
+  }
+
+  /** @return the counters of the outbox, empty if it is not enabled */
+  public Optional<OutboxStats> getOutboxStats() {
+    return outbox == null ? Optional.empty() : Optional.of(outbox.getStats());
   }
 
   @Override
@@ -137,43 +305,439 @@ public class DefaultMessagePublisher implements MessagePublisher, Closeable {
     Objects.requireNonNull(exchange, "exchange can't be null");
     Objects.requireNonNull(routingKey, "routingKey can't be null");
 
-    byte[] data = mapper.writeValueAsBytes(message);
+    OutgoingMessage outgoing = encode(message, exchange, routingKey, persistent);
     LOG.debug(
         "Sending message of type [{}] to exchange [{}] using routing key [{}]",
         message.getClass().getSimpleName(),
         exchange,
         routingKey);
 
+    if (persistent && journal != null) {
+      publishJournaled(journal.append(outgoing));
+      return;
+    }
+    PublisherConnection connection = connectionFor(routingKey);
+    if (mustBuffer(connection)) {
+      bufferInOutbox(outgoing);
+      return;
+    }
+    ChannelPool<Channel> channelPool = connection.getChannelPool();
     for (int attempt = 1; attempt <= NUMBER_OF_RETRIES; attempt++) {
-      Channel channel = provideChannel();
-
+      Channel channel = channelPool.borrow();
       try {
-        if (persistent) {
-          channel.basicPublish(exchange, routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, data);
-        } else {
-
-          BasicProperties properties = null;
-          if (customContentType != null) {
-            properties = new BasicProperties.Builder().contentType(customContentType).build();
-          } else {
-            properties = MessageProperties.TEXT_PLAIN;
-          }
-          channel.basicPublish(exchange, routingKey, properties, data);
-        }
+        channel.basicPublish(exchange, routingKey, outgoing.getProperties(), outgoing.getBody());
         // We're not releasing this in a finally block because we assume the channel is "bad" if an
         // exception occurred
-        releaseChannel(channel);
+        channelPool.release(channel);
         return;
+      } catch (IOException | ShutdownSignalException e) {
+        channelPool.discard(channel);
+        if (attempt >= NUMBER_OF_RETRIES) {
+          if (outbox != null) {
+            LOG.warn("Tried sending message but failed {} times, buffering it", attempt);
+            bufferInOutbox(outgoing);
+            return;
+          }
+          LOG.warn("Tried sending message but failed {} times, aborting", attempt);
+          throw asIOException(e);
+        }
+        LOG.debug("Failed sending message, retrying");
+      }
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> sendAsync(Message message, boolean persistent) {
+    Objects.requireNonNull(message, "message can't be null");
+
+    Optional<String> exchange = registry.getExchange(message.getClass());
+    PreconditionUtils.checkArgument(exchange.isPresent(), "No exchange found for Message");
+
+    return sendAsync(message, exchange.get(), message.getRoutingKey(), persistent);
+  }
+
+  /**
+   * Publishes the message on a channel in confirm mode and returns without waiting for the broker.
+   * Failing to hand the message to a channel is retried like the synchronous sends, a nack or a
+   * channel closing before the confirm arrived fails the returned future.
+   */
+  @Override
+  public CompletableFuture<Void> sendAsync(
+      Object message, String exchange, String routingKey, boolean persistent) {
+    Objects.requireNonNull(message, "message can't be null");
+    Objects.requireNonNull(exchange, "exchange can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+
+    OutgoingMessage outgoing;
+    try {
+      outgoing = encode(message, exchange, routingKey, persistent);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    LOG.debug(
+        "Sending message of type [{}] asynchronously to exchange [{}] using routing key [{}]",
+        message.getClass().getSimpleName(),
+        exchange,
+        routingKey);
+
+    if (persistent && journal != null) {
+      try {
+        return publishJournaled(journal.append(outgoing));
       } catch (IOException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+    return publishWithConfirm(outgoing);
+  }
+
+  /**
+   * Publishes a message on a channel in confirm mode, retrying to hand it to a channel and falling
+   * back to the outbox if there is one.
+   */
+  private CompletableFuture<Void> publishWithConfirm(OutgoingMessage message) {
+    PublisherConnection connection = connectionFor(message.getRoutingKey());
+    if (mustBuffer(connection)) {
+      return bufferInOutboxAsync(message);
+    }
+    ChannelPool<ConfirmingChannel> confirmChannelPool = connection.getConfirmChannelPool();
+    for (int attempt = 1; ; attempt++) {
+      ConfirmingChannel channel = null;
+      try {
+        channel = confirmChannelPool.borrow();
+        CompletableFuture<Void> confirm =
+            channel.publish(
+                message.getExchange(),
+                message.getRoutingKey(),
+                message.getProperties(),
+                message.getBody());
+        // We're not releasing this in a finally block because we assume the channel is "bad" if an
+        // exception occurred
+        confirmChannelPool.release(channel);
+        return confirm;
+      } catch (IOException | ShutdownSignalException e) {
+        if (channel != null) {
+          confirmChannelPool.discard(channel);
+        }
         if (attempt >= NUMBER_OF_RETRIES) {
+          if (outbox != null) {
+            LOG.warn("Tried sending message but failed {} times, buffering it", attempt);
+            return bufferInOutboxAsync(message);
+          }
           LOG.warn("Tried sending message but failed {} times, aborting", attempt);
-          throw e;
+          return CompletableFuture.failedFuture(e);
         }
         LOG.debug("Failed sending message, retrying");
       }
     }
   }
 
+  @Override
+  public void sendBatch(Collection<? extends Message> messages, boolean persistent)
+      throws IOException {
+    Objects.requireNonNull(messages, "messages can't be null");
+
+    // resolve every message type only once per batch
+    Map<Class<? extends Message>, String> exchanges = new HashMap<>();
+    List<OutgoingMessage> batch = new ArrayList<>(messages.size());
+    for (Message message : messages) {
+      Objects.requireNonNull(message, "message can't be null");
+      String exchange =
+          exchanges.computeIfAbsent(message.getClass(), c -> registry.getExchange(c).orElse(null));
+      PreconditionUtils.checkArgument(exchange != null, "No exchange found for Message");
+      batch.add(encode(message, exchange, message.getRoutingKey(), persistent));
+    }
+    LOG.debug("Sending batch of {} messages", batch.size());
+    publishBatch(batch, persistent);
+  }
+
+  @Override
+  public void sendBatch(
+      Collection<?> messages, String exchange, String routingKey, boolean persistent)
+      throws IOException {
+    Objects.requireNonNull(messages, "messages can't be null");
+    Objects.requireNonNull(exchange, "exchange can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+
+    List<OutgoingMessage> batch = new ArrayList<>(messages.size());
+    for (Object message : messages) {
+      Objects.requireNonNull(message, "message can't be null");
+      batch.add(encode(message, exchange, routingKey, persistent));
+    }
+    LOG.debug(
+        "Sending batch of {} messages to exchange [{}] using routing key [{}]",
+        batch.size(),
+        exchange,
+        routingKey);
+    publishBatch(batch, persistent);
+  }
+
+  /**
+   * Publishes all messages on a single channel in confirm mode and waits once for the broker to
+   * confirm the whole batch. If the channel fails part way through, the confirms still outstanding
+   * on it fail with it, so all messages from the first unconfirmed one on are published again on a
+   * new channel. Those may reach the broker twice.
+   *
+   * <p>Persistent batches are journaled instead, like persistent single sends, and return once all
+   * messages are in the journal.
+   *
+   * @throws IOException if publishing failed too often or any message was nacked
+   */
+  private void publishBatch(List<OutgoingMessage> batch, boolean persistent) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    if (persistent && journal != null) {
+      for (OutgoingMessage message : batch) {
+        publishJournaled(journal.append(message));
+      }
+      return;
+    }
+    ChannelPool<ConfirmingChannel> confirmChannelPool =
+        connectionFor(batch.get(0).getRoutingKey()).getConfirmChannelPool();
+    List<CompletableFuture<Void>> confirms = new ArrayList<>(batch.size());
+    int published = 0;
+    for (int attempt = 1; published < batch.size(); attempt++) {
+      ConfirmingChannel channel = confirmChannelPool.borrow();
+      try {
+        for (; published < batch.size(); published++) {
+          OutgoingMessage message = batch.get(published);
+          confirms.add(
+              channel.publish(
+                  message.getExchange(),
+                  message.getRoutingKey(),
+                  message.getProperties(),
+                  message.getBody()));
+        }
+        // We're not releasing this in a finally block because we assume the channel is "bad" if an
+        // exception occurred
+        confirmChannelPool.release(channel);
+      } catch (IOException | ShutdownSignalException e) {
+        confirmChannelPool.discard(channel);
+        if (attempt >= NUMBER_OF_RETRIES) {
+          LOG.warn("Tried sending batch but failed {} times, aborting", attempt);
+          throw asIOException(e);
+        }
+        published = countConfirmed(confirms);
+        confirms.subList(published, confirms.size()).clear();
+        LOG.debug("Failed sending batch after {} confirmed messages, retrying", published);
+      }
+    }
+
+    try {
+      CompletableFuture.allOf(confirms.toArray(new CompletableFuture[0])).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for confirms");
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause()
+          : new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * A channel closed under a publish throws the unchecked {@link ShutdownSignalException}, which is
+   * handled like any other failure to publish.
+   */
+  private static IOException asIOException(Exception e) {
+    return e instanceof IOException ? (IOException) e : new IOException(e);
+  }
+
+  /** @return the number of leading messages of a batch the broker confirmed */
+  private static int countConfirmed(List<CompletableFuture<Void>> confirms) {
+    int confirmed = 0;
+    while (confirmed < confirms.size()
+        && confirms.get(confirmed).isDone()
+        && !confirms.get(confirmed).isCompletedExceptionally()) {
+      confirmed++;
+    }
+    return confirmed;
+  }
+
+  /**
+   * Whether a send has to go to the outbox: while the connection is down, and as long as older
+   * messages are still buffered or being replayed so that messages are published in the order they
+   * were sent.
+   */
+  private boolean mustBuffer(PublisherConnection connection) {
+    return outbox != null && (!outbox.isEmpty() || !connection.getConnection().isOpen());
+  }
+
+  private void bufferInOutbox(OutgoingMessage message) throws IOException {
+    outbox
+        .add(message)
+        .whenComplete(
+            (ok, e) -> {
+              if (e != null) {
+                LOG.error("Buffered message to exchange [{}] was lost", message.getExchange(), e);
+              }
+            });
+  }
+
+  private CompletableFuture<Void> bufferInOutboxAsync(OutgoingMessage message) {
+    try {
+      return outbox.add(message);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Publishes a journaled message and marks it as confirmed once the broker confirmed it. If that
+   * fails the message is published again after the retry interval, until it is confirmed. Once the
+   * publisher is closed it stays in the journal and is published again on restart.
+   *
+   * @return a future that completes once the broker confirmed the message, and fails only if the
+   *     publisher was closed before
+   */
+  private CompletableFuture<Void> publishJournaled(PublishJournal.Entry entry) {
+    CompletableFuture<Void> confirmed = new CompletableFuture<>();
+    publishJournaled(entry, confirmed);
+    return confirmed;
+  }
+
+  private void publishJournaled(PublishJournal.Entry entry, CompletableFuture<Void> confirmed) {
+    publishWithConfirm(entry.getMessage())
+        .whenComplete(
+            (ok, e) -> {
+              if (e == null) {
+                journal.confirm(entry);
+                confirmed.complete(null);
+                return;
+              }
+              try {
+                journalRetries.add(confirmed);
+                journalRetrier.schedule(
+                    () -> {
+                      journalRetries.remove(confirmed);
+                      publishJournaled(entry, confirmed);
+                    },
+                    journalRetryIntervalMs,
+                    TimeUnit.MILLISECONDS);
+                LOG.debug(
+                    "Journaled message to exchange [{}] was not confirmed, sending it again",
+                    entry.getMessage().getExchange(),
+                    e);
+              } catch (RejectedExecutionException closed) {
+                journalRetries.remove(confirmed);
+                LOG.warn(
+                    "Journaled message to exchange [{}] was not confirmed, it will be sent again"
+                        + " on restart",
+                    entry.getMessage().getExchange(),
+                    e);
+                confirmed.completeExceptionally(
+                    new IOException("Publisher was closed before the message was confirmed", e));
+              }
+            });
+  }
+
+  /**
+   * Publishes the buffered messages in order, in chunks on a single channel in confirm mode. Only
+   * one thread replays at a time, and replaying stops as soon as publishing fails, leaving the
+   * remaining messages for the next attempt.
+   */
+  private void replayOutbox() {
+    if (!replaying.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      while (!outbox.isEmpty()) {
+        List<Outbox.Entry> chunk = outbox.take(OUTBOX_REPLAY_CHUNK);
+        if (!chunk.isEmpty() && !replay(chunk)) {
+          return;
+        }
+      }
+    } catch (RuntimeException e) {
+      // keep the scheduled task alive
+      LOG.error("Unexpected exception replaying the outbox", e);
+    } finally {
+      replaying.set(false);
+    }
+  }
+
+  /**
+   * Publishes a chunk of buffered messages and waits for their confirms. Each message goes to the
+   * connection it would have been sent on if striped by routing key, otherwise the whole chunk
+   * goes to one connection to keep its order. Publishing stops at the first message whose
+   * connection is down or whose channel fails. Messages that could not be published or whose
+   * channel closed before they were confirmed are put back in front of the outbox, which can
+   * publish a message twice. A message nacked by the broker fails its future.
+   *
+   * @return whether all messages were handed to the broker
+   */
+  private boolean replay(List<Outbox.Entry> chunk) {
+    PublisherConnection chunkConnection =
+        connectionFor(chunk.get(0).getMessage().getRoutingKey());
+    Map<PublisherConnection, ConfirmingChannel> channels = new LinkedHashMap<>();
+    List<ConfirmingChannel> publishedOn = new ArrayList<>(chunk.size());
+    List<CompletableFuture<Void>> confirms = new ArrayList<>(chunk.size());
+    for (Outbox.Entry entry : chunk) {
+      OutgoingMessage message = entry.getMessage();
+      PublisherConnection connection =
+          stripeBy == PublisherConfiguration.StripeBy.ROUTING_KEY
+              ? connectionFor(message.getRoutingKey())
+              : chunkConnection;
+      if (!connection.getConnection().isOpen()) {
+        break;
+      }
+      ConfirmingChannel channel = channels.get(connection);
+      try {
+        if (channel == null) {
+          channel = connection.getConfirmChannelPool().borrow();
+          channels.put(connection, channel);
+        }
+        confirms.add(
+            channel.publish(
+                message.getExchange(),
+                message.getRoutingKey(),
+                message.getProperties(),
+                message.getBody()));
+        publishedOn.add(channel);
+      } catch (IOException | ShutdownSignalException e) {
+        LOG.debug("Failed replaying the outbox after {} messages", confirms.size(), e);
+        if (channel != null) {
+          channels.remove(connection);
+          connection.getConfirmChannelPool().discard(channel);
+        }
+        break;
+      }
+    }
+    // We're not releasing the channels in a finally block because we assume a channel is "bad" if
+    // an exception occurred
+    channels.forEach((connection, channel) -> connection.getConfirmChannelPool().release(channel));
+
+    List<Outbox.Entry> failed = new ArrayList<>();
+    int replayed = 0;
+    int nacked = 0;
+    for (int i = 0; i < confirms.size(); i++) {
+      Outbox.Entry entry = chunk.get(i);
+      try {
+        confirms.get(i).get();
+        entry.getConfirm().complete(null);
+        replayed++;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed.addAll(chunk.subList(i, confirms.size()));
+        break;
+      } catch (ExecutionException e) {
+        if (publishedOn.get(i).isOpen()) {
+          // the channel survived, so the broker nacked the message and would do so again
+          entry.getConfirm().completeExceptionally(e.getCause());
+          nacked++;
+        } else {
+          failed.add(entry);
+        }
+      }
+    }
+    failed.addAll(chunk.subList(confirms.size(), chunk.size()));
+    outbox.replayed(replayed, nacked);
+    if (!failed.isEmpty()) {
+      outbox.putBack(failed);
+      return false;
+    }
+    return true;
+  }
+
   @Override
   public void replyToQueue(Object message, boolean persistent, String correlationId, String replyTo)
       throws IOException {
@@ -188,26 +752,29 @@ public class DefaultMessagePublisher implements MessagePublisher, Closeable {
         replyTo,
         correlationId);
 
+    ChannelPool<Channel> channelPool = connectionFor(replyTo).getChannelPool();
     for (int attempt = 1; attempt <= NUMBER_OF_RETRIES; attempt++) {
-      Channel channel = provideChannel();
+      Channel channel = channelPool.borrow();
       try {
         AMQP.BasicProperties properties =
             getProperties(persistent).builder().correlationId(correlationId).build();
         channel.basicPublish("", replyTo, properties, data);
         // We're not releasing this in a finally block because we assume the channel is "bad" if an
         // exception occurred
-        releaseChannel(channel);
+        channelPool.release(channel);
         return;
-      } catch (IOException e) {
+      } catch (IOException | ShutdownSignalException e) {
+        channelPool.discard(channel);
         if (attempt >= NUMBER_OF_RETRIES) {
           LOG.warn("Tried sending message but failed {} times, aborting", attempt);
-          throw e;
+          throw asIOException(e);
         }
         LOG.debug("Failed sending message, retrying");
       }
     }
   }
 
+  @Deprecated
   @Override
   public <T> T sendAndReceive(
       Message message, String routingKey, boolean persistent, String correlationId)
@@ -217,63 +784,77 @@ public class DefaultMessagePublisher implements MessagePublisher, Closeable {
     return sendAndReceive(message, exchange.get(), routingKey, persistent, correlationId);
   }
 
+  @Deprecated
   @Override
   public <T> T sendAndReceive(
       Object message, String exchange, String routingKey, boolean persistent, String correlationId)
       throws IOException, InterruptedException {
+    Objects.requireNonNull(correlationId, "correlationId can't be null");
+    CompletableFuture<T> reply =
+        call(message, exchange, routingKey, persistent, correlationId, OBJECT_TYPE, null);
+    try {
+      return reply.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause()
+          : new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      reply.cancel(false);
+      throw e;
+    }
+  }
+
+  @Override
+  public <T> CompletableFuture<T> sendAndReceiveAsync(
+      Object message,
+      String exchange,
+      String routingKey,
+      boolean persistent,
+      JavaType responseType,
+      Duration timeout) {
+    Objects.requireNonNull(responseType, "responseType can't be null");
+    Objects.requireNonNull(timeout, "timeout can't be null");
+    try {
+      return call(
+          message,
+          exchange,
+          routingKey,
+          persistent,
+          UUID.randomUUID().toString(),
+          responseType,
+          timeout);
+    } catch (IOException | RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  private <T> CompletableFuture<T> call(
+      Object message,
+      String exchange,
+      String routingKey,
+      boolean persistent,
+      String correlationId,
+      JavaType responseType,
+      @Nullable Duration timeout)
+      throws IOException {
     Objects.requireNonNull(message, "message can't be null");
     Objects.requireNonNull(exchange, "exchange can't be null");
     Objects.requireNonNull(routingKey, "routingKey can't be null");
-    Objects.requireNonNull(correlationId, "correlationId can't be null");
-
-    byte[] data = mapper.writeValueAsBytes(message);
     LOG.debug(
-        "Sending message of type [{}] to exchange [{}] using routing key [{}]",
+        "Sending request of type [{}] to exchange [{}] using routing key [{}]",
         message.getClass().getSimpleName(),
         exchange,
         routingKey);
 
-    for (int attempt = 1; attempt <= NUMBER_OF_RETRIES; attempt++) {
-      Channel channel = provideChannel();
-      try {
-        AMQP.BasicProperties.Builder properties = getProperties(persistent).builder();
-        String replyTo = channel.queueDeclare().getQueue();
-        properties.correlationId(correlationId).replyTo(replyTo);
-        channel.basicPublish(exchange, routingKey, properties.build(), data);
-        final BlockingQueue<byte[]> response = new ArrayBlockingQueue<>(1);
-        String cTag =
-            channel.basicConsume(
-                replyTo,
-                true,
-                new DefaultConsumer(channel) {
-                  @Override
-                  public void handleDelivery(
-                      String consumerTag,
-                      Envelope envelope,
-                      AMQP.BasicProperties properties,
-                      byte[] body)
-                      throws IOException {
-                    if (properties.getCorrelationId().equals(correlationId)) {
-                      response.offer(body);
-                    }
-                  }
-                });
-        // We're not releasing this in a finally block because we assume the channel is "bad" if an
-        // exception occurred
-        T result = mapper.readValue(response.take(), new TypeReference<T>() {});
-        channel.basicCancel(cTag);
-        return result;
-      } catch (IOException | InterruptedException e) {
-        if (attempt >= NUMBER_OF_RETRIES) {
-          LOG.warn("Tried sending message but failed {} times, aborting", attempt);
-          throw e;
-        }
-        LOG.debug("Failed sending message, retrying");
-      } finally {
-        releaseChannel(channel);
-      }
-    }
-    return null;
+    OutgoingMessage request = encode(message, exchange, routingKey, persistent);
+    return rpc.call(
+        exchange,
+        routingKey,
+        request.getProperties(),
+        request.getBody(),
+        correlationId,
+        responseType,
+        timeout);
   }
 
   private void declareQueue(String queueName, Channel channel) {
@@ -288,6 +869,12 @@ public class DefaultMessagePublisher implements MessagePublisher, Closeable {
     return persistent ? MessageProperties.PERSISTENT_TEXT_PLAIN : MessageProperties.TEXT_PLAIN;
   }
 
+  /** Serializes a message, honouring the custom content type of this publisher. */
+  private OutgoingMessage encode(
+      Object message, String exchange, String routingKey, boolean persistent) throws IOException {
+    return encoder.encode(message, exchange, routingKey, persistent, customContentType);
+  }
+
   /**
    * Declares all exchanges used by the registry as <em>topic</em> exchanges.
    *
@@ -316,43 +903,72 @@ public class DefaultMessagePublisher implements MessagePublisher, Closeable {
   }
 
   /**
-   * Callers must return the channel using {@link #releaseChannel(Channel channel) releaseChannel}.
-   *
-   * @return a channel to reuse, or a new one if none are available
+   * Picks the connection to publish on, either in turn or by the routing key. Striping by routing
+   * key keeps all messages with the same routing key on one connection and thus in order.
    */
-  private Channel provideChannel() throws IOException {
-    Channel channel = channelPool.poll();
-    if (channel == null || !channel.isOpen()) { // none for reuse
-      LOG.debug("No pooled channels available, creating a new one");
-      channel = connection.createChannel();
+  private PublisherConnection connectionFor(String routingKey) {
+    if (connections.size() == 1) {
+      return connections.get(0);
     }
-    return channel;
+    int hash =
+        stripeBy == PublisherConfiguration.StripeBy.ROUTING_KEY
+            ? routingKey.hashCode()
+            : nextConnection.getAndIncrement();
+    return connections.get(Math.floorMod(hash, connections.size()));
   }
 
-  /**
-   * Returns the channels to the pool for reuse.
-   *
-   * @param channel To free up for another use
-   */
-  private void releaseChannel(Channel channel) {
-    // only reuse open channels
-    if (channel.isOpen()) {
-      channelPool.add(channel);
-      LOG.debug(
-          "Channel returned to the pool. Available channels for reuse: {}", channelPool.size());
-    } else {
-      LOG.debug(
-          "Discarding channel since it is closed. Available channels for reuse: {}",
-          channelPool.size());
+  /** Stops replaying in the background, replays what is possible and fails the rest. */
+  private void closeOutbox() {
+    outboxReplayer.shutdown();
+    try {
+      if (!outboxReplayer.awaitTermination(OUTBOX_CLOSE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("Timed out waiting for the outbox to be replayed");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    replayOutbox();
+    int lost = outbox.failAll(new IOException("Publisher was closed before sending the message"));
+    if (lost > 0) {
+      LOG.error("Closing publisher with {} messages left in the outbox, these are lost", lost);
+    }
+  }
+
+  private static void closeAll(List<PublisherConnection> connections) {
+    for (PublisherConnection connection : connections) {
+      try {
+        connection.getConnection().close();
+      } catch (IOException | RuntimeException e) {
+        LOG.debug("Exception closing connection to AMQP broker", e);
+      }
     }
   }
 
   /** Close connections, which waits for queued batches of messages to be delivered. */
   @Override
   public void close() {
+    if (journalRetrier != null) {
+      // unconfirmed entries stay in the journal
+      journalRetrier.shutdownNow();
+      for (CompletableFuture<Void> confirmed : journalRetries) {
+        confirmed.completeExceptionally(
+            new IOException("Publisher was closed before the message was confirmed"));
+      }
+    }
+    if (outbox != null) {
+      closeOutbox();
+    }
+    rpc.close();
     // connection.close() is sufficient for queued messages to be delivered, but this would
     // better log any failures.
-    for (Channel c : channelPool) {
+    List<Channel> pooled = new ArrayList<>();
+    for (PublisherConnection connection : connections) {
+      pooled.addAll(connection.getChannelPool().idleChannels());
+      for (ConfirmingChannel c : connection.getConfirmChannelPool().idleChannels()) {
+        pooled.add(c.getChannel());
+      }
+    }
+    for (Channel c : pooled) {
       try {
         c.waitForConfirmsOrDie();
       } catch (IllegalStateException e) {
@@ -367,11 +983,22 @@ public class DefaultMessagePublisher implements MessagePublisher, Closeable {
       }
     }
 
-    try {
-      LOG.info("Closing connection to AMQP broker {}", connection);
-      connection.close();
-    } catch (IOException e) {
-      LOG.error("Exception closing connection to AMQP broker", e);
+    for (PublisherConnection connection : connections) {
+      try {
+        LOG.info("Closing connection to AMQP broker {}", connection.getConnection());
+        connection.getConnection().close();
+      } catch (IOException e) {
+        LOG.error("Exception closing connection to AMQP broker", e);
+      }
+    }
+
+    // unconfirmed entries stay in the journal and are sent again on restart
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        LOG.error("Exception closing the publish journal", e);
+      }
     }
   }
 }
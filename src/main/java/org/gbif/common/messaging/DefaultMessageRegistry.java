@@ -16,18 +16,32 @@ package org.gbif.common.messaging;
 import org.gbif.common.messaging.api.Message;
 import org.gbif.common.messaging.api.MessageRegistry;
 import org.gbif.common.messaging.api.messages.*;
+import org.gbif.common.messaging.processor.MessageBindingProcessor;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
-import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.reflections.Reflections;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.util.ConfigurationBuilder;
+import org.reflections.util.FilterBuilder;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -35,7 +49,13 @@ import lombok.extern.slf4j.Slf4j;
  * A default implementation of the {@link MessageRegistry} interface where all the messages from
  * this projects {@code org.gbif.common.messaging.api} package are already preregistered.
  *
- * <p>This class is thread-safe.
+ * <p>The messages are read from the indexes written by the {@link MessageBindingProcessor} at
+ * build time. Only the jars and directories of the messages package without an index, e.g. because
+ * their classes were compiled without annotation processing, are scanned for the rest of them.
+ *
+ * <p>This class is thread-safe. Lookups, e.g. of the exchange of every published message, read an
+ * immutable snapshot of the registered messages without locking or allocating, changes replace
+ * the snapshot.
  */
 @Slf4j
 @ThreadSafe
@@ -43,25 +63,94 @@ public class DefaultMessageRegistry implements MessageRegistry {
 
   private static final String MESSAGES_PACKAGE = "org.gbif.common.messaging.api.messages";
 
+  /** Held while the snapshot is replaced, so no concurrent change is lost. */
   private final Object lock = new Object();
 
-  @GuardedBy("lock")
-  private final ConcurrentMap<Class<? extends Message>, String> exchangeMapping =
-      new ConcurrentHashMap<>();
-
-  @GuardedBy("lock")
-  private final ConcurrentMap<Class<? extends Message>, String> routingKeyMapping =
-      new ConcurrentHashMap<>();
+  private volatile Snapshot snapshot;
 
   public DefaultMessageRegistry() {
-    Reflections reflections = new Reflections(MESSAGES_PACKAGE);
+    ClassLoader loader = DefaultMessageRegistry.class.getClassLoader();
+    Map<Class<? extends Message>, Binding> bindings = new HashMap<>();
+    Set<String> indexedRoots = loadIndexes(bindings, loader);
+
+    List<URL> unindexedRoots = new ArrayList<>();
+    for (URL root : ClasspathHelper.forPackage(MESSAGES_PACKAGE, loader)) {
+      if (!indexedRoots.contains(root.toExternalForm())) {
+        unindexedRoots.add(root);
+      }
+    }
+    if (!unindexedRoots.isEmpty()) {
+      log.info("Scanning {} without a message index for messages", unindexedRoots);
+      scan(bindings, unindexedRoots, loader);
+    }
+    snapshot = new Snapshot(bindings);
+  }
+
+  /** @return the classpath roots the indexes were loaded from */
+  private static Set<String> loadIndexes(
+      Map<Class<? extends Message>, Binding> bindings, ClassLoader loader) {
+    Enumeration<URL> indexes;
+    try {
+      indexes = loader.getResources(MessageBindingProcessor.INDEX);
+    } catch (IOException e) {
+      log.warn("Could not look up the message indexes", e);
+      return Collections.emptySet();
+    }
+
+    Set<String> roots = new HashSet<>();
+    while (indexes.hasMoreElements()) {
+      URL index = indexes.nextElement();
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(index.openStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (!line.isEmpty()) {
+            loadBinding(bindings, loader, line);
+          }
+        }
+        // the root as ClasspathHelper derives it from the messages package
+        String url = index.toExternalForm();
+        roots.add(url.substring(0, url.length() - MessageBindingProcessor.INDEX.length()));
+      } catch (IOException e) {
+        log.warn("Could not read message index {}", index, e);
+      }
+    }
+    return roots;
+  }
+
+  /** Registers a message from a line of an index, without initializing its class. */
+  private static void loadBinding(
+      Map<Class<? extends Message>, Binding> bindings, ClassLoader loader, String line) {
+    String[] binding = line.split("\t", 3);
+    try {
+      Class<? extends Message> messageClass =
+          Class.forName(binding[0], false, loader).asSubclass(Message.class);
+      bindings.put(
+          messageClass, new Binding(ExchangeType.valueOf(binding[1]).getValue(), binding[2]));
+    } catch (ClassNotFoundException | RuntimeException e) {
+      log.warn("Invalid message index entry [{}], message not registered", line, e);
+    }
+  }
+
+  /**
+   * Registers the messages of the given classpath roots, e.g. of jars compiled without the {@link
+   * MessageBindingProcessor}. Messages which are indexed as well keep their indexed binding.
+   */
+  private static void scan(
+      Map<Class<? extends Message>, Binding> bindings, List<URL> roots, ClassLoader loader) {
+    Reflections reflections =
+        new Reflections(
+            new ConfigurationBuilder()
+                .setUrls(roots)
+                .addClassLoaders(loader)
+                .filterInputsBy(new FilterBuilder().includePackage(MESSAGES_PACKAGE)));
     Set<Class<? extends Message>> messageClasses = reflections.getSubTypesOf(Message.class);
 
     for (Class<? extends Message> messageClass : messageClasses) {
       MessageBinding binding = messageClass.getAnnotation(MessageBinding.class);
       if (binding != null) {
-        exchangeMapping.put(messageClass, binding.exchange().getValue());
-        routingKeyMapping.put(messageClass, binding.routingKey());
+        bindings.putIfAbsent(
+            messageClass, new Binding(binding.exchange().getValue(), binding.routingKey()));
       } else {
         log.warn("Message class {} has no @MessageBinding annotation and will not be registered",
             messageClass.getName());
@@ -70,26 +159,22 @@ public class DefaultMessageRegistry implements MessageRegistry {
   }
 
   @Override
-  @GuardedBy("lock")
   public Optional<String> getExchange(Class<? extends Message> message) {
     Objects.requireNonNull(message, "message can't be null");
 
-    return Optional.ofNullable(exchangeMapping.get(message));
+    return snapshot.get(message).exchange;
   }
 
-  @GuardedBy("lock")
   @Override
   public Optional<String> getGenericRoutingKey(Class<? extends Message> message) {
     Objects.requireNonNull(message, "message can't be null");
 
-    return Optional.ofNullable(routingKeyMapping.get(message));
+    return snapshot.get(message).routingKey;
   }
 
   @Override
   public Set<Class<? extends Message>> getRegisteredMessages() {
-    synchronized (lock) {
-      return Collections.unmodifiableSet(exchangeMapping.keySet());
-    }
+    return snapshot.bindings.keySet();
   }
 
   /**
@@ -107,8 +192,9 @@ public class DefaultMessageRegistry implements MessageRegistry {
     Objects.requireNonNull(routingKey, "routingKey can't be null");
 
     synchronized (lock) {
-      exchangeMapping.put(message, exchange);
-      routingKeyMapping.put(message, routingKey);
+      Map<Class<? extends Message>, Binding> bindings = new HashMap<>(snapshot.bindings);
+      bindings.put(message, new Binding(exchange, routingKey));
+      snapshot = new Snapshot(bindings);
     }
   }
 
@@ -123,8 +209,9 @@ public class DefaultMessageRegistry implements MessageRegistry {
     Objects.requireNonNull(message, "message can't be null");
 
     synchronized (lock) {
-      exchangeMapping.remove(message);
-      routingKeyMapping.remove(message);
+      Map<Class<? extends Message>, Binding> bindings = new HashMap<>(snapshot.bindings);
+      bindings.remove(message);
+      snapshot = new Snapshot(bindings);
     }
   }
 
@@ -135,8 +222,51 @@ public class DefaultMessageRegistry implements MessageRegistry {
   @Override
   public void clear() {
     synchronized (lock) {
-      exchangeMapping.clear();
-      routingKeyMapping.clear();
+      snapshot = new Snapshot(Collections.emptyMap());
+    }
+  }
+
+  /**
+   * The registered messages at one point in time. Every snapshot caches the bindings by class in
+   * a {@link ClassValue} of its own, so a changed registry never serves a stale binding.
+   */
+  @Immutable
+  private static final class Snapshot {
+
+    private final Map<Class<? extends Message>, Binding> bindings;
+
+    private final ClassValue<Binding> cache =
+        new ClassValue<Binding>() {
+          @Override
+          protected Binding computeValue(Class<?> type) {
+            return bindings.getOrDefault(type, Binding.NONE);
+          }
+        };
+
+    private Snapshot(Map<Class<? extends Message>, Binding> bindings) {
+      this.bindings = Collections.unmodifiableMap(new HashMap<>(bindings));
+    }
+
+    private Binding get(Class<? extends Message> message) {
+      return cache.get(message);
+    }
+  }
+
+  /**
+   * How a message is bound, with the results of the lookups created up front so they don't
+   * allocate.
+   */
+  @Immutable
+  private static final class Binding {
+
+    private static final Binding NONE = new Binding(null, null);
+
+    private final Optional<String> exchange;
+    private final Optional<String> routingKey;
+
+    private Binding(@Nullable String exchange, @Nullable String routingKey) {
+      this.exchange = Optional.ofNullable(exchange);
+      this.routingKey = Optional.ofNullable(routingKey);
     }
   }
 }
@@ -0,0 +1,418 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.utils.PreconditionUtils;
+import org.gbif.utils.concurrent.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * A message broker inside the JVM, for single-node deployments, tests and benchmarks without a
+ * RabbitMQ server. Messages are published to it with an {@link EmbeddedMessagePublisher} and
+ * consumed with an {@link EmbeddedMessageListener}, in the same serialized form as over the
+ * network, so only the broker and the network are left out.
+ *
+ * <p>Exchanges route like topic exchanges, the default exchange {@code ""} routes to the queue
+ * named by the routing key and messages routed to no queue are dropped. Queues are lock-free
+ * in-memory queues, consumers are handed up to their prefetch count of unacknowledged messages and
+ * rejected messages are requeued at the tail or dropped. A cancelled consumer waits a while for its
+ * outstanding deliveries to be settled and then requeues them, like a broker does when a channel
+ * closes. Nothing is persisted, whatever is left in the queues is lost when the JVM stops.
+ */
+@ThreadSafe
+public class EmbeddedBroker implements Closeable {
+
+  static final String DEFAULT_EXCHANGE = "";
+
+  private static final Logger LOG = LoggerFactory.getLogger(EmbeddedBroker.class);
+  /** How long consumers wait for a message before checking whether they were cancelled. */
+  private static final long POLL_MILLIS = 100;
+  private static final long DEFAULT_SETTLE_TIMEOUT_MILLIS = 30_000;
+
+  private final ConcurrentMap<String, LinkedTransferQueue<QueuedMessage>> queues =
+      new ConcurrentHashMap<>();
+  private final Set<Consumer> consumers = ConcurrentHashMap.newKeySet();
+  private final ExecutorService consumerThreads =
+      Executors.newCachedThreadPool(new NamedThreadFactory("embedded-broker"));
+  private final Object lock = new Object();
+  private final long settleTimeoutMillis;
+
+  /** Map exchange -> binding patterns -> queues, the source of the routes. */
+  @GuardedBy("lock")
+  private final Map<String, Map<String, Set<String>>> bindings = new HashMap<>();
+
+  /** Routes by exchange, replaced under the lock whenever a binding changes. */
+  private volatile Map<String, TopicTrie<String>> routes = Collections.emptyMap();
+
+  private volatile boolean closed;
+
+  public EmbeddedBroker() {
+    this(DEFAULT_SETTLE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param settleTimeoutMillis how long a cancelled consumer waits for its outstanding deliveries
+   *     to be settled before requeuing them
+   */
+  EmbeddedBroker(long settleTimeoutMillis) {
+    PreconditionUtils.checkArgument(
+        settleTimeoutMillis >= 0, "settleTimeoutMillis needs to be >= 0");
+    this.settleTimeoutMillis = settleTimeoutMillis;
+  }
+
+  /** Declares a topic exchange, unless it exists. */
+  public void declareExchange(String exchange) {
+    Objects.requireNonNull(exchange, "exchange can't be null");
+    PreconditionUtils.checkArgument(
+        !DEFAULT_EXCHANGE.equals(exchange), "The default exchange can't be declared");
+    synchronized (lock) {
+      if (bindings.putIfAbsent(exchange, new HashMap<>()) == null) {
+        updateRoutes();
+      }
+    }
+  }
+
+  /** Declares a queue, unless it exists. */
+  public void declareQueue(String queue) {
+    Objects.requireNonNull(queue, "queue can't be null");
+    queues.computeIfAbsent(queue, q -> new LinkedTransferQueue<>());
+  }
+
+  /**
+   * Deletes a queue and its bindings, dropping the messages in it. Its consumers are cancelled, and
+   * the deliveries they requeue are dropped as well.
+   */
+  public void deleteQueue(String queue) {
+    Objects.requireNonNull(queue, "queue can't be null");
+    LinkedTransferQueue<QueuedMessage> deleted;
+    synchronized (lock) {
+      deleted = queues.remove(queue);
+      for (Map<String, Set<String>> patterns : bindings.values()) {
+        patterns.values().forEach(bound -> bound.remove(queue));
+      }
+      updateRoutes();
+    }
+    if (deleted != null) {
+      for (Consumer consumer : new ArrayList<>(consumers)) {
+        if (consumer.messages == deleted) {
+          consumer.cancel();
+        }
+      }
+    }
+  }
+
+  /**
+   * Binds a queue to an exchange, both of which have to be declared.
+   *
+   * @param routingKey pattern of the routing keys, {@code *} matches one word and {@code #} any
+   *     number of words
+   */
+  public void bind(String queue, String exchange, String routingKey) {
+    Objects.requireNonNull(queue, "queue can't be null");
+    Objects.requireNonNull(exchange, "exchange can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+    PreconditionUtils.checkArgument(queues.containsKey(queue), "No queue " + queue);
+    synchronized (lock) {
+      Map<String, Set<String>> patterns = bindings.get(exchange);
+      PreconditionUtils.checkArgument(patterns != null, "No exchange " + exchange);
+      if (patterns.computeIfAbsent(routingKey, k -> new HashSet<>()).add(queue)) {
+        updateRoutes();
+      }
+    }
+  }
+
+  /**
+   * Routes a message to the queues bound to the exchange by a matching pattern.
+   *
+   * @return the number of queues the message was routed to
+   * @throws IOException if the broker is closed or the exchange isn't declared
+   */
+  public int publish(
+      String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body)
+      throws IOException {
+    Objects.requireNonNull(exchange, "exchange can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+    Objects.requireNonNull(body, "body can't be null");
+    if (closed) {
+      throw new IOException("Embedded broker closed");
+    }
+    QueuedMessage message = new QueuedMessage(exchange, routingKey, properties, body, false);
+    if (DEFAULT_EXCHANGE.equals(exchange)) {
+      LinkedTransferQueue<QueuedMessage> queue = queues.get(routingKey);
+      if (queue == null) {
+        return 0;
+      }
+      queue.offer(message);
+      return 1;
+    }
+    TopicTrie<String> route = routes.get(exchange);
+    if (route == null) {
+      throw new IOException("No exchange " + exchange);
+    }
+    int routed = 0;
+    for (String name : route.match(routingKey)) {
+      LinkedTransferQueue<QueuedMessage> queue = queues.get(name);
+      if (queue != null) {
+        queue.offer(message);
+        routed++;
+      }
+    }
+    return routed;
+  }
+
+  /** @return the number of messages ready to be delivered from the queue */
+  public int getMessageCount(String queue) {
+    LinkedTransferQueue<QueuedMessage> messages = queues.get(queue);
+    return messages == null ? 0 : messages.size();
+  }
+
+  /**
+   * Starts a consumer of a declared queue, which hands the messages to the handler on a thread of
+   * its own. The handler has to ack or reject every delivery, up to {@code prefetch} of which can
+   * be outstanding.
+   */
+  Consumer consume(String queue, int prefetch, DeliveryHandler handler) {
+    Objects.requireNonNull(handler, "handler can't be null");
+    PreconditionUtils.checkArgument(
+        prefetch >= 1, "prefetch needs to be greater than or equal to 1");
+    LinkedTransferQueue<QueuedMessage> messages = queues.get(queue);
+    PreconditionUtils.checkArgument(messages != null, "No queue " + queue);
+    PreconditionUtils.checkArgument(!closed, "Embedded broker closed");
+    Consumer consumer = new Consumer(queue, messages, prefetch, handler);
+    consumers.add(consumer);
+    consumer.stopped.whenComplete((v, e) -> consumers.remove(consumer));
+    consumerThreads.execute(consumer);
+    return consumer;
+  }
+
+  /** Cancels all consumers and drops all messages. */
+  @Override
+  public void close() {
+    closed = true;
+    for (Consumer consumer : new ArrayList<>(consumers)) {
+      consumer.cancel();
+    }
+    consumerThreads.shutdownNow();
+    queues.clear();
+  }
+
+  /** Rebuilds the routes from the bindings, to be read without locking by publishers. */
+  @GuardedBy("lock")
+  private void updateRoutes() {
+    Map<String, TopicTrie<String>> updated = new HashMap<>();
+    for (Map.Entry<String, Map<String, Set<String>>> exchange : bindings.entrySet()) {
+      TopicTrie<String> trie = new TopicTrie<>();
+      for (Map.Entry<String, Set<String>> pattern : exchange.getValue().entrySet()) {
+        for (String queue : pattern.getValue()) {
+          trie.add(pattern.getKey(), queue);
+        }
+      }
+      updated.put(exchange.getKey(), trie);
+    }
+    routes = Collections.unmodifiableMap(updated);
+  }
+
+  /** Handles the deliveries of a consumer. */
+  @FunctionalInterface
+  interface DeliveryHandler {
+    void handle(Delivery delivery);
+  }
+
+  /** A message waiting in a queue, which may be routed to several. */
+  private static final class QueuedMessage {
+    private final String exchange;
+    private final String routingKey;
+    private final AMQP.BasicProperties properties;
+    private final byte[] body;
+    private final boolean redelivered;
+
+    private QueuedMessage(
+        String exchange,
+        String routingKey,
+        AMQP.BasicProperties properties,
+        byte[] body,
+        boolean redelivered) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.properties = properties;
+      this.body = body;
+      this.redelivered = redelivered;
+    }
+  }
+
+  /** A message delivered to a consumer, to be acked or rejected once. */
+  final class Delivery {
+
+    private final Consumer consumer;
+    private final QueuedMessage message;
+    private final Envelope envelope;
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    private Delivery(Consumer consumer, QueuedMessage message, long deliveryTag) {
+      this.consumer = consumer;
+      this.message = message;
+      this.envelope =
+          new Envelope(deliveryTag, message.redelivered, message.exchange, message.routingKey);
+    }
+
+    Envelope getEnvelope() {
+      return envelope;
+    }
+
+    AMQP.BasicProperties getProperties() {
+      return message.properties;
+    }
+
+    byte[] getBody() {
+      return message.body;
+    }
+
+    void ack() {
+      if (settled.compareAndSet(false, true)) {
+        consumer.unsettled.remove(this);
+        consumer.credits.release();
+      }
+    }
+
+    /**
+     * @param requeue whether to put the message back at the tail of the queue or drop it, which it
+     *     is anyway once the queue was deleted
+     */
+    void reject(boolean requeue) {
+      if (settled.compareAndSet(false, true)) {
+        consumer.unsettled.remove(this);
+        if (requeue && queues.get(consumer.queue) == consumer.messages) {
+          consumer.messages.offer(
+              new QueuedMessage(
+                  message.exchange, message.routingKey, message.properties, message.body, true));
+        }
+        consumer.credits.release();
+      }
+    }
+  }
+
+  /** Takes messages from a queue while it has credit, one per unsettled delivery. */
+  final class Consumer implements Runnable {
+
+    private final String queue;
+    private final LinkedTransferQueue<QueuedMessage> messages;
+    private final int prefetch;
+    private final DeliveryHandler handler;
+    private final Semaphore credits;
+    private final Set<Delivery> unsettled = ConcurrentHashMap.newKeySet();
+    private final AtomicLong deliveryTags = new AtomicLong();
+    private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+    private volatile boolean cancelled;
+
+    private Consumer(
+        String queue,
+        LinkedTransferQueue<QueuedMessage> messages,
+        int prefetch,
+        DeliveryHandler handler) {
+      this.queue = queue;
+      this.messages = messages;
+      this.prefetch = prefetch;
+      this.handler = handler;
+      this.credits = new Semaphore(prefetch);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!cancelled) {
+          if (!credits.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            continue;
+          }
+          QueuedMessage message = messages.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+          if (message == null || cancelled) {
+            if (message != null) {
+              messages.offer(message);
+            }
+            credits.release();
+            continue;
+          }
+          Delivery delivery = new Delivery(this, message, deliveryTags.incrementAndGet());
+          unsettled.add(delivery);
+          try {
+            handler.handle(delivery);
+          } catch (RuntimeException e) {
+            LOG.warn(
+                "Error handling message [{}] from queue [{}]. Reject and send a nack",
+                delivery.getEnvelope().getDeliveryTag(),
+                queue,
+                e);
+            delivery.reject(false);
+          }
+        }
+        // waits for the deliveries still outstanding to be settled, requeuing those that aren't
+        if (!credits.tryAcquire(prefetch, settleTimeoutMillis, TimeUnit.MILLISECONDS)) {
+          LOG.warn(
+              "{} deliveries from queue [{}] not settled after {} ms, requeuing them",
+              unsettled.size(),
+              queue,
+              settleTimeoutMillis);
+          for (Delivery delivery : new ArrayList<>(unsettled)) {
+            delivery.reject(true);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        stopped.complete(null);
+      }
+    }
+
+    /**
+     * Stops taking messages from the queue, the future completes once the outstanding deliveries
+     * are settled, or requeued if that takes longer than the settle timeout of the broker.
+     */
+    CompletableFuture<Void> cancel() {
+      cancelled = true;
+      return stopped;
+    }
+
+    CompletableFuture<Void> whenStopped() {
+      return stopped;
+    }
+  }
+}
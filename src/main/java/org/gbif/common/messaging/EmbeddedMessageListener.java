@@ -0,0 +1,316 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.Message;
+import org.gbif.common.messaging.api.MessageCallback;
+import org.gbif.common.messaging.api.MessageRegistry;
+import org.gbif.common.messaging.codec.MessageCodecs;
+import org.gbif.utils.PreconditionUtils;
+import org.gbif.utils.concurrent.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Listens for messages on the queues of an {@link EmbeddedBroker}, like a {@link MessageListener}
+ * does on a RabbitMQ server. Messages are decoded and acked the same way: a message which can't
+ * be decoded or whose callback throws is rejected without being requeued.
+ */
+@ThreadSafe
+public class EmbeddedMessageListener implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EmbeddedMessageListener.class);
+  private static final int DEFAULT_PREFETCH_COUNT = 50;
+  private final EmbeddedBroker broker;
+  private final MessageRegistry registry;
+  private final MessageCodecs codecs;
+  private final int prefetchCount;
+
+  // Map queue -> how to start another consumer, so queues can be resumed
+  @GuardedBy("this")
+  private final Map<String, Supplier<ListenerConsumer>> queueToStarter = new HashMap<>();
+
+  @GuardedBy("this")
+  private final Map<String, List<ListenerConsumer>> queueToConsumers = new HashMap<>();
+
+  // Map queue -> number of consumers when it was paused
+  @GuardedBy("this")
+  private final Map<String, Integer> pausedQueues = new HashMap<>();
+
+  /** Uses a default {@link ObjectMapper} and the {@link DefaultMessageRegistry}. */
+  public EmbeddedMessageListener(EmbeddedBroker broker) {
+    this(broker, new DefaultMessageRegistry(), new ObjectMapper(), DEFAULT_PREFETCH_COUNT);
+  }
+
+  public EmbeddedMessageListener(
+      EmbeddedBroker broker, MessageRegistry registry, ObjectMapper mapper) {
+    this(broker, registry, mapper, DEFAULT_PREFETCH_COUNT);
+  }
+
+  /**
+   * @param prefetchCount of every consumer started by {@link #listen(String, String, String, int,
+   *     MessageCallback)}, i.e. how many messages it takes from the queue ahead of its callback
+   */
+  public EmbeddedMessageListener(
+      EmbeddedBroker broker, MessageRegistry registry, ObjectMapper mapper, int prefetchCount) {
+    this.broker = Objects.requireNonNull(broker, "broker can't be null");
+    this.registry = Objects.requireNonNull(registry, "registry can't be null");
+    Objects.requireNonNull(mapper, "mapper can't be null");
+    PreconditionUtils.checkArgument(
+        prefetchCount >= 1, "prefetchCount needs to be greater than or equal to 1");
+    this.prefetchCount = prefetchCount;
+
+    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    this.codecs = MessageCodecs.withDefaults(mapper);
+  }
+
+  /** @return the codecs messages are decoded with, custom codecs can be registered here */
+  public MessageCodecs getCodecs() {
+    return codecs;
+  }
+
+  /** @see MessageListener#listen(String, int, MessageCallback) */
+  public <T extends Message> void listen(
+      String queue, int numberOfThreads, MessageCallback<T> callback) {
+    Objects.requireNonNull(callback, "callback can't be null");
+
+    Optional<String> routingKey = registry.getGenericRoutingKey(callback.getMessageClass());
+    PreconditionUtils.checkArgument(routingKey.isPresent(), "The message needs to be registered");
+
+    listen(queue, routingKey.get(), numberOfThreads, callback);
+  }
+
+  /** @see MessageListener#listen(String, String, int, MessageCallback) */
+  public <T extends Message> void listen(
+      String queue, String routingKey, int numberOfThreads, MessageCallback<T> callback) {
+    Objects.requireNonNull(callback, "callback can't be null");
+
+    Optional<String> exchange = registry.getExchange(callback.getMessageClass());
+    PreconditionUtils.checkArgument(exchange.isPresent(), "The message needs to be registered");
+
+    listen(queue, routingKey, exchange.get(), numberOfThreads, callback);
+  }
+
+  /**
+   * Declares the exchange and queue, binds them and starts as many consumers, each running its
+   * callbacks one at a time on a thread of its own.
+   *
+   * @see MessageListener#listen(String, String, String, int, MessageCallback)
+   */
+  public <T> void listen(
+      String queue,
+      String routingKey,
+      String exchange,
+      int numberOfThreads,
+      MessageCallback<T> callback) {
+    Objects.requireNonNull(callback, "callback can't be null");
+    PreconditionUtils.checkArgument(
+        numberOfThreads >= 1, "numberOfThreads needs to be greater than or equal to 1");
+    declare(queue, routingKey, exchange);
+
+    MessageDecoder<T> decoder = new MessageDecoder<>(callback.getMessageClass(), codecs);
+    start(
+        queue,
+        numberOfThreads,
+        () ->
+            new ListenerConsumer(
+                queue,
+                prefetchCount,
+                Executors.newSingleThreadExecutor(new NamedThreadFactory(queue + "-")),
+                decoder,
+                callback));
+  }
+
+  /** @see MessageListener#listenConcurrently(String, int, MessageCallback) */
+  public <T extends Message> void listenConcurrently(
+      String queue, int maxInFlight, MessageCallback<T> callback) {
+    Objects.requireNonNull(callback, "callback can't be null");
+
+    Optional<String> routingKey = registry.getGenericRoutingKey(callback.getMessageClass());
+    Optional<String> exchange = registry.getExchange(callback.getMessageClass());
+    PreconditionUtils.checkArgument(
+        routingKey.isPresent() && exchange.isPresent(), "The message needs to be registered");
+
+    listenConcurrently(queue, routingKey.get(), exchange.get(), maxInFlight, callback);
+  }
+
+  /**
+   * Starts a single consumer with a prefetch count of {@code maxInFlight}, which runs every
+   * callback on a virtual thread of its own.
+   *
+   * @see MessageListener#listenConcurrently(String, String, String, int, MessageCallback)
+   */
+  public <T> void listenConcurrently(
+      String queue,
+      String routingKey,
+      String exchange,
+      int maxInFlight,
+      MessageCallback<T> callback) {
+    Objects.requireNonNull(callback, "callback can't be null");
+    PreconditionUtils.checkArgument(
+        maxInFlight >= 1, "maxInFlight needs to be greater than or equal to 1");
+    declare(queue, routingKey, exchange);
+
+    MessageDecoder<T> decoder = new MessageDecoder<>(callback.getMessageClass(), codecs);
+    start(
+        queue,
+        1,
+        () ->
+            new ListenerConsumer(
+                queue,
+                maxInFlight,
+                VirtualThreads.newThreadPerTaskExecutor(queue + "-"),
+                decoder,
+                callback));
+  }
+
+  /** @return the number of consumers of the queue, 0 if it isn't listened to or is paused */
+  public synchronized int getConsumerCount(String queue) {
+    List<ListenerConsumer> consumers = queueToConsumers.get(queue);
+    return consumers == null ? 0 : consumers.size();
+  }
+
+  /**
+   * Cancels the consumers of the queue, which finish the callbacks they started. The messages
+   * left in the queue are kept for when it is resumed.
+   */
+  public synchronized void pauseQueue(String queue) {
+    LOG.debug("Pausing queue {}", queue);
+    List<ListenerConsumer> consumers = queueToConsumers.remove(queue);
+    if (consumers == null || consumers.isEmpty()) {
+      LOG.debug("No consumers found for queue {} to pause", queue);
+      return;
+    }
+    pausedQueues.put(queue, consumers.size());
+    consumers.forEach(ListenerConsumer::stop);
+  }
+
+  /** Resumes a queue paused by {@link #pauseQueue(String)} with as many consumers as it had. */
+  public synchronized void resumeQueue(String queue) {
+    Integer consumers = pausedQueues.remove(queue);
+    if (consumers == null) {
+      LOG.debug("Queue {} isn't paused", queue);
+      return;
+    }
+    LOG.info("Resuming queue {} with {} consumers", queue, consumers);
+    start(queue, consumers, queueToStarter.get(queue));
+  }
+
+  /** Cancels all consumers, leaving the broker and the messages in its queues as they are. */
+  @Override
+  public synchronized void close() {
+    for (List<ListenerConsumer> consumers : queueToConsumers.values()) {
+      consumers.forEach(ListenerConsumer::stop);
+    }
+    queueToConsumers.clear();
+    queueToStarter.clear();
+    pausedQueues.clear();
+  }
+
+  private void declare(String queue, String routingKey, String exchange) {
+    Objects.requireNonNull(queue, "queue can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+    Objects.requireNonNull(exchange, "exchange can't be null");
+    broker.declareExchange(exchange);
+    broker.declareQueue(queue);
+    broker.bind(queue, exchange, routingKey);
+  }
+
+  private synchronized void start(
+      String queue, int consumers, Supplier<ListenerConsumer> starter) {
+    queueToStarter.put(queue, starter);
+    List<ListenerConsumer> started =
+        queueToConsumers.computeIfAbsent(queue, q -> new ArrayList<>());
+    for (int i = 0; i < consumers; i++) {
+      started.add(starter.get());
+    }
+  }
+
+  /** A consumer of the broker, handing its deliveries to the callback on an executor. */
+  private final class ListenerConsumer {
+
+    private final ExecutorService executor;
+    private final EmbeddedBroker.Consumer consumer;
+
+    private <T> ListenerConsumer(
+        String queue,
+        int prefetch,
+        ExecutorService executor,
+        MessageDecoder<T> decoder,
+        MessageCallback<T> callback) {
+      this.executor = executor;
+      this.consumer =
+          broker.consume(queue, prefetch, delivery -> dispatch(delivery, decoder, callback));
+    }
+
+    /** Hands the callback to the executor, requeuing messages which can't be handed over. */
+    private <T> void dispatch(
+        EmbeddedBroker.Delivery delivery, MessageDecoder<T> decoder, MessageCallback<T> callback) {
+      try {
+        executor.execute(() -> handle(delivery, decoder, callback));
+      } catch (RejectedExecutionException e) {
+        LOG.warn(
+            "Couldn't hand message [{}] to executor, requeuing",
+            delivery.getEnvelope().getDeliveryTag(),
+            e);
+        delivery.reject(true);
+      }
+    }
+
+    private <T> void handle(
+        EmbeddedBroker.Delivery delivery, MessageDecoder<T> decoder, MessageCallback<T> callback) {
+      T message =
+          decoder.decode(delivery.getEnvelope(), delivery.getProperties(), delivery.getBody());
+      if (message == null) {
+        delivery.reject(false);
+        return;
+      }
+      try {
+        callback.handleMessage(message);
+      } catch (Exception e) {
+        LOG.warn(
+            "Error handling message [{}] of type [{}]. Reject and send a nack",
+            delivery.getEnvelope().getDeliveryTag(),
+            message.getClass().getSimpleName(),
+            e);
+        delivery.reject(false);
+        return;
+      }
+      delivery.ack();
+    }
+
+    /** Cancels the consumer and shuts the executor down once the callbacks finished. */
+    private void stop() {
+      consumer.cancel().whenComplete((v, e) -> executor.shutdown());
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.Message;
+import org.gbif.common.messaging.api.MessagePublisher;
+import org.gbif.common.messaging.api.MessageRegistry;
+import org.gbif.common.messaging.codec.MessageCodecs;
+import org.gbif.common.messaging.config.PublisherConfiguration;
+import org.gbif.utils.PreconditionUtils;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.MessageProperties;
+
+/**
+ * Publishes messages to an {@link EmbeddedBroker}, in place of a {@link DefaultMessagePublisher}.
+ * Messages are encoded exactly like the latter does, configured by the same {@link
+ * PublisherConfiguration}, but its connection, outbox and journal options don't apply. Sends
+ * complete once the message is in its queues.
+ */
+@ThreadSafe
+public class EmbeddedMessagePublisher implements MessagePublisher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EmbeddedMessagePublisher.class);
+  private static final JavaType OBJECT_TYPE =
+      TypeFactory.defaultInstance().constructType(Object.class);
+  /** Replies are taken from the reply queue as soon as they arrive. */
+  private static final int REPLY_PREFETCH = Integer.MAX_VALUE;
+
+  private final EmbeddedBroker broker;
+  private final MessageRegistry registry;
+  private final ObjectMapper mapper;
+  private final MessageEncoder encoder;
+  private final String replyQueue = "embedded.reply-to." + UUID.randomUUID();
+  private final ConcurrentMap<String, PendingCall> pending = new ConcurrentHashMap<>();
+  private final EmbeddedBroker.Consumer replies;
+
+  /** Uses a default {@link ObjectMapper} and the {@link DefaultMessageRegistry}. */
+  public EmbeddedMessagePublisher(EmbeddedBroker broker) throws IOException {
+    this(broker, new DefaultMessageRegistry(), new ObjectMapper());
+  }
+
+  public EmbeddedMessagePublisher(
+      EmbeddedBroker broker, MessageRegistry registry, ObjectMapper mapper) throws IOException {
+    this(broker, registry, mapper, new PublisherConfiguration());
+  }
+
+  /**
+   * Declares the exchanges of all registered messages on the broker.
+   *
+   * @param config selecting the codec, compression and stamping of the messages
+   */
+  public EmbeddedMessagePublisher(
+      EmbeddedBroker broker,
+      MessageRegistry registry,
+      ObjectMapper mapper,
+      PublisherConfiguration config)
+      throws IOException {
+    this.broker = Objects.requireNonNull(broker, "broker can't be null");
+    this.registry = Objects.requireNonNull(registry, "registry can't be null");
+    this.mapper = Objects.requireNonNull(mapper, "mapper can't be null");
+    this.encoder = new MessageEncoder(mapper, config);
+
+    for (Class<? extends Message> message : registry.getRegisteredMessages()) {
+      broker.declareExchange(registry.getExchange(message).get());
+    }
+    broker.declareQueue(replyQueue);
+    replies =
+        broker.consume(
+            replyQueue,
+            REPLY_PREFETCH,
+            delivery -> {
+              reply(delivery.getProperties(), delivery.getBody());
+              delivery.ack();
+            });
+  }
+
+  /** @return the codecs messages can be published with */
+  public MessageCodecs getCodecs() {
+    return encoder.getCodecs();
+  }
+
+  @Override
+  public void send(Message message) throws IOException {
+    send(message, false);
+  }
+
+  @Override
+  public void send(Message message, boolean persistent) throws IOException {
+    Objects.requireNonNull(message, "message can't be null");
+
+    Optional<String> exchange = registry.getExchange(message.getClass());
+    PreconditionUtils.checkArgument(exchange.isPresent(), "No exchange found for Message");
+
+    send(message, exchange.get(), message.getRoutingKey(), persistent);
+  }
+
+  @Override
+  public void send(Message message, String exchange) throws IOException {
+    Objects.requireNonNull(message, "message can't be null");
+    send(message, exchange, message.getRoutingKey());
+  }
+
+  @Override
+  public void send(Object message, String exchange, String routingKey) throws IOException {
+    send(message, exchange, routingKey, false);
+  }
+
+  @Override
+  public void send(Object message, String exchange, String routingKey, boolean persistent)
+      throws IOException {
+    Objects.requireNonNull(message, "message can't be null");
+    Objects.requireNonNull(exchange, "exchange can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+    LOG.debug(
+        "Sending message of type [{}] to exchange [{}] using routing key [{}]",
+        message.getClass().getSimpleName(),
+        exchange,
+        routingKey);
+
+    OutgoingMessage outgoing = encoder.encode(message, exchange, routingKey, persistent, null);
+    broker.publish(exchange, routingKey, outgoing.getProperties(), outgoing.getBody());
+  }
+
+  @Override
+  public void replyToQueue(Object message, boolean persistent, String correlationId, String replyTo)
+      throws IOException {
+    Objects.requireNonNull(message, "message can't be null");
+    Objects.requireNonNull(correlationId, "correlationId can't be null");
+    Objects.requireNonNull(replyTo, "replyTo can't be null");
+
+    AMQP.BasicProperties properties =
+        (persistent ? MessageProperties.PERSISTENT_TEXT_PLAIN : MessageProperties.TEXT_PLAIN)
+            .builder()
+            .correlationId(correlationId)
+            .build();
+    broker.publish(
+        EmbeddedBroker.DEFAULT_EXCHANGE, replyTo, properties, mapper.writeValueAsBytes(message));
+  }
+
+  @Deprecated
+  @Override
+  public <T> T sendAndReceive(
+      Message message, String routingKey, boolean persistent, String correlationId)
+      throws IOException, InterruptedException {
+    Optional<String> exchange = registry.getExchange(message.getClass());
+    PreconditionUtils.checkArgument(exchange.isPresent(), "No exchange found for Message");
+    return sendAndReceive(message, exchange.get(), routingKey, persistent, correlationId);
+  }
+
+  @Deprecated
+  @Override
+  public <T> T sendAndReceive(
+      Object message, String exchange, String routingKey, boolean persistent, String correlationId)
+      throws IOException, InterruptedException {
+    Objects.requireNonNull(correlationId, "correlationId can't be null");
+    CompletableFuture<T> reply =
+        call(message, exchange, routingKey, persistent, correlationId, OBJECT_TYPE, null);
+    try {
+      return reply.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause()
+          : new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      reply.cancel(false);
+      throw e;
+    }
+  }
+
+  @Override
+  public <T> CompletableFuture<T> sendAndReceiveAsync(
+      Object message,
+      String exchange,
+      String routingKey,
+      boolean persistent,
+      JavaType responseType,
+      Duration timeout) {
+    Objects.requireNonNull(responseType, "responseType can't be null");
+    Objects.requireNonNull(timeout, "timeout can't be null");
+    try {
+      return call(
+          message,
+          exchange,
+          routingKey,
+          persistent,
+          UUID.randomUUID().toString(),
+          responseType,
+          timeout);
+    } catch (IOException | RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /** Publishes a request with the reply queue of this publisher and returns its future reply. */
+  @SuppressWarnings("unchecked")
+  private <T> CompletableFuture<T> call(
+      Object message,
+      String exchange,
+      String routingKey,
+      boolean persistent,
+      String correlationId,
+      JavaType responseType,
+      @Nullable Duration timeout)
+      throws IOException {
+    Objects.requireNonNull(message, "message can't be null");
+    Objects.requireNonNull(exchange, "exchange can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+
+    PendingCall call = new PendingCall(responseType);
+    PreconditionUtils.checkArgument(
+        pending.putIfAbsent(correlationId, call) == null,
+        "Already waiting for a reply to " + correlationId);
+    call.future.whenComplete((result, e) -> pending.remove(correlationId, call));
+    try {
+      OutgoingMessage request = encoder.encode(message, exchange, routingKey, persistent, null);
+      AMQP.BasicProperties properties =
+          request
+              .getProperties()
+              .builder()
+              .replyTo(replyQueue)
+              .correlationId(correlationId)
+              .build();
+      broker.publish(exchange, routingKey, properties, request.getBody());
+    } catch (IOException | RuntimeException e) {
+      call.future.completeExceptionally(e);
+      throw e;
+    }
+    if (timeout != null) {
+      call.future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    return (CompletableFuture<T>) call.future;
+  }
+
+  private void reply(AMQP.BasicProperties properties, byte[] body) {
+    String correlationId = properties.getCorrelationId();
+    PendingCall call = correlationId == null ? null : pending.get(correlationId);
+    if (call == null) {
+      // the call timed out or the reply is a duplicate
+      LOG.debug("Dropping reply with unknown correlation id [{}]", correlationId);
+      return;
+    }
+    try {
+      call.future.complete(
+          RpcClient.decode(encoder.getCodecs(), properties, body, call.responseType));
+    } catch (IOException | RuntimeException e) {
+      call.future.completeExceptionally(e);
+    }
+  }
+
+  /** Stops receiving replies, failing the calls still waiting for one, and deletes the queue. */
+  @Override
+  public void close() {
+    replies.cancel();
+    broker.deleteQueue(replyQueue);
+    for (PendingCall call : pending.values()) {
+      call.future.completeExceptionally(new IOException("Publisher closed"));
+    }
+  }
+
+  private static final class PendingCall {
+    private final JavaType responseType;
+    private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+    private PendingCall(JavaType responseType) {
+      this.responseType = responseType;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.utils.concurrent.NamedThreadFactory;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+
+/**
+ * The connections shared by all consumers of a {@link MessageListener}, which spreads their
+ * channels over them in turn.
+ *
+ * <p>The first connection is opened right away so wrong connection parameters fail early, the
+ * others when their first channel is created. Connections recover automatically if the factory
+ * is configured to; any which closed for good are replaced when a channel is next created on them.
+ *
+ * <p>The deliveries of all connections are dispatched by one thread pool, which runs the
+ * deliveries of a channel one after another, so there is at most one thread per channel.
+ */
+@ThreadSafe
+class ListenerConnections implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ListenerConnections.class);
+
+  private final ConnectionFactory connectionFactory;
+  private final ExecutorService dispatcher =
+      Executors.newCachedThreadPool(new NamedThreadFactory("listener"));
+  private final Lock lock = new ReentrantLock();
+
+  @GuardedBy("lock")
+  private final Connection[] connections;
+
+  @GuardedBy("lock")
+  private int next;
+
+  @GuardedBy("lock")
+  private boolean closed;
+
+  /**
+   * @param size the number of connections to spread channels over
+   * @throws IOException if the first connection can't be opened
+   */
+  ListenerConnections(ConnectionFactory connectionFactory, int size) throws IOException {
+    this.connectionFactory =
+        Objects.requireNonNull(connectionFactory, "connectionFactory can't be null");
+    connections = new Connection[size];
+    lock.lock();
+    try {
+      connections[0] = open(0);
+    } catch (IOException | RuntimeException e) {
+      dispatcher.shutdownNow();
+      throw e;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Creates a channel on the next connection, opening or replacing it if needed. */
+  Channel createChannel() throws IOException {
+    Connection connection;
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IOException("The listener is closed");
+      }
+      int index = next;
+      next = (next + 1) % connections.length;
+      connection = connections[index];
+      if (connection == null || isClosedForGood(connection)) {
+        connection = open(index);
+        connections[index] = connection;
+      }
+    } finally {
+      lock.unlock();
+    }
+    return connection.createChannel();
+  }
+
+  /** @return the number of connections opened so far */
+  int getOpenConnections() {
+    lock.lock();
+    try {
+      int open = 0;
+      for (Connection connection : connections) {
+        if (connection != null && connection.isOpen()) {
+          open++;
+        }
+      }
+      return open;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @GuardedBy("lock")
+  private Connection open(int index) throws IOException {
+    LOG.debug("Opening listener connection {}", index);
+    Connection connection;
+    try {
+      connection = connectionFactory.newConnection(dispatcher);
+    } catch (TimeoutException e) {
+      throw new IOException(e);
+    }
+    if (connection instanceof Recoverable) {
+      ((Recoverable) connection)
+          .addRecoveryListener(
+              recoverable -> LOG.info("Recovered listener connection {}", index));
+    }
+    return connection;
+  }
+
+  /** A connection that is closed and won't recover, as recovering ones are closed meanwhile. */
+  private static boolean isClosedForGood(Connection connection) {
+    return !connection.isOpen() && !(connection instanceof Recoverable);
+  }
+
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      for (Connection connection : connections) {
+        if (connection != null && connection.isOpen()) {
+          try {
+            connection.close();
+          } catch (Exception e) {
+            LOG.warn("Error closing connection", e);
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    dispatcher.shutdownNow();
+  }
+}
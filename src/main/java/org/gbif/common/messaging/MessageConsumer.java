@@ -14,28 +14,44 @@
 package org.gbif.common.messaging;
 
 import org.gbif.common.messaging.api.MessageCallback;
-import org.gbif.common.messaging.api.messages.RpcMessage;
+import org.gbif.common.messaging.codec.MessageCodecs;
 
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * This is the consumer used by {@link MessageListener} to handle AMQP deliveries. It deserializes
- * the content and forwards it to a callback. All messages are automatically either being rejected
- * or acked.
+ * the content with the codec matching its content type and forwards it to a callback. All messages
+ * are automatically either being rejected or acked.
+ *
+ * <p>Callbacks run on the thread delivering the messages, or are handed to an executor such as
+ * one starting a virtual thread per message, or the lane of {@link OrderedLanes} picked by the
+ * message. Acks and nacks of concurrent callbacks go straight to the channel, without taking any
+ * monitor which would pin a virtual thread.
+ *
+ * <p>Acks can be coalesced by an {@link AckCoalescer} into multiple acks, nacks and rejects are
+ * always sent right away. With a {@link RetryTopology}, failed messages are republished to be
+ * retried later and messages which can't be deserialized to the parking lot, and acked instead.
  *
  * <p>This class is thread-safe but stateful.
  *
@@ -43,29 +59,107 @@ import com.rabbitmq.client.Envelope;
  *     instance of this type
  */
 @ThreadSafe
-class MessageConsumer<T> extends DefaultConsumer {
+class MessageConsumer<T> extends DefaultConsumer implements StoppableConsumer {
 
   private static final Logger LOG = LoggerFactory.getLogger(MessageConsumer.class);
   private final MessageCallback<T> callback;
-  private final Class<T> clazz;
-  private final ObjectMapper mapper;
+  private final MessageDecoder<T> decoder;
+
+  /**
+   * Picks the executor running the callback of a message when they aren't run on the thread
+   * delivering the messages, with at most as many in flight as the semaphore has permits.
+   */
+  private final Function<? super T, ? extends Executor> executors;
+
+  private final Semaphore inFlight;
+
+  private volatile boolean draining;
+
+  private final int maxInFlight;
+
+  private final AckCoalescer acks;
+
+  private final PrefetchTuner prefetch;
+
+  private final RetryTopology retries;
+
+  private final Supplier<Predicate<MessageHeaders>> filter;
+
+  private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+
+  private final LongAdder handled = new LongAdder();
 
   MessageConsumer(
-      Class<T> clazz, Channel channel, ObjectMapper mapper, MessageCallback<T> callback) {
+      Class<T> clazz, Channel channel, MessageCodecs codecs, MessageCallback<T> callback) {
+    this(clazz, channel, codecs, callback, null, 0, null, null, null, null);
+  }
+
+  /**
+   * @param executors picking the executor to hand the callback of a message to, {@code null} to
+   *     run them on the delivering thread
+   * @param maxInFlight callbacks handed to the executors and not finished yet
+   * @param acks to coalesce the acks of the channel, {@code null} to ack every message on its own
+   * @param prefetch to record the time each callback takes, {@code null} if the prefetch count is
+   *     static
+   * @param retries to retry failed messages through, {@code null} to nack them
+   * @param filter supplying the filter of the queue, which supplies {@code null} while there is
+   *     none; {@code null} to never filter
+   */
+  MessageConsumer(
+      Class<T> clazz,
+      Channel channel,
+      MessageCodecs codecs,
+      MessageCallback<T> callback,
+      @Nullable Function<? super T, ? extends Executor> executors,
+      int maxInFlight,
+      @Nullable AckCoalescer acks,
+      @Nullable PrefetchTuner prefetch,
+      @Nullable RetryTopology retries,
+      @Nullable Supplier<Predicate<MessageHeaders>> filter) {
+    this(
+        new MessageDecoder<>(clazz, codecs),
+        channel,
+        callback,
+        executors,
+        maxInFlight,
+        acks,
+        prefetch,
+        retries,
+        filter);
+  }
+
+  /** Like the other constructors, with a decoder which may decode into several types. */
+  MessageConsumer(
+      MessageDecoder<T> decoder,
+      Channel channel,
+      MessageCallback<T> callback,
+      @Nullable Function<? super T, ? extends Executor> executors,
+      int maxInFlight,
+      @Nullable AckCoalescer acks,
+      @Nullable PrefetchTuner prefetch,
+      @Nullable RetryTopology retries,
+      @Nullable Supplier<Predicate<MessageHeaders>> filter) {
     super(channel);
     Objects.requireNonNull(channel, "channel can't be null");
 
-    this.clazz = Objects.requireNonNull(clazz, "clazz can't be null");
-    this.mapper = Objects.requireNonNull(mapper, "mapper can't be null");
+    this.decoder = Objects.requireNonNull(decoder, "decoder can't be null");
     this.callback = Objects.requireNonNull(callback, "callback can't be null");
+    this.executors = executors;
+    this.inFlight = executors == null ? null : new Semaphore(maxInFlight);
+    this.maxInFlight = maxInFlight;
+    this.acks = acks;
+    this.prefetch = prefetch;
+    this.retries = retries;
+    this.filter = filter;
   }
 
   /**
    * Delivery is being handled by deserializing the message body and creating a Runnable that's
    * being put on the ExecutorService.
    *
-   * <p>If deserializing fails for any reason we reject the message and don't requeue it, apart from
-   * that we ack the message no matter the outcome of the callback.
+   * <p>If deserializing fails for any reason we reject the message and don't requeue it, or park it
+   * if failed messages are retried. Apart from that we ack the message if the callback succeeds,
+   * and nack or retry it if it fails.
    *
    * <p>If submitting a job to the ExecutorService fails we send a rejection back to RabbitMQ.
    */
@@ -74,67 +168,212 @@ class MessageConsumer<T> extends DefaultConsumer {
       String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
       throws IOException {
     LOG.debug("Handling delivery: [{}]", envelope.getDeliveryTag());
+    if (draining) {
+      LOG.debug("Draining, leaving delivery [{}] to be requeued", envelope.getDeliveryTag());
+      return;
+    }
+    if (!MessageHeaders.accept(filter, properties)) {
+      LOG.debug("Skipping filtered delivery: [{}]", envelope.getDeliveryTag());
+      ack(envelope.getDeliveryTag());
+      return;
+    }
 
-    T object = deserializeBody(envelope, body);
+    T object = decoder.decode(envelope, properties, body);
     if (object == null) {
-      getChannel().basicReject(envelope.getDeliveryTag(), false);
+      discard(envelope, properties, body);
+    } else if (executors == null) {
+      handleCallback(envelope, object, properties, body); // which will ACK or NACK
     } else {
-      handleCallback(envelope, object, properties); // which will ACK or NACK
+      dispatch(envelope, object, properties, body);
     }
   }
 
-  /** This tries to deserialize the body of the message, returning the Message or null. */
-  private T deserializeBody(Envelope envelope, byte[] body) throws IOException {
-    T object = null;
+  /**
+   * Rejects a message which can't be deserialized, or parks it if failed messages are retried. If
+   * it can't be parked it is requeued, so it isn't lost.
+   */
+  private void discard(Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+      throws IOException {
+    if (retries != null) {
+      try {
+        retries.park(properties, body);
+        ack(envelope.getDeliveryTag());
+        return;
+      } catch (IOException e) {
+        LOG.warn("Failed to park message [{}], requeuing", envelope.getDeliveryTag(), e);
+        reject(envelope.getDeliveryTag(), true);
+        return;
+      }
+    }
+    reject(envelope.getDeliveryTag(), false);
+  }
+
+  /**
+   * Hands the callback to the executor, waiting while the maximum number of callbacks is in
+   * flight. Messages which can't be handed over are requeued, and messages no executor can be
+   * picked for, e.g. because their key fails, are discarded like those which can't be deserialized.
+   */
+  private void dispatch(
+      Envelope envelope, T object, AMQP.BasicProperties properties, byte[] body)
+      throws IOException {
+    Executor executor;
     try {
-      object = mapper.readValue(body, clazz);
-    } catch (JsonMappingException e) {
-      LOG.warn(
-          "Could not map message. Supposed to be of type [{}]. Routing key [{}], exchange [{}]",
-          clazz.getSimpleName(),
-          envelope.getRoutingKey(),
-          envelope.getExchange(),
-          e);
-    } catch (JsonParseException e) {
-      LOG.warn(
-          "Could not parse body of message. Supposed to be of type [{}]. Routing key [{}], exchange [{}]",
-          clazz.getSimpleName(),
-          envelope.getRoutingKey(),
-          envelope.getExchange(),
-          e);
-    } catch (IOException e) {
-      LOG.warn(
-          "Unable to read message over network. Supposed to be of type [{}]. Routing key [{}], exchange [{}]",
-          clazz.getSimpleName(),
-          envelope.getRoutingKey(),
-          envelope.getExchange(),
-          e);
+      executor = executors.apply(object);
+    } catch (RuntimeException e) {
+      LOG.warn("No executor for message [{}], discarding it", envelope.getDeliveryTag(), e);
+      discard(envelope, properties, body);
+      return;
+    }
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      reject(envelope.getDeliveryTag(), true);
+      return;
+    }
+    try {
+      executor.execute(
+          () -> {
+            try {
+              handleCallback(envelope, object, properties, body);
+            } finally {
+              inFlight.release();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      inFlight.release();
+      LOG.warn("Couldn't hand message [{}] to executor, requeuing", envelope.getDeliveryTag(), e);
+      reject(envelope.getDeliveryTag(), true);
+    }
+  }
+
+  private void reject(long deliveryTag, boolean requeue) throws IOException {
+    try {
+      getChannel().basicReject(deliveryTag, requeue);
+    } finally {
+      settled(deliveryTag);
+    }
+  }
+
+  /**
+   * Lets the coalesced acks pass a message which was nacked or rejected. Only done once it was
+   * sent, so a multiple ack can't overtake it.
+   */
+  private void settled(long deliveryTag) {
+    if (acks != null) {
+      acks.settled(deliveryTag);
+    }
+  }
+
+  /**
+   * Waits for the callbacks still in flight once the consumer is cancelled, e.g. when its queue is
+   * paused, and sends the coalesced acks, including those above deliveries left when draining.
+   */
+  @Override
+  public void handleCancelOk(String consumerTag) {
+    if (inFlight != null) {
+      inFlight.acquireUninterruptibly(maxInFlight);
+      inFlight.release(maxInFlight);
+    }
+    if (acks != null) {
+      acks.flushAll();
     }
-    return object; // will be null on any error
+    stopped.complete(null);
   }
 
-  /** Sets the correlationId and replyTo fields. */
-  private void setRpcData(RpcMessage rpcMessage, AMQP.BasicProperties properties) {
-    rpcMessage.setCorrelationId(properties.getCorrelationId());
-    rpcMessage.setReplyTo(properties.getReplyTo());
+  @Override
+  public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+    stopped.complete(null);
+  }
+
+  @Override
+  public CompletableFuture<Void> whenStopped() {
+    return stopped;
+  }
+
+  @Override
+  public void drain() {
+    draining = true;
+  }
+
+  @Override
+  public long getHandled() {
+    return handled.sum();
+  }
+
+  private void recordProcessing(long start) {
+    handled.increment();
+    if (prefetch != null) {
+      prefetch.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Republishes a failed message to be retried later, or parked after its last retry, and acks
+   * it once the broker confirmed the republished copy.
+   *
+   * @return false if it couldn't be republished
+   */
+  private boolean retry(
+      Envelope envelope, T object, AMQP.BasicProperties properties, byte[] body, Exception e) {
+    int retried = RetryTopology.getRetryCount(properties);
+    try {
+      if (retries.retry(envelope, properties, body)) {
+        LOG.warn(
+            "Error handling message [{}] of type [{}]. Retry {} scheduled",
+            envelope.getDeliveryTag(),
+            object.getClass().getSimpleName(),
+            retried + 1,
+            e);
+      } else {
+        LOG.warn(
+            "Error handling message [{}] of type [{}]. Parked after {} retries",
+            envelope.getDeliveryTag(),
+            object.getClass().getSimpleName(),
+            retried,
+            e);
+      }
+    } catch (IOException e1) {
+      LOG.warn("Failed to republish message [{}] to retry it", envelope.getDeliveryTag(), e1);
+      return false;
+    }
+    try {
+      ack(envelope.getDeliveryTag());
+    } catch (IOException e1) {
+      LOG.warn("Failure acknowledging retried message [{}]", envelope.getDeliveryTag(), e1);
+    }
+    return true;
+  }
+
+  private void ack(long deliveryTag) throws IOException {
+    if (acks == null) {
+      getChannel().basicAck(deliveryTag, false);
+    } else {
+      acks.ack(deliveryTag);
+    }
   }
 
   /** Callback method.*/
-  private void handleCallback(Envelope envelope, T object, AMQP.BasicProperties properties) {
+  private void handleCallback(
+      Envelope envelope, T object, AMQP.BasicProperties properties, byte[] body) {
     // Handle the message and send a Nack if the Callback throws an Exception
+    long start = System.nanoTime();
     try {
-      if (object instanceof RpcMessage) {
-        setRpcData((RpcMessage) object, properties);
-      }
       callback.handleMessage(object);
     } catch (Exception e) {
+      recordProcessing(start);
+      // a message that couldn't be moved to its retry queue is requeued rather than lost
+      boolean requeue = retries != null;
+      if (requeue && retry(envelope, object, properties, body, e)) {
+        return;
+      }
       LOG.warn(
           "Error handling message [{}] of type [{}]. Reject and send a nack",
           envelope.getDeliveryTag(),
           object.getClass().getSimpleName(),
           e);
       try {
-        getChannel().basicNack(envelope.getDeliveryTag(), false, false);
+        getChannel().basicNack(envelope.getDeliveryTag(), false, requeue);
       } catch (IOException e1) {
         LOG.warn(
             "Failed to nack message [{}] of type [{}]",
@@ -142,12 +381,15 @@ class MessageConsumer<T> extends DefaultConsumer {
             object.getClass().getSimpleName(),
             e1);
       }
+      settled(envelope.getDeliveryTag());
       return;
     }
 
+    recordProcessing(start);
+
     // Handling itself was successful now try to ack the message
     try {
-      getChannel().basicAck(envelope.getDeliveryTag(), false);
+      ack(envelope.getDeliveryTag());
     } catch (IOException e) {
       LOG.warn(
           "Failure acknowledging message [{}] of type [{}]",
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.messages.RpcMessage;
+import org.gbif.common.messaging.codec.MessageCodec;
+import org.gbif.common.messaging.codec.MessageCodecs;
+import org.gbif.common.messaging.codec.PayloadCompressor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+import java.util.Optional;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Deserializes the bodies of deliveries into messages of one type, or of the type a {@link
+ * TypeResolver} picks for every delivery, for the consumers of {@link MessageListener}.
+ *
+ * @param <T> type of message to deserialize the received content into
+ */
+@ThreadSafe
+class MessageDecoder<T> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageDecoder.class);
+  private static final String IDENTITY = "identity";
+  private final TypeResolver<T> types;
+  private final MessageCodecs codecs;
+
+  MessageDecoder(Class<T> clazz, MessageCodecs codecs) {
+    this(fixedType(clazz), codecs);
+  }
+
+  MessageDecoder(TypeResolver<T> types, MessageCodecs codecs) {
+    this.types = Objects.requireNonNull(types, "types can't be null");
+    this.codecs = Objects.requireNonNull(codecs, "codecs can't be null");
+  }
+
+  private static <T> TypeResolver<T> fixedType(Class<T> clazz) {
+    Objects.requireNonNull(clazz, "clazz can't be null");
+    return (envelope, properties) -> clazz;
+  }
+
+  /**
+   * Deserializes the body of a delivery, with the codec and compressor selected by its content
+   * type and encoding.
+   *
+   * @return the message or null if it couldn't be deserialized, which is logged
+   */
+  @Nullable
+  T decode(Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+    Class<? extends T> clazz = types.resolve(envelope, properties);
+    if (clazz == null) {
+      LOG.warn(
+          "Unknown type of message. Type [{}], routing key [{}], exchange [{}]",
+          properties.getType(),
+          envelope.getRoutingKey(),
+          envelope.getExchange());
+      return null;
+    }
+    T object = null;
+    try {
+      MessageCodec codec = codecs.forDecoding(properties.getContentType());
+      String encoding = properties.getContentEncoding();
+      if (encoding == null || IDENTITY.equalsIgnoreCase(encoding)) {
+        object = codec.decode(body, clazz);
+      } else {
+        Optional<PayloadCompressor> compressor = codecs.getCompressor(encoding);
+        if (!compressor.isPresent()) {
+          LOG.warn(
+              "Unknown content encoding [{}] of message of type [{}]. Routing key [{}], exchange [{}]",
+              encoding,
+              clazz.getSimpleName(),
+              envelope.getRoutingKey(),
+              envelope.getExchange());
+          return null;
+        }
+        // decompress while parsing, without holding the whole decompressed body in memory
+        try (InputStream in = compressor.get().decompress(new ByteArrayInputStream(body))) {
+          object = codec.decode(in, clazz);
+        }
+      }
+    } catch (JsonMappingException e) {
+      LOG.warn(
+          "Could not map message. Supposed to be of type [{}]. Routing key [{}], exchange [{}]",
+          clazz.getSimpleName(),
+          envelope.getRoutingKey(),
+          envelope.getExchange(),
+          e);
+    } catch (JsonParseException e) {
+      LOG.warn(
+          "Could not parse body of message. Supposed to be of type [{}]. Routing key [{}], exchange [{}]",
+          clazz.getSimpleName(),
+          envelope.getRoutingKey(),
+          envelope.getExchange(),
+          e);
+    } catch (IOException e) {
+      LOG.warn(
+          "Unable to read message over network. Supposed to be of type [{}]. Routing key [{}], exchange [{}]",
+          clazz.getSimpleName(),
+          envelope.getRoutingKey(),
+          envelope.getExchange(),
+          e);
+    }
+    if (object instanceof RpcMessage) {
+      setRpcData((RpcMessage) object, properties);
+    }
+    return object; // will be null on any error
+  }
+
+  /** Picks the class to deserialize a delivery into. */
+  @FunctionalInterface
+  interface TypeResolver<T> {
+
+    /** @return the class of the delivery, {@code null} if it isn't of any known type */
+    @Nullable
+    Class<? extends T> resolve(Envelope envelope, AMQP.BasicProperties properties);
+  }
+
+  /** Sets the correlationId and replyTo fields. */
+  private void setRpcData(RpcMessage rpcMessage, AMQP.BasicProperties properties) {
+    rpcMessage.setCorrelationId(properties.getCorrelationId());
+    rpcMessage.setReplyTo(properties.getReplyTo());
+  }
+}
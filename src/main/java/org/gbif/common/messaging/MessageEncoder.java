@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.codec.DictionaryCompressor;
+import org.gbif.common.messaging.codec.MessageCodec;
+import org.gbif.common.messaging.codec.MessageCodecs;
+import org.gbif.common.messaging.codec.PayloadCompressor;
+import org.gbif.common.messaging.config.PublisherConfiguration;
+import org.gbif.utils.PreconditionUtils;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.MessageProperties;
+
+/**
+ * Serializes messages into the bodies and properties they are published with, for the publishers.
+ * The counterpart of {@link MessageDecoder}.
+ */
+@ThreadSafe
+class MessageEncoder {
+
+  private static final int TRANSIENT_DELIVERY_MODE = 1;
+  private static final int PERSISTENT_DELIVERY_MODE = 2;
+  private final MessageCodecs codecs;
+  private final String defaultContentType;
+  private final String compression;
+  private final int compressionThresholdBytes;
+  private final boolean stampMessageType;
+  private final boolean stampHeaders;
+
+  /**
+   * @param mapper to base the default codecs on, which is configured to serialize empty beans
+   * @param config selecting the codec, compression and stamping of the messages
+   * @throws IOException if the compression dictionaries couldn't be loaded
+   */
+  MessageEncoder(ObjectMapper mapper, PublisherConfiguration config) throws IOException {
+    Objects.requireNonNull(mapper, "mapper can't be null");
+    Objects.requireNonNull(config, "config can't be null");
+    mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+    this.codecs = MessageCodecs.withDefaults(mapper);
+    if (config.compressionDictionaries != null) {
+      codecs.register(DictionaryCompressor.load(Paths.get(config.compressionDictionaries)));
+    }
+    this.defaultContentType = config.contentType;
+    this.compression = config.compression;
+    this.compressionThresholdBytes = config.compressionThresholdBytes;
+    this.stampMessageType = config.stampMessageType;
+    this.stampHeaders = config.stampHeaders;
+  }
+
+  MessageCodecs getCodecs() {
+    return codecs;
+  }
+
+  /**
+   * Serializes a message with the codec selected for its class, and compresses it if compression
+   * is enabled and the message is large enough. Its class, and its {@link MessageHeaders}, are
+   * stamped in its properties if enabled.
+   *
+   * @param customContentType of transient JSON messages, {@code null} for {@code text/plain}
+   * @throws IllegalArgumentException if the selected codec or compressor is not registered
+   */
+  OutgoingMessage encode(
+      Object message,
+      String exchange,
+      String routingKey,
+      boolean persistent,
+      @Nullable String customContentType)
+      throws IOException {
+    MessageCodec codec = codecs.forEncoding(message.getClass(), defaultContentType);
+    byte[] body = codec.encode(message);
+    AMQP.BasicProperties properties = getPublishProperties(persistent, codec, customContentType);
+    if (stampMessageType || stampHeaders) {
+      AMQP.BasicProperties.Builder stamped =
+          properties.builder().type(message.getClass().getName());
+      Map<String, Object> headers = stampHeaders ? MessageHeaders.of(message) : null;
+      if (headers != null && !headers.isEmpty()) {
+        stamped.headers(headers);
+      }
+      properties = stamped.build();
+    }
+    if (compression != null && body.length >= compressionThresholdBytes) {
+      Optional<PayloadCompressor> compressor = codecs.getCompressor(compression);
+      PreconditionUtils.checkArgument(
+          compressor.isPresent(), "No compressor registered for content encoding " + compression);
+      byte[] compressed = compressor.get().compress(message.getClass(), body);
+      // incompressible messages are sent as they are
+      if (compressed.length < body.length) {
+        body = compressed;
+        properties = properties.builder().contentEncoding(compressor.get().getEncoding()).build();
+      }
+    }
+    return new OutgoingMessage(exchange, routingKey, properties, body);
+  }
+
+  /**
+   * Properties used for regular sends. JSON messages keep the properties used before codecs were
+   * introduced, the others are labelled with the content type of their codec.
+   */
+  private AMQP.BasicProperties getPublishProperties(
+      boolean persistent, MessageCodec codec, @Nullable String customContentType) {
+    if (codec == codecs.getJson()) {
+      return getPublishProperties(persistent, customContentType);
+    }
+    return new BasicProperties.Builder()
+        .contentType(codec.getContentType())
+        .deliveryMode(persistent ? PERSISTENT_DELIVERY_MODE : TRANSIENT_DELIVERY_MODE)
+        .priority(0)
+        .build();
+  }
+
+  /** Properties used for JSON sends, honouring the custom content type of transient messages. */
+  private static AMQP.BasicProperties getPublishProperties(
+      boolean persistent, @Nullable String customContentType) {
+    if (persistent) {
+      return MessageProperties.PERSISTENT_TEXT_PLAIN;
+    }
+    if (customContentType != null) {
+      return new BasicProperties.Builder().contentType(customContentType).build();
+    }
+    return MessageProperties.TEXT_PLAIN;
+  }
+}
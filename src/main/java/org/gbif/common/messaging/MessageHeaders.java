@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.messages.DatasetBasedMessage;
+import org.gbif.common.messaging.api.messages.PipelineBasedMessage;
+import org.gbif.common.messaging.api.messages.PipelinesRunnerMessage;
+import org.gbif.common.messaging.api.messages.Platform;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * The metadata of a delivery which publishers stamp in its properties when configured to, see
+ * {@link org.gbif.common.messaging.config.PublisherConfiguration#stampHeaders}, so listeners can
+ * decide whether to handle a message without deserializing it, see {@link
+ * MessageListener#filterQueue}.
+ *
+ * <p>The class of a message is stamped in the {@code type} property, the dataset, attempt and
+ * execution of {@link DatasetBasedMessage dataset} and {@link PipelineBasedMessage pipeline}
+ * messages, the runner of {@link PipelinesRunnerMessage runner messages} and the platform of
+ * messages with a {@code getPlatform()} method in headers. Anything not stamped is empty.
+ */
+@Immutable
+public final class MessageHeaders {
+
+  public static final String DATASET_UUID = "datasetUuid";
+  public static final String ATTEMPT = "attempt";
+  public static final String EXECUTION_ID = "executionId";
+  public static final String RUNNER = "runner";
+  public static final String PLATFORM = "platform";
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageHeaders.class);
+
+  /** The public getPlatform() methods of message classes, as they share no interface. */
+  private static final ClassValue<Optional<Method>> PLATFORM_GETTERS =
+      new ClassValue<Optional<Method>>() {
+        @Override
+        protected Optional<Method> computeValue(Class<?> type) {
+          try {
+            Method getter = type.getMethod("getPlatform");
+            return getter.getReturnType() == Platform.class
+                ? Optional.of(getter)
+                : Optional.empty();
+          } catch (NoSuchMethodException e) {
+            return Optional.empty();
+          }
+        }
+      };
+
+  private final AMQP.BasicProperties properties;
+
+  MessageHeaders(AMQP.BasicProperties properties) {
+    this.properties = Objects.requireNonNull(properties, "properties can't be null");
+  }
+
+  /** @return the name of the class of the message */
+  public Optional<String> getType() {
+    return Optional.ofNullable(properties.getType());
+  }
+
+  public Optional<UUID> getDatasetUuid() {
+    try {
+      return get(DATASET_UUID).map(UUID::fromString);
+    } catch (IllegalArgumentException e) {
+      return Optional.empty();
+    }
+  }
+
+  public Optional<Integer> getAttempt() {
+    return getNumber(ATTEMPT).map(Number::intValue);
+  }
+
+  public Optional<Long> getExecutionId() {
+    return getNumber(EXECUTION_ID).map(Number::longValue);
+  }
+
+  public Optional<String> getRunner() {
+    return get(RUNNER);
+  }
+
+  public Optional<Platform> getPlatform() {
+    try {
+      return get(PLATFORM).flatMap(Platform::parse);
+    } catch (IllegalArgumentException e) {
+      return Optional.empty();
+    }
+  }
+
+  /** @return the header as a string, which is how the broker delivers strings */
+  public Optional<String> get(String name) {
+    Map<String, Object> headers = properties.getHeaders();
+    Object value = headers == null ? null : headers.get(name);
+    return value == null ? Optional.empty() : Optional.of(value.toString());
+  }
+
+  private Optional<Number> getNumber(String name) {
+    Map<String, Object> headers = properties.getHeaders();
+    Object value = headers == null ? null : headers.get(name);
+    return value instanceof Number ? Optional.of((Number) value) : Optional.empty();
+  }
+
+  /**
+   * @return whether the supplied filter accepts a delivery, also if there is no filter or it
+   *     fails
+   */
+  static boolean accept(
+      @Nullable Supplier<Predicate<MessageHeaders>> filter, AMQP.BasicProperties properties) {
+    Predicate<MessageHeaders> predicate = filter == null ? null : filter.get();
+    if (predicate == null) {
+      return true;
+    }
+    try {
+      return predicate.test(new MessageHeaders(properties));
+    } catch (RuntimeException e) {
+      LOG.warn("Message filter failed, handling the message", e);
+      return true;
+    }
+  }
+
+  /** @return the headers to stamp on the message, empty if it has none */
+  static Map<String, Object> of(Object message) {
+    Map<String, Object> headers = new HashMap<>();
+    if (message instanceof DatasetBasedMessage) {
+      put(headers, DATASET_UUID, ((DatasetBasedMessage) message).getDatasetUuid());
+    }
+    if (message instanceof PipelineBasedMessage) {
+      PipelineBasedMessage pipelineMessage = (PipelineBasedMessage) message;
+      put(headers, ATTEMPT, pipelineMessage.getAttempt());
+      put(headers, EXECUTION_ID, pipelineMessage.getExecutionId());
+    }
+    if (message instanceof PipelinesRunnerMessage) {
+      put(headers, RUNNER, ((PipelinesRunnerMessage) message).getRunner());
+    }
+    Optional<Method> platformGetter = PLATFORM_GETTERS.get(message.getClass());
+    if (platformGetter.isPresent()) {
+      try {
+        put(headers, PLATFORM, platformGetter.get().invoke(message));
+      } catch (ReflectiveOperationException e) {
+        LOG.debug("Couldn't get the platform of {}", message.getClass().getSimpleName(), e);
+      }
+    }
+    return headers.isEmpty() ? Collections.emptyMap() : headers;
+  }
+
+  private static void put(Map<String, Object> headers, String name, @Nullable Object value) {
+    if (value instanceof Integer || value instanceof Long) {
+      headers.put(name, value);
+    } else if (value != null) {
+      headers.put(name, value.toString());
+    }
+  }
+}
@@ -13,23 +13,46 @@
  */
 package org.gbif.common.messaging;
 
+import org.gbif.common.messaging.api.BatchMessageCallback;
 import org.gbif.common.messaging.api.Message;
 import org.gbif.common.messaging.api.MessageCallback;
 import org.gbif.common.messaging.api.MessageRegistry;
+import org.gbif.common.messaging.api.messages.DatasetBasedMessage;
+import org.gbif.common.messaging.codec.MessageCodecs;
+import org.gbif.common.messaging.config.ListenerConfiguration;
+import org.gbif.common.messaging.config.PublisherConfiguration;
 import org.gbif.utils.PreconditionUtils;
 import org.gbif.utils.concurrent.NamedThreadFactory;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,27 +60,48 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
 
 public class MessageListener implements AutoCloseable {
 
   private static final Logger LOG = LoggerFactory.getLogger(MessageListener.class);
   private static final int DEFAULT_PREFETCH_COUNT = 50;
+  /** The prefetch count is an unsigned short in AMQP. */
+  private static final int MAX_PREFETCH_COUNT = 65_535;
   private final int prefetchCount;
-  private final ConnectionFactory connectionFactory;
+  private final ListenerConnections connections;
   private final MessageRegistry registry;
-  private final ObjectMapper mapper;
-  // Keep track of connections/channels/executors created by listen(...) so we can close them
-  private final List<Connection> connections = Collections.synchronizedList(new ArrayList<>());
+  private final MessageCodecs codecs;
+  private final ListenerConfiguration configuration;
+  // Republishes the failed messages of all queues to be retried or parked
+  private final RetryChannel retryChannel;
+  // Flushes coalesced acks, adjusts prefetch counts and closes the channels of stopped consumers
+  private final ScheduledExecutorService scheduler;
+  // Runs the checks of the autoscaled queues, which block on the broker
+  private final ScheduledExecutorService autoscalingScheduler;
+  // Keep track of channels/executors created by listen(...) so we can close them
   private final List<Channel> channels = Collections.synchronizedList(new ArrayList<>());
   private final List<ExecutorService> executors = Collections.synchronizedList(new ArrayList<>());
-  // Map consumerTag -> Channel so consumers can be cancelled without closing the whole listener
-  private final Map<String, Channel> consumerTagToChannel =
+  // Map consumerTag -> consumer so consumers can be cancelled without closing the whole listener
+  private final Map<String, TrackedConsumer> consumerTagToConsumer =
       Collections.synchronizedMap(new HashMap<>());
   // Map queue -> list of consumerTags so we can pause/resume per-queue
   private final Map<String, List<String>> queueToConsumerTags =
       Collections.synchronizedMap(new HashMap<>());
+  // Map queue -> how to start another consumer, so queues can be scaled and resumed
+  private final Map<String, ConsumerStarter> queueToStarter =
+      Collections.synchronizedMap(new HashMap<>());
+  // Map queue -> filter of its messages, read by its consumers for every delivery
+  private final Map<String, AtomicReference<Predicate<MessageHeaders>>> queueToFilter =
+      new ConcurrentHashMap<>();
+  // Queues whose messages are handled in order, which can only have one consumer
+  private final Set<String> orderedQueues = ConcurrentHashMap.newKeySet();
+  // Map queue -> number of consumers when it was paused
+  private final Map<String, Integer> pausedQueues = Collections.synchronizedMap(new HashMap<>());
+  // Map queue -> messages handled by the consumers of the queue which were stopped
+  private final Map<String, LongAdder> queueToStoppedHandled = new ConcurrentHashMap<>();
+  // Map queue -> autoscaler of the queue
+  private final Map<String, QueueAutoscaler> queueToAutoscaler =
+      Collections.synchronizedMap(new HashMap<>());
 
   /**
    * Convenience constructor that uses a default {@link ObjectMapper} and the {@link
@@ -99,25 +143,75 @@ public class MessageListener implements AutoCloseable {
       ObjectMapper mapper,
       int prefetchCount)
       throws IOException {
+    this(connectionParameters, registry, mapper, prefetchCount, new ListenerConfiguration());
+  }
+
+  /** Builds a new MessagingService with the provided components and tuning options. */
+  public MessageListener(
+      ConnectionParameters connectionParameters,
+      MessageRegistry registry,
+      ObjectMapper mapper,
+      int prefetchCount,
+      ListenerConfiguration configuration)
+      throws IOException {
     Objects.requireNonNull(connectionParameters, "connectionParameters can't be null");
-    this.mapper = Objects.requireNonNull(mapper, "mapper can't be null");
+    Objects.requireNonNull(mapper, "mapper can't be null");
     this.registry = Objects.requireNonNull(registry, "registry can't be null");
+    this.configuration = Objects.requireNonNull(configuration, "configuration can't be null");
     PreconditionUtils.checkArgument(
         prefetchCount >= 1, "prefetchCount needs to be greater than or equal to 1");
+    PreconditionUtils.checkArgument(
+        configuration.ackCoalescing >= 0, "ackCoalescing needs to be greater than or equal to 0");
+    PreconditionUtils.checkArgument(
+        configuration.ackCoalescing == 0 || configuration.ackFlushIntervalMs > 0,
+        "ackFlushIntervalMs needs to be greater than 0");
+    PreconditionUtils.checkArgument(
+        !configuration.adaptivePrefetch
+            || (configuration.minPrefetch >= 1
+                && configuration.minPrefetch <= configuration.maxPrefetch
+                && configuration.maxPrefetch <= MAX_PREFETCH_COUNT),
+        "minPrefetch and maxPrefetch need to be between 1 and " + MAX_PREFETCH_COUNT);
+    PreconditionUtils.checkArgument(
+        !configuration.adaptivePrefetch || configuration.prefetchAdjustIntervalMs > 0,
+        "prefetchAdjustIntervalMs needs to be greater than 0");
+    PreconditionUtils.checkArgument(
+        configuration.retryAttempts >= 0, "retryAttempts needs to be greater than or equal to 0");
+    PreconditionUtils.checkArgument(
+        configuration.retryAttempts == 0
+            || (configuration.retryInitialDelayMs > 0 && configuration.retryBackoffMultiplier >= 1),
+        "retryInitialDelayMs needs to be greater than 0 and retryBackoffMultiplier at least 1");
     this.prefetchCount = prefetchCount;
 
-    this.mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    this.codecs = MessageCodecs.withDefaults(mapper);
 
-    LOG.info("Connecting to AMQP broker {}", connectionParameters);
-    connectionFactory = connectionParameters.getConnectionFactory();
+    PreconditionUtils.checkArgument(
+        configuration.connections >= 1, "connections needs to be at least 1");
+
+    LOG.info(
+        "Connecting to AMQP broker {} using up to {} connection(s)",
+        connectionParameters,
+        configuration.connections);
     // This ensures that the connection is valid, otherwise it'd throw an exception now
-    Connection connection = null;
-    try {
-      connection = connectionFactory.newConnection();
-    } catch (TimeoutException e) {
-      throw new IOException(e);
-    }
-    connection.close(); // we don't store this or reuse it
+    connections =
+        new ListenerConnections(
+            connectionParameters.getConnectionFactory(), configuration.connections);
+
+    retryChannel = new RetryChannel(connections::createChannel);
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("listener-scheduler"));
+    executors.add(scheduler);
+    autoscalingScheduler =
+        Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("listener-autoscaler"));
+    executors.add(autoscalingScheduler);
+  }
+
+  /**
+   * @return the codecs messages are decoded with by their content type, custom codecs can be
+   *     registered here before listening
+   */
+  public MessageCodecs getCodecs() {
+    return codecs;
   }
 
   /**
@@ -191,85 +285,830 @@ public class MessageListener implements AutoCloseable {
     PreconditionUtils.checkArgument(
         numberOfThreads >= 1, "numberOfThreads needs to be greater than or equal to 1");
 
-    Connection connection = null;
-    Channel channel = null;
-    // Create and track the executor before connecting so it is always cleaned up on failure
-    ExecutorService executor =
-        Executors.newFixedThreadPool(numberOfThreads, new NamedThreadFactory(queue));
+    RetryTopology retries = retryTopology(queue);
+    declare(queue, routingKey, exchange, retries);
+
+    LOG.debug(
+        "Starting to listen on exchange [{}], queue [{}] and routing key [{}] for messages of type [{}]",
+        exchange,
+        queue,
+        routingKey,
+        callback.getMessageClass().getSimpleName());
+
+    start(
+        queue,
+        numberOfThreads,
+        (channel, tasks) -> {
+          PrefetchTuner prefetch = tunePrefetch(channel, prefetchCount, 1, tasks);
+          MessageConsumer<T> consumer =
+              new MessageConsumer<T>(
+                  callback.getMessageClass(),
+                  channel,
+                  codecs,
+                  callback,
+                  null,
+                  0,
+                  coalesceAcks(channel, tasks),
+                  prefetch,
+                  retries,
+                  filter(queue));
+          return new TrackedConsumer(
+              channel, consumer, prefetchCount(prefetch, prefetchCount), tasks);
+        });
+  }
+
+  /**
+   * Can be used to listen for a certain type of message with many callbacks in flight, such as
+   * callbacks waiting on remote services. This will use the default generic routing key to bind to
+   * the default exchange as provided from the message registry.
+   *
+   * @see #listenConcurrently(String, String, String, int, MessageCallback)
+   */
+  public <T extends Message> void listenConcurrently(
+      String queue, int maxInFlight, MessageCallback<T> callback) throws IOException {
+    Objects.requireNonNull(callback, "callback can't be null");
+
+    Optional<String> routingKey = registry.getGenericRoutingKey(callback.getMessageClass());
+    Optional<String> exchange = registry.getExchange(callback.getMessageClass());
+    PreconditionUtils.checkArgument(
+        routingKey.isPresent() && exchange.isPresent(), "The message needs to be registered");
+
+    listenConcurrently(queue, routingKey.get(), exchange.get(), maxInFlight, callback);
+  }
+
+  /**
+   * Like {@link #listen(String, String, String, int, MessageCallback)}, but runs every callback on
+   * a virtual thread of its own instead of on a fixed number of threads with a channel each. Up to
+   * {@code maxInFlight} callbacks run at a time, all messages come from one channel with a
+   * matching prefetch count, so thousands of callbacks can wait on I/O without as many platform
+   * threads. On JVMs without virtual threads the callbacks run on a cached thread pool.
+   *
+   * @param queue to bind to
+   * @param routingKey to use to bind the queue to the exchange
+   * @param exchange to bind to
+   * @param maxInFlight the number of callbacks to run concurrently
+   * @param callback to execute
+   * @param <T> of the message
+   * @throws IOException if there was any communication exception
+   */
+  public <T> void listenConcurrently(
+      String queue,
+      String routingKey,
+      String exchange,
+      int maxInFlight,
+      MessageCallback<T> callback)
+      throws IOException {
+    Objects.requireNonNull(queue, "queue can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+    Objects.requireNonNull(callback, "callback can't be empty");
+    PreconditionUtils.checkArgument(
+        maxInFlight >= 1, "maxInFlight needs to be greater than or equal to 1");
+
+    RetryTopology retries = retryTopology(queue);
+    declare(queue, routingKey, exchange, retries);
+    ExecutorService callbacks = VirtualThreads.newThreadPerTaskExecutor(queue + "-");
+    executors.add(callbacks);
+
+    LOG.debug(
+        "Starting to listen concurrently on exchange [{}], queue [{}] and routing key [{}] for messages of type [{}]",
+        exchange,
+        queue,
+        routingKey,
+        callback.getMessageClass().getSimpleName());
+
+    int initialPrefetch = Math.min(maxInFlight, MAX_PREFETCH_COUNT);
+    start(
+        queue,
+        1,
+        (channel, tasks) -> {
+          PrefetchTuner prefetch = tunePrefetch(channel, initialPrefetch, maxInFlight, tasks);
+          MessageConsumer<T> consumer =
+              new MessageConsumer<T>(
+                  callback.getMessageClass(),
+                  channel,
+                  codecs,
+                  callback,
+                  message -> callbacks,
+                  maxInFlight,
+                  coalesceAcks(channel, tasks),
+                  prefetch,
+                  retries,
+                  filter(queue));
+          return new TrackedConsumer(
+              channel, consumer, prefetchCount(prefetch, initialPrefetch), tasks);
+        });
+  }
+
+  /**
+   * Listens for several types of messages on one queue, which is bound to the exchange of every
+   * type with its generic routing key as provided from the message registry. Every message is
+   * deserialized into the type named by its {@code type} property, see {@link
+   * PublisherConfiguration#stampMessageType}, or else the only type whose routing key matches
+   * its own, and handed to the callback of its type. Messages of no known type are rejected, or
+   * parked if failed messages are retried.
+   *
+   * <p>The callbacks share one channel and run like those of {@link #listenConcurrently(String,
+   * String, String, int, MessageCallback)}, up to {@code maxInFlight} at a time.
+   *
+   * @param queue to bind to
+   * @param maxInFlight the number of callbacks to run concurrently
+   * @param callbacks one for every type of message
+   * @throws IOException if there was any communication exception
+   */
+  public void listenConcurrently(
+      String queue,
+      int maxInFlight,
+      Collection<? extends MessageCallback<? extends Message>> callbacks)
+      throws IOException {
+    Objects.requireNonNull(queue, "queue can't be null");
+    Objects.requireNonNull(callbacks, "callbacks can't be null");
+    PreconditionUtils.checkArgument(
+        maxInFlight >= 1, "maxInFlight needs to be greater than or equal to 1");
+    MessageTypeDispatcher dispatcher = new MessageTypeDispatcher(callbacks, registry);
+
+    RetryTopology retries = retryTopology(queue);
+    declare(queue, dispatcher.getBindings(), retries);
+    ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor(queue + "-");
     executors.add(executor);
-    boolean connectionSucceeded = false;
+
+    LOG.debug(
+        "Starting to listen concurrently on queue [{}] bound to {} for messages of types [{}]",
+        queue,
+        dispatcher.getBindings(),
+        dispatcher.getTypeNames());
+
+    int initialPrefetch = Math.min(maxInFlight, MAX_PREFETCH_COUNT);
+    start(
+        queue,
+        1,
+        (channel, tasks) -> {
+          PrefetchTuner prefetch = tunePrefetch(channel, initialPrefetch, maxInFlight, tasks);
+          MessageConsumer<Object> consumer =
+              new MessageConsumer<>(
+                  new MessageDecoder<>(dispatcher, codecs),
+                  channel,
+                  dispatcher,
+                  message -> executor,
+                  maxInFlight,
+                  coalesceAcks(channel, tasks),
+                  prefetch,
+                  retries,
+                  filter(queue));
+          return new TrackedConsumer(
+              channel, consumer, prefetchCount(prefetch, initialPrefetch), tasks);
+        });
+  }
+
+  /**
+   * Can be used to listen for a certain type of dataset message with the messages of each dataset
+   * handled in order. This will use the default generic routing key to bind to the default
+   * exchange as provided from the message registry.
+   *
+   * @see #listenOrdered(String, String, String, int, Function, MessageCallback)
+   */
+  public <T extends DatasetBasedMessage> void listenOrdered(
+      String queue, int lanes, MessageCallback<T> callback) throws IOException {
+    Objects.requireNonNull(callback, "callback can't be null");
+
+    Optional<String> routingKey = registry.getGenericRoutingKey(callback.getMessageClass());
+    Optional<String> exchange = registry.getExchange(callback.getMessageClass());
+    PreconditionUtils.checkArgument(
+        routingKey.isPresent() && exchange.isPresent(), "The message needs to be registered");
+
+    Function<T, UUID> datasetKey = DatasetBasedMessage::getDatasetUuid;
+    listenOrdered(queue, routingKey.get(), exchange.get(), lanes, datasetKey, callback);
+  }
+
+  /**
+   * Like {@link #listen(String, String, String, int, MessageCallback)}, but keeps the messages
+   * with the same key in order. Every message is handed to one of {@code lanes} serial lanes,
+   * picked by its key, so messages with the same key, e.g. of the same dataset, are handled one
+   * after another in the order they were delivered, and messages with different keys in parallel.
+   *
+   * <p>All messages come from one channel, with a prefetch count of at least the number of lanes.
+   * The queue can't be scaled to more consumers, whose messages would be handled out of order.
+   *
+   * @param queue to bind to
+   * @param routingKey to use to bind the queue to the exchange
+   * @param exchange to bind to
+   * @param lanes the number of lanes, each with a thread of its own
+   * @param key of a message; messages with a {@code null} key share a lane, messages whose key
+   *     fails are rejected like those which can't be deserialized
+   * @param callback to execute
+   * @param <T> of the message
+   * @throws IOException if there was any communication exception
+   */
+  public <T> void listenOrdered(
+      String queue,
+      String routingKey,
+      String exchange,
+      int lanes,
+      Function<? super T, ?> key,
+      MessageCallback<T> callback)
+      throws IOException {
+    Objects.requireNonNull(queue, "queue can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+    Objects.requireNonNull(key, "key can't be null");
+    Objects.requireNonNull(callback, "callback can't be empty");
+    PreconditionUtils.checkArgument(lanes >= 1, "lanes needs to be greater than or equal to 1");
+
+    RetryTopology retries = retryTopology(queue);
+    declare(queue, routingKey, exchange, retries);
+    // shared by the consumers of the queue, so a resumed one queues up behind its predecessor
+    OrderedLanes orderedLanes = new OrderedLanes(queue + "-lane-", lanes);
+    executors.addAll(orderedLanes.getExecutors());
+    orderedQueues.add(queue);
+
+    LOG.debug(
+        "Starting to listen in {} ordered lanes on exchange [{}], queue [{}] and routing key [{}] for messages of type [{}]",
+        lanes,
+        exchange,
+        queue,
+        routingKey,
+        callback.getMessageClass().getSimpleName());
+
+    int initialPrefetch = Math.min(Math.max(prefetchCount, lanes), MAX_PREFETCH_COUNT);
+    start(
+        queue,
+        1,
+        (channel, tasks) -> {
+          PrefetchTuner prefetch = tunePrefetch(channel, initialPrefetch, lanes, tasks);
+          MessageConsumer<T> consumer =
+              new MessageConsumer<T>(
+                  callback.getMessageClass(),
+                  channel,
+                  codecs,
+                  callback,
+                  message -> orderedLanes.laneFor(key.apply(message)),
+                  // the prefetch count bounds the callbacks in flight
+                  MAX_PREFETCH_COUNT,
+                  coalesceAcks(channel, tasks),
+                  prefetch,
+                  retries,
+                  filter(queue));
+          return new TrackedConsumer(
+              channel, consumer, prefetchCount(prefetch, initialPrefetch), tasks);
+        });
+  }
+
+  /**
+   * Can be used to listen for a certain type of message with a callback processing batches of
+   * messages. This will use the default generic routing key to bind to the default exchange as
+   * provided from the message registry.
+   *
+   * @see #listenBatched(String, String, String, int, int, Duration, BatchMessageCallback)
+   */
+  public <T extends Message> void listenBatched(
+      String queue,
+      int numberOfThreads,
+      int maxBatchSize,
+      Duration maxLinger,
+      BatchMessageCallback<T> callback)
+      throws IOException {
+    Objects.requireNonNull(callback, "callback can't be null");
+
+    Optional<String> routingKey = registry.getGenericRoutingKey(callback.getMessageClass());
+    Optional<String> exchange = registry.getExchange(callback.getMessageClass());
+    PreconditionUtils.checkArgument(
+        routingKey.isPresent() && exchange.isPresent(), "The message needs to be registered");
+
+    listenBatched(
+        queue,
+        routingKey.get(),
+        exchange.get(),
+        numberOfThreads,
+        maxBatchSize,
+        maxLinger,
+        callback);
+  }
+
+  /**
+   * Like {@link #listen(String, String, String, int, MessageCallback)}, but hands the messages to
+   * the callback in batches. A batch is processed once it has {@code maxBatchSize} messages or its
+   * first message has waited for {@code maxLinger}, and is acknowledged with a single multiple ack.
+   * The prefetch count is raised to the batch size if it is lower, so batches can fill up.
+   *
+   * @param queue to bind to
+   * @param routingKey to use to bind the queue to the exchange
+   * @param exchange to bind to
+   * @param numberOfThreads the number of threads, each with a channel of its own, processing
+   *     batches in parallel
+   * @param maxBatchSize the most messages handed to the callback at once
+   * @param maxLinger the longest a message waits for its batch to fill up
+   * @param callback to execute
+   * @param <T> of the message
+   * @throws IOException if there was any communication exception
+   */
+  public <T> void listenBatched(
+      String queue,
+      String routingKey,
+      String exchange,
+      int numberOfThreads,
+      int maxBatchSize,
+      Duration maxLinger,
+      BatchMessageCallback<T> callback)
+      throws IOException {
+    Objects.requireNonNull(queue, "queue can't be null");
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+    Objects.requireNonNull(maxLinger, "maxLinger can't be null");
+    Objects.requireNonNull(callback, "callback can't be empty");
+    PreconditionUtils.checkArgument(
+        numberOfThreads >= 1, "numberOfThreads needs to be greater than or equal to 1");
+    PreconditionUtils.checkArgument(
+        maxBatchSize >= 1, "maxBatchSize needs to be greater than or equal to 1");
+
+    declare(queue, routingKey, exchange, null);
+    ScheduledExecutorService lingerScheduler =
+        Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(queue + "-linger"));
+    executors.add(lingerScheduler);
+    // the scheduler only times the batches, the callbacks of lingering ones run on these threads
+    ExecutorService flusher = VirtualThreads.newThreadPerTaskExecutor(queue + "-linger-");
+    executors.add(flusher);
+
+    LOG.debug(
+        "Starting to listen in batches of {} on exchange [{}], queue [{}] and routing key [{}] for messages of type [{}]",
+        maxBatchSize,
+        exchange,
+        queue,
+        routingKey,
+        callback.getMessageClass().getSimpleName());
+
+    int batchPrefetch = Math.min(Math.max(prefetchCount, maxBatchSize), MAX_PREFETCH_COUNT);
+    start(
+        queue,
+        numberOfThreads,
+        (channel, tasks) -> {
+          channel.basicQos(batchPrefetch);
+          BatchingConsumer<T> consumer =
+              new BatchingConsumer<T>(
+                  channel,
+                  codecs,
+                  callback,
+                  maxBatchSize,
+                  maxLinger.toMillis(),
+                  lingerScheduler,
+                  flusher,
+                  filter(queue));
+          return new TrackedConsumer(channel, consumer, () -> batchPrefetch, tasks);
+        });
+  }
+
+  /**
+   * Filters the messages of a queue by their {@link MessageHeaders} before they are deserialized,
+   * e.g. to skip the messages for another runner or platform. Messages the filter doesn't accept
+   * are acked without being handed to a callback. Can be set before or while listening to the
+   * queue, and only works for messages from publishers stamping their headers.
+   *
+   * @param queue to filter the messages of
+   * @param filter accepting the messages to handle, {@code null} to handle all of them
+   */
+  public void filterQueue(String queue, @Nullable Predicate<MessageHeaders> filter) {
+    Objects.requireNonNull(queue, "queue can't be null");
+    queueToFilter.computeIfAbsent(queue, q -> new AtomicReference<>()).set(filter);
+  }
+
+  /** @return supplying the current filter of the queue to its consumers */
+  private Supplier<Predicate<MessageHeaders>> filter(String queue) {
+    return queueToFilter.computeIfAbsent(queue, q -> new AtomicReference<>())::get;
+  }
+
+  /** @return the queues to retry the failed messages of the queue through, if enabled */
+  @Nullable
+  private RetryTopology retryTopology(String queue) {
+    return configuration.retryAttempts == 0
+        ? null
+        : new RetryTopology(queue, configuration, retryChannel);
+  }
+
+  /**
+   * Declares the exchange and queue, with the retry queues of failed messages if given, and binds
+   * the queue to the exchange.
+   */
+  private void declare(
+      String queue, String routingKey, String exchange, @Nullable RetryTopology retries)
+      throws IOException {
+    declare(queue, Collections.singletonMap(exchange, Collections.singleton(routingKey)), retries);
+  }
+
+  /** Declares the queue bound to every exchange with each of its routing keys. */
+  private void declare(
+      String queue, Map<String, Set<String>> bindings, @Nullable RetryTopology retries)
+      throws IOException {
+    Channel channel = connections.createChannel();
     try {
-      connection = connectionFactory.newConnection(executor);
-      // track the connection for shutdown
-      connections.add(connection);
-      channel = connection.createChannel();
-      channel.exchangeDeclare(exchange, "topic", true);
+      for (String exchange : bindings.keySet()) {
+        channel.exchangeDeclare(exchange, "topic", true);
+      }
       channel.queueDeclare(queue, true, false, false, null);
-      channel.queueBind(queue, exchange, routingKey);
+      for (Map.Entry<String, Set<String>> binding : bindings.entrySet()) {
+        for (String routingKey : binding.getValue()) {
+          channel.queueBind(queue, binding.getKey(), routingKey);
+        }
+      }
+      if (retries != null) {
+        retries.declare(channel);
+      }
       channel.close();
-      connectionSucceeded = true;
     } catch (TimeoutException e) {
       throw new IOException(e);
-    } finally {
-      if (!connectionSucceeded) {
-        executors.remove(executor);
-        executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the coalescer of the acks of the channel, flushed periodically until the listener is
+   *     closed, {@code null} if acks aren't coalesced
+   */
+  @Nullable
+  private AckCoalescer coalesceAcks(Channel channel, List<Future<?>> tasks) {
+    if (configuration.ackCoalescing == 0) {
+      return null;
+    }
+    AckCoalescer acks = new AckCoalescer(channel, configuration.ackCoalescing);
+    tasks.add(
+        scheduler.scheduleAtFixedRate(
+            acks::flush,
+            configuration.ackFlushIntervalMs,
+            configuration.ackFlushIntervalMs,
+            TimeUnit.MILLISECONDS));
+    return acks;
+  }
+
+  /**
+   * Sets the prefetch count of a channel which is about to consume, and keeps adjusting it in the
+   * adaptive mode.
+   *
+   * @param concurrency the number of callbacks of the channel running at a time
+   * @return the tuner adjusting the prefetch count, {@code null} if it is static
+   */
+  @Nullable
+  private PrefetchTuner tunePrefetch(
+      Channel channel, int initialPrefetch, int concurrency, List<Future<?>> tasks)
+      throws IOException {
+    if (!configuration.adaptivePrefetch) {
+      channel.basicQos(initialPrefetch);
+      return null;
+    }
+    long ackDelayNanos =
+        configuration.ackCoalescing == 0
+            ? 0
+            : TimeUnit.MILLISECONDS.toNanos(configuration.ackFlushIntervalMs);
+    PrefetchTuner prefetch =
+        new PrefetchTuner(
+            channel,
+            initialPrefetch,
+            configuration.minPrefetch,
+            configuration.maxPrefetch,
+            concurrency,
+            ackDelayNanos);
+    prefetch.start();
+    tasks.add(
+        scheduler.scheduleWithFixedDelay(
+            prefetch::adjust,
+            configuration.prefetchAdjustIntervalMs,
+            configuration.prefetchAdjustIntervalMs,
+            TimeUnit.MILLISECONDS));
+    return prefetch;
+  }
+
+  private static IntSupplier prefetchCount(@Nullable PrefetchTuner prefetch, int staticCount) {
+    return prefetch == null ? () -> staticCount : prefetch::getPrefetchCount;
+  }
+
+  /**
+   * @return the sum of the current prefetch counts of the channels consuming from the queue, 0 if
+   *     it isn't listened to; meant to be exported to a metrics system, particularly with the
+   *     adaptive prefetch
+   */
+  public int getPrefetchCount(String queue) {
+    List<String> tags = queueToConsumerTags.get(queue);
+    if (tags == null) {
+      return 0;
+    }
+    int prefetchCount = 0;
+    synchronized (tags) {
+      for (String tag : tags) {
+        TrackedConsumer consumer = consumerTagToConsumer.get(tag);
+        prefetchCount += consumer == null ? 0 : consumer.prefetchCount.getAsInt();
       }
     }
+    return prefetchCount;
+  }
 
-    LOG.debug(
-        "Starting to listen on exchange [{}], queue [{}] and routing key [{}] for messages of type [{}]",
-        exchange,
-        queue,
-        routingKey,
-        callback.getMessageClass().getSimpleName());
+  /**
+   * Keeps how to start consumers on the queue, so it can be scaled and resumed, and starts the
+   * given number of them.
+   */
+  private void start(String queue, int consumers, ConsumerStarter starter) throws IOException {
+    queueToStarter.put(queue, starter);
+    for (int i = 0; i < consumers; i++) {
+      startConsumer(queue, starter);
+    }
+  }
 
-    for (int i = 0; i < numberOfThreads; i++) {
-      channel = connection.createChannel();
-      // track the channel so it can be closed on shutdown
-      channels.add(channel);
-      channel.basicQos(prefetchCount);
-      String consumerTag =
-          channel.basicConsume(
-              queue,
-              false, // autoAck disabled -> we have to manually acknowledge messages
-              new MessageConsumer<T>(callback.getMessageClass(), channel, mapper, callback));
-      // track consumer tag so the queue can be paused without closing the listener
-      consumerTagToChannel.put(consumerTag, channel);
-      synchronized (queueToConsumerTags) {
-        List<String> consumerTags = queueToConsumerTags.get(queue);
-        if (consumerTags == null) {
-          consumerTags = Collections.synchronizedList(new ArrayList<>());
-          queueToConsumerTags.put(queue, consumerTags);
-        }
-        consumerTags.add(consumerTag);
+  /** Starts a consumer on a channel of its own. */
+  private void startConsumer(String queue, ConsumerStarter starter) throws IOException {
+    Channel channel = createChannel();
+    List<Future<?>> tasks = new ArrayList<>();
+    try {
+      TrackedConsumer consumer = starter.start(channel, tasks);
+      // autoAck disabled -> we have to manually acknowledge messages
+      String consumerTag = channel.basicConsume(queue, false, consumer.consumer);
+      trackConsumer(queue, consumerTag, consumer);
+    } catch (IOException | RuntimeException e) {
+      tasks.forEach(task -> task.cancel(false));
+      throw e;
+    }
+  }
+
+  /** Tracks the consumer tag so the queue can be paused without closing the listener. */
+  private void trackConsumer(String queue, String consumerTag, TrackedConsumer consumer) {
+    consumerTagToConsumer.put(consumerTag, consumer);
+    synchronized (queueToConsumerTags) {
+      List<String> consumerTags = queueToConsumerTags.get(queue);
+      if (consumerTags == null) {
+        consumerTags = Collections.synchronizedList(new ArrayList<>());
+        queueToConsumerTags.put(queue, consumerTags);
+      }
+      consumerTags.add(consumerTag);
+    }
+  }
+
+  /** @return the number of consumers of the queue, 0 if it isn't listened to or is paused */
+  public int getConsumerCount(String queue) {
+    List<String> tags = queueToConsumerTags.get(queue);
+    return tags == null ? 0 : tags.size();
+  }
+
+  /**
+   * Changes the number of consumers of a queue while listening to it, each with a channel of its
+   * own. New consumers are like the ones the queue was last listened to with. Removed consumers
+   * are cancelled and their channels closed once they settled the messages they were delivered,
+   * so none are redelivered. A paused queue is resumed with the given number of consumers.
+   *
+   * @param queue listened to by this listener
+   * @param consumers the number of consumers to have
+   * @throws IOException if there was any communication exception
+   */
+  public synchronized void scaleQueue(String queue, int consumers) throws IOException {
+    Objects.requireNonNull(queue, "queue can't be null");
+    PreconditionUtils.checkArgument(
+        consumers >= 1, "consumers needs to be greater than or equal to 1");
+    ConsumerStarter starter = queueToStarter.get(queue);
+    PreconditionUtils.checkArgument(starter != null, "Not listening to queue " + queue);
+    PreconditionUtils.checkArgument(
+        consumers == 1 || !orderedQueues.contains(queue),
+        "Queue " + queue + " is listened to in order and can only have one consumer");
+
+    pausedQueues.remove(queue);
+    int running = getConsumerCount(queue);
+    LOG.info("Scaling queue {} from {} to {} consumers", queue, running, consumers);
+    for (int i = running; i < consumers; i++) {
+      startConsumer(queue, starter);
+    }
+    if (running > consumers) {
+      List<String> stopping;
+      List<String> tags = queueToConsumerTags.get(queue);
+      synchronized (tags) {
+        List<String> last = tags.subList(consumers, tags.size());
+        stopping = new ArrayList<>(last);
+        last.clear();
+      }
+      for (String tag : stopping) {
+        stop(queue, tag);
       }
     }
   }
 
+  /**
+   * Resume consumption from a queue paused by {@link #pauseQueue(String)}, with as many consumers
+   * as it had when it was paused.
+   *
+   * @throws IOException if there was any communication exception
+   */
+  public synchronized void resumeQueue(String queue) throws IOException {
+    Integer consumers = pausedQueues.remove(queue);
+    if (consumers == null) {
+      LOG.debug("Queue {} isn't paused", queue);
+      return;
+    }
+    LOG.info("Resuming queue {} with {} consumers", queue, consumers);
+    ConsumerStarter starter = queueToStarter.get(queue);
+    for (int i = 0; i < consumers; i++) {
+      startConsumer(queue, starter);
+    }
+  }
+
   /**
    * Pause consumption from a given queue without closing the listener. This cancels the
-   * consumers for that queue (they will stop receiving deliveries) but leaves connections and
-   * executors in place so the queue can be resumed later.
+   * consumers for that queue (they will stop receiving deliveries) and closes their channels once
+   * the messages delivered to them are settled, but leaves connections and executors in place so
+   * the queue can be resumed later.
    */
-  public void pauseQueue(String queue) {
+  public synchronized void pauseQueue(String queue) {
     LOG.debug("Pausing queue {}", queue);
     List<String> tags = queueToConsumerTags.remove(queue);
     if (tags == null || tags.isEmpty()) {
       LOG.debug("No consumers found for queue {} to pause", queue);
       return;
     }
-    for (String tag : tags) {
-      Channel ch = consumerTagToChannel.remove(tag);
-      if (ch != null && ch.isOpen()) {
-        try {
-          ch.basicCancel(tag);
-          LOG.info("Paused consumers for queue {} (consumerTag={})", queue, tag);
-        } catch (Exception e) {
-          LOG.warn("Failed to cancel consumer {} for queue {}", tag, queue, e);
+    synchronized (tags) {
+      pausedQueues.put(queue, tags.size());
+      for (String tag : tags) {
+        stop(queue, tag);
+      }
+    }
+  }
+
+  /** Cancels a consumer and closes its channel once the consumer stopped. */
+  private void stop(String queue, String tag) {
+    TrackedConsumer consumer = consumerTagToConsumer.remove(tag);
+    if (consumer == null) {
+      return;
+    }
+    LongAdder stoppedHandled = queueToStoppedHandled.computeIfAbsent(queue, q -> new LongAdder());
+    long handled = consumer.consumer.getHandled();
+    stoppedHandled.add(handled);
+    if (consumer.channel.isOpen()) {
+      try {
+        consumer.channel.basicCancel(tag);
+        LOG.info("Cancelled consumer of queue {} (consumerTag={})", queue, tag);
+      } catch (Exception e) {
+        LOG.warn("Failed to cancel consumer {} for queue {}", tag, queue, e);
+      }
+    }
+    consumer
+        .consumer
+        .whenStopped()
+        .thenRunAsync(
+            () -> {
+              // what it handled after it was cancelled
+              stoppedHandled.add(consumer.consumer.getHandled() - handled);
+              consumer.close();
+            },
+            scheduler);
+  }
+
+  /** @return the number of messages handed to the callbacks of the queue so far */
+  long getHandled(String queue) {
+    LongAdder stoppedHandled = queueToStoppedHandled.get(queue);
+    long handled = stoppedHandled == null ? 0 : stoppedHandled.sum();
+    List<String> tags = queueToConsumerTags.get(queue);
+    if (tags != null) {
+      synchronized (tags) {
+        for (String tag : tags) {
+          TrackedConsumer consumer = consumerTagToConsumer.get(tag);
+          handled += consumer == null ? 0 : consumer.consumer.getHandled();
+        }
+      }
+    }
+    return handled;
+  }
+
+  /**
+   * Scales the consumers of a queue to its backlog between the given bounds, checking it every
+   * {@link ListenerConfiguration#autoscaleIntervalMs}, see {@link QueueAutoscaler}. Replaces
+   * any autoscaling of the queue started before, paused queues are left alone until resumed.
+   *
+   * @param queue listened to by this listener
+   * @param minConsumers the fewest consumers to have, even when the queue is empty
+   * @param maxConsumers the most consumers to have
+   */
+  public void autoscaleQueue(String queue, int minConsumers, int maxConsumers) {
+    Objects.requireNonNull(queue, "queue can't be null");
+    PreconditionUtils.checkArgument(
+        minConsumers >= 1 && minConsumers <= maxConsumers,
+        "minConsumers needs to be between 1 and maxConsumers");
+    PreconditionUtils.checkArgument(
+        queueToStarter.containsKey(queue), "Not listening to queue " + queue);
+    PreconditionUtils.checkArgument(
+        !orderedQueues.contains(queue),
+        "Queue " + queue + " is listened to in order and can only have one consumer");
+
+    QueueAutoscaler autoscaler =
+        new QueueAutoscaler(
+            this, queue, minConsumers, maxConsumers, configuration, System::nanoTime);
+    autoscaler.start(autoscalingScheduler, configuration.autoscaleIntervalMs);
+    QueueAutoscaler replaced = queueToAutoscaler.put(queue, autoscaler);
+    if (replaced != null) {
+      replaced.stop();
+    }
+    LOG.info("Autoscaling queue {} between {} and {} consumers", queue, minConsumers, maxConsumers);
+  }
+
+  /** Stops autoscaling the queue, leaving it with the consumers it has. */
+  public void stopAutoscaling(String queue) {
+    QueueAutoscaler autoscaler = queueToAutoscaler.remove(queue);
+    if (autoscaler != null) {
+      autoscaler.stop();
+    }
+  }
+
+  /** Scales a queue as {@link #scaleQueue(String, int)} unless it is paused. */
+  synchronized void scaleUnlessPaused(String queue, int consumers) throws IOException {
+    if (!pausedQueues.containsKey(queue)) {
+      scaleQueue(queue, consumers);
+    }
+  }
+
+  /** Creates a channel which is closed with the listener. */
+  Channel createChannel() throws IOException {
+    Channel channel = connections.createChannel();
+    // track the channel so it can be closed on shutdown
+    channels.add(channel);
+    return channel;
+  }
+
+  /** Closes a channel created by {@link #createChannel()} before the listener is closed. */
+  void closeChannel(Channel channel) {
+    channels.remove(channel);
+    if (channel.isOpen()) {
+      try {
+        channel.close();
+      } catch (Exception e) {
+        LOG.warn("Error closing channel", e);
+      }
+    }
+  }
+
+  /**
+   * Shuts the listener down gracefully, e.g. ahead of a restart. Cancels all consumers, which stop
+   * handing deliveries to their callbacks, waits up to the timeout for the callbacks in flight to
+   * finish and be acked, requeues the messages which were prefetched but not handled with one
+   * multiple nack per channel, and then {@link #close() closes} the listener.
+   *
+   * <p>The channels of consumers which didn't stop in time are closed regardless, which requeues
+   * their unsettled messages, including those of callbacks still running.
+   *
+   * @param timeout to wait for the callbacks in flight
+   * @return true if all consumers stopped within the timeout
+   */
+  public boolean drain(Duration timeout) {
+    Objects.requireNonNull(timeout, "timeout can't be null");
+    List<CompletableFuture<Void>> draining = new ArrayList<>();
+    synchronized (this) {
+      synchronized (queueToAutoscaler) {
+        queueToAutoscaler.values().forEach(QueueAutoscaler::stop);
+        queueToAutoscaler.clear();
+      }
+      // no queue can be scaled, paused or resumed anymore
+      synchronized (consumerTagToConsumer) {
+        synchronized (queueToConsumerTags) {
+          consumerTagToConsumer.forEach((tag, consumer) -> draining.add(drain(tag, consumer)));
+          consumerTagToConsumer.clear();
+          queueToConsumerTags.clear();
+          queueToStarter.clear();
+          pausedQueues.clear();
         }
       }
     }
+    LOG.info("Draining {} consumers for up to {}", draining.size(), timeout);
+
+    boolean drained = false;
+    try {
+      CompletableFuture.allOf(draining.toArray(new CompletableFuture<?>[0]))
+          .get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+      drained = true;
+    } catch (TimeoutException e) {
+      LOG.warn("Not all consumers stopped within {}, closing their channels anyway", timeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOG.warn("Error draining consumers", e);
+    }
+    close();
+    return drained;
+  }
+
+  /**
+   * Cancels a draining consumer and requeues the messages it was delivered but didn't hand to its
+   * callback once it stopped.
+   */
+  private CompletableFuture<Void> drain(String tag, TrackedConsumer consumer) {
+    consumer.consumer.drain();
+    if (!consumer.channel.isOpen()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    try {
+      consumer.channel.basicCancel(tag);
+    } catch (Exception e) {
+      LOG.warn("Failed to cancel consumer {}, its channel will be closed", tag, e);
+      return CompletableFuture.completedFuture(null);
+    }
+    return consumer
+        .consumer
+        .whenStopped()
+        .thenRun(
+            () -> {
+              if (!consumer.channel.isOpen()) {
+                return;
+              }
+              try {
+                // all outstanding deliveries, every callback settled its own already
+                consumer.channel.basicNack(0, true, true);
+              } catch (Exception e) {
+                LOG.warn("Failed to requeue the messages of consumer {}", tag, e);
+              }
+            });
   }
 
   /**
@@ -290,20 +1129,10 @@ public class MessageListener implements AutoCloseable {
       }
       channels.clear();
     }
+    retryChannel.close();
 
     // Close connections
-    synchronized (connections) {
-      for (Connection conn : connections) {
-        if (conn != null && conn.isOpen()) {
-          try {
-            conn.close();
-          } catch (Exception e) {
-            LOG.warn("Error closing connection", e);
-          }
-        }
-      }
-      connections.clear();
-    }
+    connections.close();
 
     // Shutdown executors
     synchronized (executors) {
@@ -319,11 +1148,48 @@ public class MessageListener implements AutoCloseable {
 
     // Clear consumer tracking state so this listener does not retain stale references.
     // Synchronize on both maps together (always in the same order) to clear them atomically.
-    synchronized (consumerTagToChannel) {
+    synchronized (consumerTagToConsumer) {
       synchronized (queueToConsumerTags) {
-        consumerTagToChannel.clear();
+        consumerTagToConsumer.clear();
         queueToConsumerTags.clear();
+        queueToStarter.clear();
+        pausedQueues.clear();
+        queueToStoppedHandled.clear();
+        queueToAutoscaler.clear();
+        orderedQueues.clear();
+        queueToFilter.clear();
       }
     }
   }
+
+  /** Creates a consumer for a new channel, adding the periodic tasks of the channel to the list. */
+  @FunctionalInterface
+  private interface ConsumerStarter {
+    TrackedConsumer start(Channel channel, List<Future<?>> tasks) throws IOException;
+  }
+
+  /** A consumer of the listener with its channel and the periodic tasks of the channel. */
+  private final class TrackedConsumer {
+
+    private final Channel channel;
+    private final StoppableConsumer consumer;
+    private final IntSupplier prefetchCount;
+    private final List<Future<?>> tasks;
+
+    private TrackedConsumer(
+        Channel channel,
+        StoppableConsumer consumer,
+        IntSupplier prefetchCount,
+        List<Future<?>> tasks) {
+      this.channel = channel;
+      this.consumer = consumer;
+      this.prefetchCount = prefetchCount;
+      this.tasks = tasks;
+    }
+
+    private void close() {
+      tasks.forEach(task -> task.cancel(false));
+      closeChannel(channel);
+    }
+  }
 }
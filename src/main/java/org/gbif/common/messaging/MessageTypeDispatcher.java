@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.Message;
+import org.gbif.common.messaging.api.MessageCallback;
+import org.gbif.common.messaging.api.MessageRegistry;
+import org.gbif.utils.PreconditionUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Lets one consumer handle several types of messages from one queue. Picks the class of every
+ * delivery and hands the message to the callback of its class.
+ *
+ * <p>The class is named by the {@code type} property publishers stamp when configured to, see
+ * {@link org.gbif.common.messaging.config.PublisherConfiguration#stampMessageType}. Deliveries
+ * without it are matched by their routing key against the generic routing keys of the registered
+ * messages, which only works as long as a single one of them matches. Retried deliveries are
+ * matched by the routing key they were first published with.
+ */
+@ThreadSafe
+class MessageTypeDispatcher
+    implements MessageCallback<Object>, MessageDecoder.TypeResolver<Object> {
+
+  private final Map<Class<?>, MessageCallback<Object>> callbacks = new HashMap<>();
+  private final Map<String, Class<?>> typesByName = new HashMap<>();
+  // Map exchange -> generic routing keys of the messages published to it
+  private final Map<String, Set<String>> bindings = new LinkedHashMap<>();
+  private final TopicTrie<Class<?>> types = new TopicTrie<>();
+
+  /**
+   * @param callbacks one for every type of message, all of them registered
+   * @throws IllegalArgumentException if a type isn't registered or has several callbacks
+   */
+  @SuppressWarnings("unchecked")
+  MessageTypeDispatcher(
+      Collection<? extends MessageCallback<? extends Message>> callbacks,
+      MessageRegistry registry) {
+    PreconditionUtils.checkArgument(!callbacks.isEmpty(), "callbacks can't be empty");
+    for (MessageCallback<? extends Message> callback : callbacks) {
+      Class<? extends Message> type = callback.getMessageClass();
+      Optional<String> routingKey = registry.getGenericRoutingKey(type);
+      Optional<String> exchange = registry.getExchange(type);
+      PreconditionUtils.checkArgument(
+          routingKey.isPresent() && exchange.isPresent(),
+          "The message " + type.getSimpleName() + " needs to be registered");
+      PreconditionUtils.checkArgument(
+          this.callbacks.put(type, (MessageCallback<Object>) (MessageCallback<?>) callback) == null,
+          "Only one callback per message type is allowed, got several for "
+              + type.getSimpleName());
+      typesByName.put(type.getName(), type);
+      bindings.computeIfAbsent(exchange.get(), e -> new LinkedHashSet<>()).add(routingKey.get());
+      types.add(routingKey.get(), type);
+    }
+  }
+
+  /** @return the exchanges of the messages with their generic routing keys */
+  Map<String, Set<String>> getBindings() {
+    return Collections.unmodifiableMap(bindings);
+  }
+
+  /** @return the simple names of the message classes, for logging */
+  String getTypeNames() {
+    StringBuilder names = new StringBuilder();
+    for (Class<?> type : callbacks.keySet()) {
+      names.append(names.length() == 0 ? "" : ", ").append(type.getSimpleName());
+    }
+    return names.toString();
+  }
+
+  @Nullable
+  @Override
+  public Class<?> resolve(Envelope envelope, AMQP.BasicProperties properties) {
+    String typeName = properties.getType();
+    if (typeName != null) {
+      // a type this listener has no callback for isn't guessed from the routing key
+      return typesByName.get(typeName);
+    }
+    Set<Class<?>> matches = types.match(RetryTopology.getRoutingKey(envelope, properties));
+    return matches.size() == 1 ? matches.iterator().next() : null;
+  }
+
+  @Override
+  public void handleMessage(Object message) {
+    callbacks.get(message.getClass()).handleMessage(message);
+  }
+
+  @Override
+  public Class<Object> getMessageClass() {
+    return Object.class;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.utils.concurrent.NamedThreadFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Serial lanes the callbacks of messages are dispatched to by a key of the message, so messages
+ * with the same key are handled one after another in the order they were delivered, while
+ * messages with different keys are handled in parallel.
+ */
+@ThreadSafe
+class OrderedLanes {
+
+  private final ExecutorService[] lanes;
+
+  /**
+   * @param name prefix of the names of the lane threads
+   * @param count the number of lanes, each with a thread of its own
+   */
+  OrderedLanes(String name, int count) {
+    Objects.requireNonNull(name, "name can't be null");
+    lanes = new ExecutorService[count];
+    for (int i = 0; i < count; i++) {
+      lanes[i] = Executors.newSingleThreadExecutor(new NamedThreadFactory(name + i));
+    }
+  }
+
+  /** @return the lane of the key, which is the same for equal keys */
+  Executor laneFor(@Nullable Object key) {
+    int hash = Objects.hashCode(key);
+    // spread the high bits like HashMap does, for keys whose hash codes only differ in those
+    return lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)];
+  }
+
+  /** @return the executors of the lanes, to be shut down with the listener */
+  List<ExecutorService> getExecutors() {
+    return Collections.unmodifiableList(Arrays.asList(lanes));
+  }
+}
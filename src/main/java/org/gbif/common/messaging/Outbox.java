@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.PublisherConfiguration;
+import org.gbif.utils.PreconditionUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded in-memory buffer of messages that could not be published because the broker was
+ * unreachable. It is filled by the publishing threads and drained in order by the publisher once
+ * the connection has recovered.
+ *
+ * <p>The buffer is lock-free. The bound is enforced by reserving a slot with a CAS before a message
+ * is queued, and what happens when it is full is controlled by {@link
+ * PublisherConfiguration#outboxOverflow}.
+ */
+@ThreadSafe
+class Outbox {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Outbox.class);
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** A buffered message and the future to complete once it has been confirmed by the broker. */
+  static final class Entry {
+    private final OutgoingMessage message;
+    private final CompletableFuture<Void> confirm;
+
+    private Entry(OutgoingMessage message, CompletableFuture<Void> confirm) {
+      this.message = message;
+      this.confirm = confirm;
+    }
+
+    OutgoingMessage getMessage() {
+      return message;
+    }
+
+    CompletableFuture<Void> getConfirm() {
+      return confirm;
+    }
+  }
+
+  private final int capacity;
+  private final PublisherConfiguration.OutboxOverflow overflow;
+  private final long maxBlockNanos;
+
+  private final ConcurrentLinkedDeque<Entry> entries = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+  // messages taken out for publishing whose outcome is not known yet
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder buffered = new LongAdder();
+  private final LongAdder replayed = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  Outbox(PublisherConfiguration config) {
+    PreconditionUtils.checkArgument(config.outboxCapacity > 0, "outboxCapacity needs to be > 0");
+    this.capacity = config.outboxCapacity;
+    this.overflow = Objects.requireNonNull(config.outboxOverflow, "outboxOverflow can't be null");
+    this.maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(config.outboxMaxBlockMs);
+  }
+
+  /**
+   * Whether no messages are buffered or being replayed. A taken message counts until it has been
+   * settled with {@link #putBack} or {@link #replayed}, so that newer messages don't overtake it.
+   */
+  boolean isEmpty() {
+    return size.get() == 0 && inFlight.get() == 0;
+  }
+
+  /**
+   * Buffers a message until it can be published.
+   *
+   * @return a future that completes once the broker confirmed the message
+   * @throws IOException if the outbox is full and the overflow policy does not allow to wait or
+   *     drop, or waiting for space timed out
+   */
+  CompletableFuture<Void> add(OutgoingMessage message) throws IOException {
+    long deadline = System.nanoTime() + maxBlockNanos;
+    while (!tryReserve()) {
+      switch (overflow) {
+        case DROP_OLDEST:
+          Entry oldest = poll();
+          if (oldest != null) {
+            dropped.increment();
+            LOG.warn("Outbox is full, dropping the oldest buffered message");
+            oldest.confirm.completeExceptionally(
+                new IOException("Message was dropped from the full outbox"));
+          }
+          break;
+        case BLOCK:
+          if (System.nanoTime() - deadline >= 0) {
+            rejected.increment();
+            throw new IOException("Timed out waiting for space in the full outbox");
+          }
+          LockSupport.parkNanos(BLOCK_PARK_NANOS);
+          if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for space in the outbox");
+          }
+          break;
+        default:
+          rejected.increment();
+          throw new IOException("Outbox is full, holding " + capacity + " messages");
+      }
+    }
+    Entry entry = new Entry(message, new CompletableFuture<>());
+    bytes.addAndGet(message.getBody().length);
+    entries.addLast(entry);
+    buffered.increment();
+    return entry.confirm;
+  }
+
+  /**
+   * Takes up to {@code max} of the oldest messages out of the outbox for publishing. Each of them
+   * needs to be settled with {@link #putBack} or {@link #replayed}.
+   */
+  List<Entry> take(int max) {
+    List<Entry> taken = new ArrayList<>(Math.min(max, size.get()));
+    Entry entry;
+    while (taken.size() < max && (entry = poll()) != null) {
+      inFlight.incrementAndGet();
+      taken.add(entry);
+    }
+    return taken;
+  }
+
+  /** Puts taken messages that failed to publish back in front of the outbox, in their order. */
+  void putBack(List<Entry> failed) {
+    for (int i = failed.size() - 1; i >= 0; i--) {
+      Entry entry = failed.get(i);
+      size.incrementAndGet();
+      bytes.addAndGet(entry.message.getBody().length);
+      entries.addFirst(entry);
+    }
+    inFlight.addAndGet(-failed.size());
+  }
+
+  /**
+   * Records taken messages that have been confirmed, or nacked by the broker and failed, so they
+   * are done with.
+   */
+  void replayed(int confirmed, int nacked) {
+    replayed.add(confirmed);
+    inFlight.addAndGet(-(confirmed + nacked));
+  }
+
+  /** Fails all buffered messages, e.g. on shutdown. */
+  int failAll(Throwable cause) {
+    int failed = 0;
+    Entry entry;
+    while ((entry = poll()) != null) {
+      entry.confirm.completeExceptionally(cause);
+      failed++;
+    }
+    return failed;
+  }
+
+  OutboxStats getStats() {
+    return new OutboxStats(
+        size.get(), bytes.get(), buffered.sum(), replayed.sum(), dropped.sum(), rejected.sum());
+  }
+
+  private boolean tryReserve() {
+    int current;
+    do {
+      current = size.get();
+      if (current >= capacity) {
+        return false;
+      }
+    } while (!size.compareAndSet(current, current + 1));
+    return true;
+  }
+
+  private Entry poll() {
+    Entry entry = entries.pollFirst();
+    if (entry != null) {
+      size.decrementAndGet();
+      bytes.addAndGet(-entry.message.getBody().length);
+    }
+    return entry;
+  }
+}
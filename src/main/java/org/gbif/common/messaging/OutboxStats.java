@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.util.StringJoiner;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A point in time snapshot of the counters of the outbox of a publisher, meant to be exported to a
+ * metrics system.
+ */
+@Immutable
+public final class OutboxStats {
+
+  private final int bufferedMessages;
+  private final long bufferedBytes;
+  private final long buffered;
+  private final long replayed;
+  private final long dropped;
+  private final long rejected;
+
+  OutboxStats(
+      int bufferedMessages,
+      long bufferedBytes,
+      long buffered,
+      long replayed,
+      long dropped,
+      long rejected) {
+    this.bufferedMessages = bufferedMessages;
+    this.bufferedBytes = bufferedBytes;
+    this.buffered = buffered;
+    this.replayed = replayed;
+    this.dropped = dropped;
+    this.rejected = rejected;
+  }
+
+  /** @return the number of messages currently waiting in the outbox */
+  public int getBufferedMessages() {
+    return bufferedMessages;
+  }
+
+  /** @return the size of the bodies of the messages currently waiting in the outbox */
+  public long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  /** @return the total number of messages that were put into the outbox */
+  public long getBuffered() {
+    return buffered;
+  }
+
+  /** @return the total number of messages from the outbox confirmed by the broker */
+  public long getReplayed() {
+    return replayed;
+  }
+
+  /** @return the total number of messages discarded to make room in the full outbox */
+  public long getDropped() {
+    return dropped;
+  }
+
+  /** @return the total number of sends that failed because the outbox was full */
+  public long getRejected() {
+    return rejected;
+  }
+
+  @Override
+  public String toString() {
+    return new StringJoiner(", ", OutboxStats.class.getSimpleName() + "[", "]")
+        .add("bufferedMessages=" + bufferedMessages)
+        .add("bufferedBytes=" + bufferedBytes)
+        .add("buffered=" + buffered)
+        .add("replayed=" + replayed)
+        .add("dropped=" + dropped)
+        .add("rejected=" + rejected)
+        .toString();
+  }
+}
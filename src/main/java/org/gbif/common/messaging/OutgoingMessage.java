@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.util.Objects;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.rabbitmq.client.AMQP;
+
+/** A serialized message together with everything needed to publish it. */
+@Immutable
+final class OutgoingMessage {
+
+  private final String exchange;
+  private final String routingKey;
+  private final AMQP.BasicProperties properties;
+  private final byte[] body;
+
+  OutgoingMessage(
+      String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+    this.exchange = Objects.requireNonNull(exchange, "exchange can't be null");
+    this.routingKey = Objects.requireNonNull(routingKey, "routingKey can't be null");
+    this.properties = properties;
+    this.body = Objects.requireNonNull(body, "body can't be null");
+  }
+
+  String getExchange() {
+    return exchange;
+  }
+
+  String getRoutingKey() {
+    return routingKey;
+  }
+
+  AMQP.BasicProperties getProperties() {
+    return properties;
+  }
+
+  byte[] getBody() {
+    return body;
+  }
+}
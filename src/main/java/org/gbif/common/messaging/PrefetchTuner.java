@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Adjusts the prefetch count of a channel to what keeps its callbacks busy, by Little's law: the
+ * messages in flight are the throughput times the time each message takes, so to never wait for
+ * the broker the channel needs its callbacks' worth of messages plus what they process during a
+ * round trip, {@code concurrency * (1 + roundTrip / processing)}.
+ *
+ * <p>Processing times are recorded by the consumer, the round trip is measured by timing the
+ * {@code basic.qos} call which applies the new prefetch count. Both are smoothed over the
+ * adjustments, and changes of less than a tenth are skipped. The prefetch count is set for the
+ * whole channel, which only has the one consumer, as the broker applies changes of per-consumer
+ * prefetch counts to new consumers only.
+ */
+@ThreadSafe
+class PrefetchTuner {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PrefetchTuner.class);
+  /** The weight of the latest interval in the smoothed times. */
+  private static final double SMOOTHING = 0.3;
+  private static final double MIN_CHANGE = 0.1;
+
+  private final Channel channel;
+  private final int minPrefetch;
+  private final int maxPrefetch;
+  private final int concurrency;
+  private final long ackDelayNanos;
+
+  private final LongAdder processedNanos = new LongAdder();
+  private final LongAdder processed = new LongAdder();
+  private final Lock lock = new ReentrantLock();
+
+  private volatile int prefetchCount;
+
+  @GuardedBy("lock")
+  private double processingNanos;
+
+  @GuardedBy("lock")
+  private double roundTripNanos;
+
+  /**
+   * @param concurrency the number of callbacks of the channel running at a time
+   * @param ackDelayNanos the longest acks are held back to be coalesced, as held back messages
+   *     count against the prefetch count too
+   */
+  PrefetchTuner(
+      Channel channel,
+      int initialPrefetch,
+      int minPrefetch,
+      int maxPrefetch,
+      int concurrency,
+      long ackDelayNanos) {
+    this.channel = Objects.requireNonNull(channel, "channel can't be null");
+    this.minPrefetch = minPrefetch;
+    this.maxPrefetch = maxPrefetch;
+    this.concurrency = concurrency;
+    this.ackDelayNanos = ackDelayNanos;
+    this.prefetchCount = Math.max(minPrefetch, Math.min(initialPrefetch, maxPrefetch));
+  }
+
+  /** Applies the initial prefetch count, before the channel starts consuming. */
+  void start() throws IOException {
+    apply(prefetchCount);
+  }
+
+  /** Records the time a callback took. */
+  void record(long nanos) {
+    processedNanos.add(nanos);
+    processed.increment();
+  }
+
+  /** @return the prefetch count currently applied */
+  int getPrefetchCount() {
+    return prefetchCount;
+  }
+
+  /** Folds in the processing times recorded since the last call and adjusts the prefetch count. */
+  void adjust() {
+    lock.lock();
+    try {
+      long count = processed.sumThenReset();
+      long nanos = processedNanos.sumThenReset();
+      if (count > 0) {
+        processingNanos = smooth(processingNanos, (double) nanos / count);
+      }
+      int target = prefetchCount;
+      if (processingNanos > 0 && roundTripNanos > 0) {
+        double wanted =
+            Math.ceil(concurrency * (1 + (roundTripNanos + ackDelayNanos) / processingNanos));
+        target = (int) Math.max(minPrefetch, Math.min(wanted, maxPrefetch));
+        if (Math.abs(target - prefetchCount) < prefetchCount * MIN_CHANGE) {
+          target = prefetchCount;
+        }
+      }
+      if (channel.isOpen()) {
+        // applied even if unchanged to measure the round trip
+        apply(target);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failure adjusting the prefetch count", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void apply(int target) throws IOException {
+    long start = System.nanoTime();
+    channel.basicQos(target, true);
+    long roundTrip = System.nanoTime() - start;
+    lock.lock();
+    try {
+      roundTripNanos = smooth(roundTripNanos, roundTrip);
+      if (target != prefetchCount) {
+        LOG.debug("Prefetch count changed from {} to {}", prefetchCount, target);
+        prefetchCount = target;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static double smooth(double smoothed, double latest) {
+    return smoothed == 0 ? latest : smoothed + SMOOTHING * (latest - smoothed);
+  }
+}
@@ -0,0 +1,458 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.PublisherConfiguration;
+import org.gbif.utils.PreconditionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * A write-ahead journal of published messages, kept in memory-mapped segment files.
+ *
+ * <p>Messages are appended before they are published and marked as confirmed in place once the
+ * broker confirmed them. A segment that has been filled up is deleted as soon as all its entries
+ * are confirmed. When a journal is opened, the entries left unconfirmed by the previous process
+ * are returned so they can be published again, which means a message may be delivered twice.
+ *
+ * <p>Each entry is laid out as:
+ *
+ * <pre>
+ *   int  length of the payload (0 marks the end of the segment)
+ *   int  CRC32 of the payload
+ *   byte state, {@link #PENDING} or {@link #CONFIRMED}
+ *   ...  payload: exchange, routing key, properties and body
+ * </pre>
+ *
+ * The state is not covered by the checksum so it can be flipped without rewriting the entry. An
+ * entry with a wrong checksum, e.g. because the process died while writing it, ends the segment.
+ *
+ * <p>Writes to a mapped file survive the process dying. To also survive the host failing, {@link
+ * PublisherConfiguration#journalForce} forces every entry to disk, at a considerable cost.
+ */
+@ThreadSafe
+class PublishJournal implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PublishJournal.class);
+
+  static final byte PENDING = 0;
+  static final byte CONFIRMED = 1;
+
+  private static final int HEADER_BYTES = 4 + 4 + 1;
+  private static final int STATE_OFFSET = 8;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".journal";
+  private static final String LOCK_FILE = "journal.lock";
+  // Tags of the types of header values, other values are kept as strings
+  private static final byte STRING_HEADER = 'S';
+  private static final byte INT_HEADER = 'I';
+  private static final byte LONG_HEADER = 'L';
+  private static final byte BOOLEAN_HEADER = 'Z';
+  private static final byte DOUBLE_HEADER = 'D';
+
+  /** A journaled message that still has to be confirmed. */
+  static final class Entry {
+    private final Segment segment;
+    private final int offset;
+    private final OutgoingMessage message;
+
+    private Entry(Segment segment, int offset, OutgoingMessage message) {
+      this.segment = segment;
+      this.offset = offset;
+      this.message = message;
+    }
+
+    OutgoingMessage getMessage() {
+      return message;
+    }
+  }
+
+  /** A mapped segment file, counting how many of its entries still have to be confirmed. */
+  private static final class Segment {
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean deleted = new AtomicBoolean();
+    private volatile boolean sealed;
+
+    private Segment(Path path, MappedByteBuffer buffer) {
+      this.path = path;
+      this.buffer = buffer;
+    }
+  }
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final boolean force;
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+  private final List<Entry> unconfirmed;
+
+  private final ReentrantLock appendLock = new ReentrantLock();
+
+  @GuardedBy("appendLock")
+  private Segment current;
+
+  @GuardedBy("appendLock")
+  private long nextSegment;
+
+  /**
+   * Opens the journal in the configured directory, creating it if needed, and reads the entries
+   * left unconfirmed by a previous process.
+   *
+   * @throws IOException if the directory can't be used or another process has the journal open
+   */
+  PublishJournal(PublisherConfiguration config) throws IOException {
+    PreconditionUtils.checkArgument(
+        config.journalDirectory != null, "journalDirectory can't be null");
+    PreconditionUtils.checkArgument(
+        config.journalSegmentBytes >= 1024, "journalSegmentBytes needs to be at least 1024");
+    this.directory = Paths.get(config.journalDirectory);
+    this.segmentBytes = config.journalSegmentBytes;
+    this.force = config.journalForce;
+
+    Files.createDirectories(directory);
+    lockChannel =
+        FileChannel.open(
+            directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock acquired;
+    try {
+      acquired = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // held by another publisher of this JVM
+      acquired = null;
+    }
+    lock = acquired;
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException("Journal " + directory + " is in use by another process");
+    }
+
+    List<Entry> recovered = new ArrayList<>();
+    for (Path path : segmentFiles()) {
+      nextSegment = Math.max(nextSegment, segmentNumber(path) + 1);
+      recover(path, recovered);
+    }
+    unconfirmed = Collections.unmodifiableList(recovered);
+    if (!unconfirmed.isEmpty()) {
+      LOG.info("Journal {} holds {} unconfirmed messages", directory, unconfirmed.size());
+    }
+  }
+
+  /** @return the entries left unconfirmed by a previous process, oldest first */
+  List<Entry> getUnconfirmed() {
+    return unconfirmed;
+  }
+
+  /** Appends a message to the journal, rolling over to a new segment if the current one is full. */
+  Entry append(OutgoingMessage message) throws IOException {
+    byte[] payload = encode(message);
+    int length = HEADER_BYTES + payload.length;
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    appendLock.lock();
+    try {
+      // leave room for the 0 length marking the end of the segment
+      if (current == null || current.buffer.remaining() < length + 4) {
+        roll(length + 4);
+      }
+      Segment segment = current;
+      int offset = segment.buffer.position();
+      segment.buffer.position(offset + 4);
+      segment.buffer.putInt((int) crc.getValue());
+      segment.buffer.put(PENDING);
+      segment.buffer.put(payload);
+      // the length goes last, so a partially written entry is never read
+      segment.buffer.putInt(offset, payload.length);
+      if (force) {
+        segment.buffer.force();
+      }
+      segment.pending.incrementAndGet();
+      return new Entry(segment, offset, message);
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /** Marks an entry as confirmed, deleting its segment if that was the last pending entry. */
+  void confirm(Entry entry) {
+    Segment segment = entry.segment;
+    segment.buffer.put(entry.offset + STATE_OFFSET, CONFIRMED);
+    if (segment.pending.decrementAndGet() == 0 && segment.sealed) {
+      delete(segment);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    appendLock.lock();
+    try {
+      if (current != null) {
+        current.buffer.force();
+      }
+    } finally {
+      appendLock.unlock();
+      try {
+        lock.release();
+      } finally {
+        lockChannel.close();
+      }
+    }
+  }
+
+  @GuardedBy("appendLock")
+  private void roll(int minBytes) throws IOException {
+    if (current != null) {
+      seal(current);
+    }
+    String name = String.format("%s%020d%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX);
+    Path path = directory.resolve(name);
+    current = new Segment(path, map(path, Math.max(segmentBytes, minBytes)));
+    LOG.debug("Started journal segment {}", path);
+  }
+
+  private void seal(Segment segment) {
+    segment.sealed = true;
+    if (segment.pending.get() == 0) {
+      delete(segment);
+    }
+  }
+
+  private void delete(Segment segment) {
+    if (segment.deleted.compareAndSet(false, true)) {
+      try {
+        Files.deleteIfExists(segment.path);
+        LOG.debug("Deleted confirmed journal segment {}", segment.path);
+      } catch (IOException e) {
+        LOG.warn("Failed to delete journal segment {}", segment.path, e);
+      }
+    }
+  }
+
+  /** Reads the unconfirmed entries of a segment left by a previous process. */
+  private void recover(Path path, List<Entry> recovered) throws IOException {
+    Segment segment = new Segment(path, map(path, (int) Files.size(path)));
+    ByteBuffer buffer = segment.buffer;
+    int entries = 0;
+    while (buffer.remaining() >= HEADER_BYTES) {
+      int offset = buffer.position();
+      int length = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining() - (HEADER_BYTES - 4)) {
+        break;
+      }
+      int checksum = buffer.getInt();
+      byte state = buffer.get();
+      byte[] payload = new byte[length];
+      buffer.get(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != checksum) {
+        LOG.warn(
+            "Corrupt entry in journal segment {} at offset {}, ignoring the rest", path, offset);
+        break;
+      }
+      entries++;
+      if (state == PENDING) {
+        segment.pending.incrementAndGet();
+        recovered.add(new Entry(segment, offset, decode(payload)));
+      }
+    }
+    LOG.debug("Recovered {} entries from journal segment {}", entries, path);
+    seal(segment);
+  }
+
+  private List<Path> segmentFiles() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      List<Path> segments = new ArrayList<>();
+      files
+          .filter(
+              p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+              })
+          .forEach(segments::add);
+      // the zero padded numbers sort by name
+      Collections.sort(segments);
+      return segments;
+    }
+  }
+
+  private static long segmentNumber(Path path) {
+    String name = path.getFileName().toString();
+    return Long.parseLong(
+        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private static MappedByteBuffer map(Path path, int size) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // the mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  /**
+   * Encodes the message. Of the properties only those set by the publisher are kept, header values
+   * are stored with a tag of their type so the {@link MessageHeaders} read the same after a replay.
+   */
+  private static byte[] encode(OutgoingMessage message) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.getBody().length + 128);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(message.getExchange());
+      out.writeUTF(message.getRoutingKey());
+      AMQP.BasicProperties properties = message.getProperties();
+      boolean hasProperties = properties != null;
+      out.writeBoolean(hasProperties);
+      if (hasProperties) {
+        writeNullable(out, properties.getContentType());
+        writeNullable(out, properties.getContentEncoding());
+        writeNullable(out, properties.getDeliveryMode());
+        writeNullable(out, properties.getPriority());
+        writeNullable(out, properties.getType());
+        Map<String, Object> headers =
+            properties.getHeaders() == null ? Collections.emptyMap() : properties.getHeaders();
+        out.writeInt(headers.size());
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+          out.writeUTF(header.getKey());
+          writeHeaderValue(out, header.getValue());
+        }
+      }
+      out.writeInt(message.getBody().length);
+      out.write(message.getBody());
+    }
+    return bytes.toByteArray();
+  }
+
+  private static OutgoingMessage decode(byte[] payload) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+      String exchange = in.readUTF();
+      String routingKey = in.readUTF();
+      AMQP.BasicProperties properties = null;
+      if (in.readBoolean()) {
+        AMQP.BasicProperties.Builder builder =
+            new AMQP.BasicProperties.Builder()
+                .contentType(readNullable(in))
+                .contentEncoding(readNullable(in))
+                .deliveryMode(readNullableInt(in))
+                .priority(readNullableInt(in))
+                .type(readNullable(in));
+        int headerCount = in.readInt();
+        if (headerCount > 0) {
+          Map<String, Object> headers = new HashMap<>();
+          for (int i = 0; i < headerCount; i++) {
+            headers.put(in.readUTF(), readHeaderValue(in));
+          }
+          builder.headers(headers);
+        }
+        properties = builder.build();
+      }
+      byte[] body = new byte[in.readInt()];
+      in.readFully(body);
+      return new OutgoingMessage(exchange, routingKey, properties, body);
+    }
+  }
+
+  private static void writeNullable(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static void writeNullable(DataOutputStream out, Integer value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeInt(value);
+    }
+  }
+
+  private static void writeHeaderValue(DataOutputStream out, Object value) throws IOException {
+    if (value instanceof Integer) {
+      out.writeByte(INT_HEADER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG_HEADER);
+      out.writeLong((Long) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN_HEADER);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE_HEADER);
+      out.writeDouble((Double) value);
+    } else {
+      out.writeByte(STRING_HEADER);
+      out.writeUTF(String.valueOf(value));
+    }
+  }
+
+  private static Object readHeaderValue(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case INT_HEADER:
+        return in.readInt();
+      case LONG_HEADER:
+        return in.readLong();
+      case BOOLEAN_HEADER:
+        return in.readBoolean();
+      case DOUBLE_HEADER:
+        return in.readDouble();
+      case STRING_HEADER:
+        return in.readUTF();
+      default:
+        throw new IOException("Unknown type of header value " + type);
+    }
+  }
+
+  private static String readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static Integer readNullableInt(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readInt() : null;
+  }
+}
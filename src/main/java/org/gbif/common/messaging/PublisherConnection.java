@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.PublisherConfiguration;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * One of the connections of a {@link DefaultMessagePublisher} together with the channel pools
+ * multiplexed over it.
+ */
+@ThreadSafe
+class PublisherConnection {
+
+  private final Connection connection;
+  private final ChannelPool<Channel> channelPool;
+  private final ChannelPool<ConfirmingChannel> confirmChannelPool;
+
+  PublisherConnection(Connection connection, PublisherConfiguration config) throws IOException {
+    this.connection = Objects.requireNonNull(connection, "connection can't be null");
+    channelPool = new ChannelPool<>("publisher", config, connection::createChannel, c -> c);
+    confirmChannelPool =
+        new ChannelPool<>(
+            "confirm",
+            config,
+            () -> new ConfirmingChannel(connection.createChannel()),
+            ConfirmingChannel::getChannel);
+  }
+
+  Connection getConnection() {
+    return connection;
+  }
+
+  /** The pool of channels used by the synchronous send methods. */
+  ChannelPool<Channel> getChannelPool() {
+    return channelPool;
+  }
+
+  /**
+   * The pool of channels in confirm mode used by the asynchronous send methods. These are kept
+   * separate from the other channels so fire-and-forget sends don't pay for confirms.
+   */
+  ChannelPool<ConfirmingChannel> getConfirmChannelPool() {
+    return confirmChannelPool;
+  }
+}
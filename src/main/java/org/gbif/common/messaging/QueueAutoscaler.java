@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.ListenerConfiguration;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Scales the consumers of a queue of a {@link MessageListener} to its backlog. Every check reads
+ * the number of messages waiting with a passive declare and the rate at which the consumers
+ * handled messages since the last check, and asks for as many consumers as work off the backlog
+ * within the target drain time, within the bounds.
+ *
+ * <p>Consumers are added as soon as they are needed but only removed once at most {@code 1 -
+ * hysteresis} of them are, so a queue hovering around a threshold doesn't flap, and nothing is
+ * changed within the cool-down after the last change, which also gives new consumers the time to
+ * show their rate.
+ *
+ * <p>Checks are run by the single thread autoscaling scheduler of the listener, one after another,
+ * so their blocking declares and scaling don't hold up the flushing of acks.
+ */
+@NotThreadSafe
+class QueueAutoscaler implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(QueueAutoscaler.class);
+
+  private final MessageListener listener;
+  private final String queue;
+  private final int minConsumers;
+  private final int maxConsumers;
+  private final long cooldownNanos;
+  private final double drainSeconds;
+  private final double hysteresis;
+  private final LongSupplier nanoClock;
+
+  private ScheduledExecutorService scheduler;
+  private Future<?> schedule;
+  private Channel channel;
+  private long lastCheckNanos;
+  private long lastHandled = -1;
+  private long lastScaledNanos;
+
+  QueueAutoscaler(
+      MessageListener listener,
+      String queue,
+      int minConsumers,
+      int maxConsumers,
+      ListenerConfiguration config,
+      LongSupplier nanoClock) {
+    this.listener = Objects.requireNonNull(listener, "listener can't be null");
+    this.queue = Objects.requireNonNull(queue, "queue can't be null");
+    this.minConsumers = minConsumers;
+    this.maxConsumers = maxConsumers;
+    this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(config.autoscaleCooldownMs);
+    this.drainSeconds = config.autoscaleTargetDrainMs / 1000d;
+    this.hysteresis = config.autoscaleHysteresis;
+    this.nanoClock = nanoClock;
+    // the first check may scale right away
+    this.lastScaledNanos = nanoClock.getAsLong() - cooldownNanos;
+  }
+
+  /** Starts checking the queue periodically. */
+  void start(ScheduledExecutorService scheduler, long intervalMs) {
+    this.scheduler = scheduler;
+    schedule =
+        scheduler.scheduleWithFixedDelay(this, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops checking the queue and closes the channel used for the passive declares. */
+  void stop() {
+    schedule.cancel(false);
+    // after a check which may be running
+    scheduler.execute(
+        () -> {
+          if (channel != null) {
+            listener.closeChannel(channel);
+          }
+        });
+  }
+
+  @Override
+  public void run() {
+    try {
+      check();
+    } catch (Exception e) {
+      // keep checking, a failed check must not cancel the schedule
+      LOG.warn("Failure autoscaling queue {}", queue, e);
+    }
+  }
+
+  private void check() throws IOException {
+    int consumers = listener.getConsumerCount(queue);
+    if (consumers == 0) {
+      // paused, or not listened to anymore
+      lastHandled = -1;
+      return;
+    }
+    long now = nanoClock.getAsLong();
+    long handled = listener.getHandled(queue);
+    double ratePerConsumer = Double.NaN;
+    if (lastHandled >= 0 && now > lastCheckNanos) {
+      double seconds = (now - lastCheckNanos) / 1e9;
+      ratePerConsumer = (handled - lastHandled) / seconds / consumers;
+    }
+    lastHandled = handled;
+    lastCheckNanos = now;
+
+    int desired = desiredConsumers(backlog(), ratePerConsumer, consumers, now);
+    if (desired != consumers) {
+      LOG.info(
+          "Autoscaling queue {} from {} to {} consumers, handling {} messages/s each",
+          queue,
+          consumers,
+          desired,
+          String.format("%.1f", ratePerConsumer));
+      listener.scaleUnlessPaused(queue, desired);
+      // the rate of the old consumers says little about the new ones
+      lastHandled = -1;
+    }
+  }
+
+  /**
+   * Decides on the number of consumers, a change starts the cool-down.
+   *
+   * @param ratePerConsumer messages handled per second and consumer, {@code NaN} if unknown
+   * @return the number of consumers to have
+   */
+  int desiredConsumers(long backlog, double ratePerConsumer, int consumers, long nowNanos) {
+    if (nowNanos - lastScaledNanos < cooldownNanos) {
+      return consumers;
+    }
+    int desired;
+    if (backlog == 0) {
+      desired = minConsumers;
+    } else if (Double.isNaN(ratePerConsumer)) {
+      // wait for the rate, unless out of bounds
+      desired = consumers;
+    } else if (ratePerConsumer == 0) {
+      // nothing was handled, the callbacks are slower than the checks
+      desired = consumers + 1;
+    } else {
+      desired = (int) Math.min(Math.ceil(backlog / (ratePerConsumer * drainSeconds)), maxConsumers);
+    }
+    desired = Math.max(minConsumers, Math.min(desired, maxConsumers));
+    if (desired < consumers && desired > consumers * (1 - hysteresis)) {
+      return consumers;
+    }
+    if (desired != consumers) {
+      lastScaledNanos = nowNanos;
+    }
+    return desired;
+  }
+
+  /** @return the number of messages ready in the queue */
+  private long backlog() throws IOException {
+    if (channel == null || !channel.isOpen()) {
+      // a failed passive declare closes the channel
+      channel = listener.createChannel();
+    }
+    return channel.queueDeclarePassive(queue).getMessageCount();
+  }
+}
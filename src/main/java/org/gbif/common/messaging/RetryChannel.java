@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * The channel a {@link MessageListener} republishes failed messages on, to their retry queues or
+ * the parking lot. It is a channel of its own in confirm mode, apart from the consumer channels
+ * whose callbacks run on many threads, so every message is confirmed on its own future rather
+ * than by waiting for all confirms outstanding on a shared channel.
+ *
+ * <p>The channel is opened when first needed and opened again once it closed. Publishing is
+ * serialized, waiting for the confirms is not.
+ */
+@ThreadSafe
+class RetryChannel implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RetryChannel.class);
+  private static final String DEFAULT_EXCHANGE = "";
+
+  private final ChannelPool.ChannelFactory<Channel> factory;
+
+  @GuardedBy("this")
+  private ConfirmingChannel channel;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  RetryChannel(ChannelPool.ChannelFactory<Channel> factory) {
+    this.factory = Objects.requireNonNull(factory, "factory can't be null");
+  }
+
+  /**
+   * Publishes a message to a queue through the default exchange.
+   *
+   * @return a future that completes once the broker confirmed the message, and fails if it nacked
+   *     it or the channel closed before
+   * @throws IOException if the message could not be handed to the channel at all
+   */
+  synchronized CompletableFuture<Void> publish(
+      String queue, AMQP.BasicProperties properties, byte[] body) throws IOException {
+    if (closed) {
+      throw new IOException("The retry channel is closed");
+    }
+    if (channel == null || !channel.isOpen()) {
+      channel = new ConfirmingChannel(factory.create());
+    }
+    try {
+      return channel.publish(DEFAULT_EXCHANGE, queue, properties, body);
+    } catch (ShutdownSignalException e) {
+      // closed under the publish, it is opened again for the next one
+      throw new IOException("The retry channel was closed", e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (channel != null && channel.isOpen()) {
+      try {
+        channel.getChannel().close();
+      } catch (Exception e) {
+        LOG.warn("Error closing the retry channel", e);
+      }
+    }
+  }
+}
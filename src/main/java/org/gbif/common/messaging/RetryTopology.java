@@ -0,0 +1,160 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.ListenerConfiguration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * The queues the failed messages of a queue are retried through. Every retry waits in a queue of
+ * its own whose messages expire after the delay of that retry, growing exponentially, and are then
+ * dead-lettered back to the queue through the default exchange. Messages still failing after the
+ * last retry, and messages which can't be deserialized, end up in the parking lot queue to be
+ * looked at.
+ *
+ * <p>Failed messages are republished to these queues rather than dead-lettered there, so queues
+ * declared before can keep their arguments, and counted in the {@value #RETRY_COUNT_HEADER}
+ * header. As they come back with the name of the queue as routing key, the routing key they were
+ * first published with is kept in the {@value #ROUTING_KEY_HEADER} header.
+ *
+ * <p>Messages are republished on the {@link RetryChannel} of the listener and only considered
+ * moved once the broker confirmed them, so the original can be acked without the risk of losing
+ * it.
+ */
+@Immutable
+class RetryTopology {
+
+  static final String RETRY_COUNT_HEADER = "x-retry-count";
+  static final String ROUTING_KEY_HEADER = "x-original-routing-key";
+  private static final String DEFAULT_EXCHANGE = "";
+  private static final long CONFIRM_TIMEOUT_MS = 10_000;
+
+  private final String queue;
+  private final long[] delaysMs;
+  private final RetryChannel retryChannel;
+
+  RetryTopology(String queue, ListenerConfiguration config, RetryChannel retryChannel) {
+    this.queue = Objects.requireNonNull(queue, "queue can't be null");
+    this.retryChannel = Objects.requireNonNull(retryChannel, "retryChannel can't be null");
+    delaysMs = new long[config.retryAttempts];
+    double delayMs = config.retryInitialDelayMs;
+    for (int i = 0; i < delaysMs.length; i++) {
+      delaysMs[i] = (long) delayMs;
+      delayMs *= config.retryBackoffMultiplier;
+    }
+  }
+
+  /** @return the queue the message waits in before its retry, 1 for the first one */
+  String getRetryQueue(int retry) {
+    return queue + ".retry." + retry;
+  }
+
+  String getParkingLot() {
+    return queue + ".parking-lot";
+  }
+
+  /** Declares the retry queues and the parking lot. */
+  void declare(Channel channel) throws IOException {
+    for (int i = 0; i < delaysMs.length; i++) {
+      Map<String, Object> arguments = new HashMap<>();
+      arguments.put("x-message-ttl", delaysMs[i]);
+      arguments.put("x-dead-letter-exchange", DEFAULT_EXCHANGE);
+      arguments.put("x-dead-letter-routing-key", queue);
+      channel.queueDeclare(getRetryQueue(i + 1), true, false, false, arguments);
+    }
+    channel.queueDeclare(getParkingLot(), true, false, false, null);
+  }
+
+  /**
+   * Republishes a failed message to wait for its next retry, or to the parking lot if it was
+   * retried as often as configured.
+   *
+   * @return whether it will be retried
+   * @throws IOException if the message couldn't be republished or the broker didn't confirm it
+   */
+  boolean retry(Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+      throws IOException {
+    int retry = getRetryCount(properties) + 1;
+    if (retry > delaysMs.length) {
+      park(properties, body);
+      return false;
+    }
+    Map<String, Object> headers =
+        properties.getHeaders() == null
+            ? new HashMap<>()
+            : new HashMap<>(properties.getHeaders());
+    headers.put(RETRY_COUNT_HEADER, retry);
+    headers.putIfAbsent(ROUTING_KEY_HEADER, envelope.getRoutingKey());
+    AMQP.BasicProperties retried = properties.builder().headers(headers).build();
+    publish(getRetryQueue(retry), retried, body);
+    return true;
+  }
+
+  /**
+   * Republishes a message to the parking lot.
+   *
+   * @throws IOException if the message couldn't be republished or the broker didn't confirm it
+   */
+  void park(AMQP.BasicProperties properties, byte[] body) throws IOException {
+    publish(getParkingLot(), properties, body);
+  }
+
+  /** Publishes to a queue and waits for the broker to confirm this message. */
+  private void publish(String queue, AMQP.BasicProperties properties, byte[] body)
+      throws IOException {
+    try {
+      retryChannel
+          .publish(queue, properties, body)
+          .get(CONFIRM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for the confirm from " + queue);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause()
+          : new IOException(e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for the confirm from " + queue, e);
+    }
+  }
+
+  /** @return how often the message was retried, from its header */
+  static int getRetryCount(AMQP.BasicProperties properties) {
+    Object count =
+        properties.getHeaders() == null ? null : properties.getHeaders().get(RETRY_COUNT_HEADER);
+    return count instanceof Number ? ((Number) count).intValue() : 0;
+  }
+
+  /** @return the routing key the message was published with, before it was retried */
+  static String getRoutingKey(Envelope envelope, AMQP.BasicProperties properties) {
+    Object routingKey =
+        properties.getHeaders() == null ? null : properties.getHeaders().get(ROUTING_KEY_HEADER);
+    // header strings arrive as LongString
+    return routingKey == null ? envelope.getRoutingKey() : routingKey.toString();
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.codec.MessageCodec;
+import org.gbif.common.messaging.codec.MessageCodecs;
+import org.gbif.common.messaging.codec.PayloadCompressor;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Sends requests and matches the replies to them by correlation id.
+ *
+ * <p>All calls share one channel, which consumes the RabbitMQ direct reply-to pseudo queue, so a
+ * call costs a single publish and replies arrive without a queue being declared. The channel is
+ * opened with the first call and reopened when it was closed, failing the calls still waiting
+ * for a reply on it.
+ */
+@ThreadSafe
+class RpcClient implements Closeable {
+
+  static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+  private static final Logger LOG = LoggerFactory.getLogger(RpcClient.class);
+  private static final String IDENTITY = "identity";
+
+  private final Connection connection;
+  private final MessageCodecs codecs;
+  private final ConcurrentMap<String, PendingCall<?>> pending = new ConcurrentHashMap<>();
+  private final Lock lock = new ReentrantLock();
+
+  @GuardedBy("lock")
+  private Channel channel;
+
+  @GuardedBy("lock")
+  private boolean closed;
+
+  RpcClient(Connection connection, MessageCodecs codecs) {
+    this.connection = Objects.requireNonNull(connection, "connection can't be null");
+    this.codecs = Objects.requireNonNull(codecs, "codecs can't be null");
+  }
+
+  /**
+   * Publishes a request and returns the future of its reply.
+   *
+   * @param properties of the request, the reply-to and correlation id are set here
+   * @param correlationId unique among the calls waiting for a reply
+   * @param timeout after which the future fails with a {@code TimeoutException}, {@code null} to
+   *     wait as long as the channel is open
+   * @throws IllegalArgumentException if a call with the same correlation id is waiting for a reply
+   */
+  <T> CompletableFuture<T> call(
+      String exchange,
+      String routingKey,
+      AMQP.BasicProperties properties,
+      byte[] body,
+      String correlationId,
+      JavaType responseType,
+      @Nullable Duration timeout)
+      throws IOException {
+    PendingCall<T> call = new PendingCall<>(responseType);
+    if (pending.putIfAbsent(correlationId, call) != null) {
+      throw new IllegalArgumentException("Already waiting for a reply to " + correlationId);
+    }
+    call.future.whenComplete((result, e) -> pending.remove(correlationId, call));
+
+    lock.lock();
+    try {
+      Channel current = channel();
+      call.channel = current;
+      current.basicPublish(
+          exchange,
+          routingKey,
+          properties.builder().replyTo(DIRECT_REPLY_TO).correlationId(correlationId).build(),
+          body);
+    } catch (IOException | RuntimeException e) {
+      call.future.completeExceptionally(e);
+      throw e;
+    } finally {
+      lock.unlock();
+    }
+
+    if (timeout != null) {
+      call.future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    return call.future;
+  }
+
+  /** @return the number of calls waiting for their reply */
+  int getPendingCalls() {
+    return pending.size();
+  }
+
+  /** Fails the calls waiting for a reply and closes the channel. */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      if (channel != null && channel.isOpen()) {
+        channel.close();
+      }
+    } catch (Exception e) {
+      LOG.warn("Couldn't close RPC channel", e);
+    } finally {
+      channel = null;
+      lock.unlock();
+    }
+    for (PendingCall<?> call : pending.values()) {
+      call.future.completeExceptionally(new IOException("RPC client closed"));
+    }
+  }
+
+  /**
+   * Publishing and consuming the replies has to happen on the same channel with direct reply-to,
+   * so the channel is opened and published on under the lock.
+   */
+  @GuardedBy("lock")
+  private Channel channel() throws IOException {
+    if (closed) {
+      throw new IOException("RPC client closed");
+    }
+    if (channel == null || !channel.isOpen()) {
+      Channel opened = connection.createChannel();
+      if (opened == null) {
+        throw new IOException("No channel available on the connection");
+      }
+      opened.basicConsume(DIRECT_REPLY_TO, true, new ReplyConsumer(opened));
+      channel = opened;
+    }
+    return channel;
+  }
+
+  /** Fails the calls whose replies would have been delivered to the channel. */
+  private void failCallsOn(Channel closedChannel, Throwable cause) {
+    for (PendingCall<?> call : pending.values()) {
+      if (call.channel == closedChannel) {
+        call.future.completeExceptionally(cause);
+      }
+    }
+  }
+
+  private void reply(AMQP.BasicProperties properties, byte[] body) {
+    String correlationId = properties.getCorrelationId();
+    PendingCall<?> call = correlationId == null ? null : pending.get(correlationId);
+    if (call == null) {
+      // the call timed out or the reply is a duplicate
+      LOG.debug("Dropping reply with unknown correlation id [{}]", correlationId);
+      return;
+    }
+    try {
+      call.complete(decode(codecs, properties, body, call.responseType));
+    } catch (IOException | RuntimeException e) {
+      call.future.completeExceptionally(e);
+    }
+  }
+
+  /** Decodes a reply with the codec and compressor selected by its content type and encoding. */
+  static Object decode(
+      MessageCodecs codecs, AMQP.BasicProperties properties, byte[] body, JavaType type)
+      throws IOException {
+    MessageCodec codec = codecs.forDecoding(properties.getContentType());
+    String encoding = properties.getContentEncoding();
+    if (encoding == null || IDENTITY.equalsIgnoreCase(encoding)) {
+      return codec.decode(body, type);
+    }
+    PayloadCompressor compressor =
+        codecs
+            .getCompressor(encoding)
+            .orElseThrow(() -> new IOException("Unknown content encoding " + encoding));
+    try (InputStream in = compressor.decompress(new ByteArrayInputStream(body))) {
+      return codec.decode(in.readAllBytes(), type);
+    }
+  }
+
+  private static class PendingCall<T> {
+    private final JavaType responseType;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private volatile Channel channel;
+
+    private PendingCall(JavaType responseType) {
+      this.responseType = responseType;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete(Object reply) {
+      future.complete((T) reply);
+    }
+  }
+
+  private class ReplyConsumer extends DefaultConsumer {
+
+    private final Channel channel;
+
+    private ReplyConsumer(Channel channel) {
+      super(channel);
+      this.channel = channel;
+    }
+
+    @Override
+    public void handleDelivery(
+        String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+      reply(properties, body);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+      // replies to calls sent on this channel would have been delivered to it
+      if (!sig.isInitiatedByApplication()) {
+        LOG.warn("RPC channel closed, failing the calls waiting for a reply", sig);
+      }
+      failCallsOn(channel, new IOException("RPC channel closed", sig));
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.rabbitmq.client.Consumer;
+
+/**
+ * A consumer of a {@link MessageListener} which settles the messages it was delivered once it is
+ * cancelled, so its channel can be closed without them being redelivered.
+ */
+interface StoppableConsumer extends Consumer {
+
+  /**
+   * @return completed once the consumer was cancelled and settled all its messages, or its
+   *     channel was shut down
+   */
+  CompletableFuture<Void> whenStopped();
+
+  /**
+   * Stops handing deliveries to the callback ahead of cancelling the consumer. Deliveries arriving
+   * from now on are left unsettled, to be requeued all at once when the consumer stopped.
+   */
+  void drain();
+
+  /** @return the number of messages handed to the callback so far */
+  long getHandled();
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Matches routing keys against the binding patterns of a topic exchange, like the broker does: the
+ * words of a pattern are separated by dots, {@code *} matches exactly one word and {@code #} zero
+ * or more words.
+ *
+ * <p>The patterns are kept in a trie by word, so matching a routing key only visits the patterns
+ * sharing a prefix with it. Safe to match from several threads once all patterns were added.
+ *
+ * @param <V> of the values matched
+ */
+@NotThreadSafe
+class TopicTrie<V> {
+
+  private static final String ONE_WORD = "*";
+  private static final String ANY_WORDS = "#";
+
+  private final Node<V> root = new Node<>();
+
+  /** Adds the value under the pattern, next to any values added under it before. */
+  void add(String pattern, V value) {
+    Objects.requireNonNull(pattern, "pattern can't be null");
+    Objects.requireNonNull(value, "value can't be null");
+    Node<V> node = root;
+    for (String word : words(pattern)) {
+      node = node.children.computeIfAbsent(word, w -> new Node<>());
+    }
+    node.values.add(value);
+  }
+
+  /** @return the values of all patterns matching the routing key, in the order they were added */
+  Set<V> match(String routingKey) {
+    Objects.requireNonNull(routingKey, "routingKey can't be null");
+    Set<V> matches = new LinkedHashSet<>();
+    match(root, words(routingKey), 0, matches);
+    return matches;
+  }
+
+  private void match(Node<V> node, String[] words, int next, Set<V> matches) {
+    Node<V> anyWords = node.children.get(ANY_WORDS);
+    if (anyWords != null) {
+      // the # takes none or some of the remaining words
+      for (int i = next; i <= words.length; i++) {
+        match(anyWords, words, i, matches);
+      }
+    }
+    if (next == words.length) {
+      matches.addAll(node.values);
+      return;
+    }
+    Node<V> word = node.children.get(words[next]);
+    if (word != null) {
+      match(word, words, next + 1, matches);
+    }
+    Node<V> oneWord = node.children.get(ONE_WORD);
+    if (oneWord != null) {
+      match(oneWord, words, next + 1, matches);
+    }
+  }
+
+  private static String[] words(String key) {
+    // keeps empty words, which are allowed in routing keys
+    return key.split("\\.", -1);
+  }
+
+  private static final class Node<V> {
+    private final Map<String, Node<V>> children = new HashMap<>();
+    private final Set<V> values = new LinkedHashSet<>();
+  }
+}
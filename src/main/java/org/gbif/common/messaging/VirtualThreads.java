@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.utils.concurrent.NamedThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates executors running every task on a new virtual thread. The library is built for Java 17,
+ * so virtual threads are looked up reflectively and replaced by a cached pool of platform threads
+ * when the JVM doesn't have them.
+ */
+final class VirtualThreads {
+
+  private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+
+  private VirtualThreads() {}
+
+  /** @return an executor starting a thread per task, virtual if the JVM supports it */
+  static ExecutorService newThreadPerTaskExecutor(String name) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      return (ExecutorService)
+          Executors.class
+              .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+              .invoke(null, factory);
+    } catch (ReflectiveOperationException e) {
+      LOG.info("Virtual threads aren't available, using platform threads for {}", name);
+      return Executors.newCachedThreadPool(new NamedThreadFactory(name));
+    }
+  }
+}
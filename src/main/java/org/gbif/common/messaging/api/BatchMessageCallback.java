@@ -0,0 +1,44 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.api;
+
+import java.util.List;
+
+/**
+ * Called for batches of new messages, for callbacks which are cheaper when they process many
+ * messages at once, like writing them in bulk. Implementations of this class need to be
+ * thread-safe.
+ *
+ * <p>A batch is acknowledged as a whole once the callback returns. If it throws a {@link
+ * PartialBatchFailureException} only the failed messages are rejected, any other exception
+ * rejects the whole batch.
+ *
+ * @param <T> of the messages to process
+ */
+public interface BatchMessageCallback<T> {
+
+  /**
+   * Called every time a batch of messages is ready to process, in the order they were delivered.
+   *
+   * @param messages to process, never empty
+   */
+  void handleMessages(List<T> messages);
+
+  /**
+   * Returns the class of the messages to be handled (i.e. the type {@code T}.
+   *
+   * @return class of the messages to be handled
+   */
+  Class<T> getMessageClass();
+}
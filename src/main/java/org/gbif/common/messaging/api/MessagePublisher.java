@@ -14,6 +14,14 @@
 package org.gbif.common.messaging.api;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
 
 public interface MessagePublisher {
 
@@ -64,6 +72,123 @@ public interface MessagePublisher {
   void send(Object message, String exchange, String routingKey, boolean persistent)
       throws IOException;
 
+  /**
+   * Asynchronously sends a message to the default exchange for this message and uses the routing
+   * key calculated from the message.
+   *
+   * @param message to send
+   * @return a future that completes once the broker confirmed the message
+   * @see #sendAsync(Object, String, String, boolean)
+   */
+  default CompletableFuture<Void> sendAsync(Message message) {
+    return sendAsync(message, false);
+  }
+
+  /**
+   * Asynchronously sends an optionally persistent message to the default exchange for this message
+   * and uses the routing key calculated from the message.
+   *
+   * @param message to send
+   * @param persistent whether the message should be persisted by the broker
+   * @return a future that completes once the broker confirmed the message
+   * @see #sendAsync(Object, String, String, boolean)
+   */
+  default CompletableFuture<Void> sendAsync(Message message, boolean persistent) {
+    try {
+      send(message, persistent);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Asynchronously sends the optionally persistent message to the given exchange with the given
+   * routing key.
+   *
+   * <p>The returned future completes once the broker confirmed the message and fails with an
+   * {@link IOException} if the message could not be published or was rejected by the broker. The
+   * default implementation publishes synchronously and completes as soon as the message was handed
+   * to the broker, implementations supporting publisher confirms should override it.
+   *
+   * @param message to send. This is being converted into JSON using Jackson
+   * @param exchange to publish to
+   * @param routingKey to use
+   * @param persistent whether the message should be persisted by the broker
+   * @return a future that completes once the broker confirmed the message
+   */
+  default CompletableFuture<Void> sendAsync(
+      Object message, String exchange, String routingKey, boolean persistent) {
+    try {
+      send(message, exchange, routingKey, persistent);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Sends a batch of messages, each to the default exchange for its type and using the routing key
+   * calculated from the message.
+   *
+   * @param messages to send
+   * @see #sendBatch(Collection, String, String, boolean)
+   */
+  default void sendBatch(Collection<? extends Message> messages) throws IOException {
+    sendBatch(messages, false);
+  }
+
+  /**
+   * Sends a batch of optionally persistent messages, each to the default exchange for its type and
+   * using the routing key calculated from the message.
+   *
+   * <p>The default implementation sends the messages one by one, implementations should override
+   * it to publish the batch more efficiently.
+   *
+   * @param messages to send
+   * @param persistent whether the messages should be persisted by the broker
+   */
+  default void sendBatch(Collection<? extends Message> messages, boolean persistent)
+      throws IOException {
+    for (Message message : messages) {
+      send(message, persistent);
+    }
+  }
+
+  /**
+   * Sends a batch of messages to the given exchange with the given routing key.
+   *
+   * @param messages to send. These are being converted into JSON using Jackson
+   * @param exchange to publish to
+   * @param routingKey to use
+   * @see #sendBatch(Collection, String, String, boolean)
+   */
+  default void sendBatch(Collection<?> messages, String exchange, String routingKey)
+      throws IOException {
+    sendBatch(messages, exchange, routingKey, false);
+  }
+
+  /**
+   * Sends a batch of optionally persistent messages to the given exchange with the given routing
+   * key. Returns once all messages have been handed to the broker, implementations supporting
+   * publisher confirms wait until the broker confirmed the whole batch.
+   *
+   * <p>The default implementation sends the messages one by one, implementations should override
+   * it to publish the batch more efficiently.
+   *
+   * @param messages to send. These are being converted into JSON using Jackson
+   * @param exchange to publish to
+   * @param routingKey to use
+   * @param persistent whether the messages should be persisted by the broker
+   */
+  default void sendBatch(
+      Collection<?> messages, String exchange, String routingKey, boolean persistent)
+      throws IOException {
+    for (Object message : messages) {
+      send(message, exchange, routingKey, persistent);
+    }
+  }
+
   /**
    * Sends a message to a reply queue. Tries to reuse a channel and only opens a new one if the old one was closed.
    *
@@ -85,9 +210,13 @@ public interface MessagePublisher {
    * @param correlationId used to correspond RPC messages with requests
    * @param replyTo callback queue
    * @param consumer reply message consumer
+   * @deprecated waits for the reply without a timeout and decodes it without a type, use {@link
+   *     #sendAndReceive(Object, String, String, boolean, Class, Duration)}
    */
+  @Deprecated
   <T> T sendAndReceive(Message message, String routingKey, boolean persistent, String correlationId)
       throws IOException, InterruptedException;
+
   /**
    * Sends and wait for reply of an optionally persistent message to the given exchange with the given routing key. Tries
    * to reuse a channel and only opens a new one if the old one was closed.
@@ -99,11 +228,88 @@ public interface MessagePublisher {
    * @param correlationId used to correspond RPC messages with requests
    * @param replyTo callback queue
    * @param consumer reply message consumer
+   * @deprecated waits for the reply without a timeout and decodes it without a type, use {@link
+   *     #sendAndReceive(Object, String, String, boolean, Class, Duration)}
    */
+  @Deprecated
   <T> T sendAndReceive(
       Object message, String exchange, String routingKey, boolean persistent, String correlationId)
       throws IOException, InterruptedException;
 
+  /**
+   * Sends a request to the given exchange with the given routing key and returns the future of the
+   * reply. Concurrent calls share a single reply consumer, replies are matched to their requests by
+   * a correlation id generated for every call.
+   *
+   * @param message to send
+   * @param exchange to publish to
+   * @param routingKey to use
+   * @param persistent whether the request should be persisted by the broker
+   * <p>The default implementation fails with an {@link UnsupportedOperationException},
+   * implementations supporting requests and replies should override it.
+   *
+   * @param responseType to decode the reply into
+   * @param timeout after which the future fails with a {@link TimeoutException}
+   */
+  default <T> CompletableFuture<T> sendAndReceiveAsync(
+      Object message,
+      String exchange,
+      String routingKey,
+      boolean persistent,
+      JavaType responseType,
+      Duration timeout) {
+    return CompletableFuture.failedFuture(
+        new UnsupportedOperationException(
+            getClass().getSimpleName() + " doesn't support asynchronous requests"));
+  }
+
+  /** @see #sendAndReceiveAsync(Object, String, String, boolean, JavaType, Duration) */
+  default <T> CompletableFuture<T> sendAndReceiveAsync(
+      Object message,
+      String exchange,
+      String routingKey,
+      boolean persistent,
+      Class<T> responseType,
+      Duration timeout) {
+    return sendAndReceiveAsync(
+        message,
+        exchange,
+        routingKey,
+        persistent,
+        TypeFactory.defaultInstance().constructType(responseType),
+        timeout);
+  }
+
+  /**
+   * Sends a request to the given exchange with the given routing key and waits for the reply.
+   *
+   * @throws TimeoutException if there was no reply within the timeout
+   * @see #sendAndReceiveAsync(Object, String, String, boolean, JavaType, Duration)
+   */
+  default <T> T sendAndReceive(
+      Object message,
+      String exchange,
+      String routingKey,
+      boolean persistent,
+      Class<T> responseType,
+      Duration timeout)
+      throws IOException, InterruptedException, TimeoutException {
+    try {
+      return sendAndReceiveAsync(message, exchange, routingKey, persistent, responseType, timeout)
+          .get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        throw (TimeoutException) e.getCause();
+      }
+      if (e.getCause() instanceof UnsupportedOperationException) {
+        throw (UnsupportedOperationException) e.getCause();
+      }
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause()
+          : new IOException(e.getCause());
+    }
+  }
+
   /** Closes any resources used. */
   void close();
 }
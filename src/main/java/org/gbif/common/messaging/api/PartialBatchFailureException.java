@@ -0,0 +1,48 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.api;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Thrown by a {@link BatchMessageCallback} which failed to process some messages of a batch. The
+ * failed messages are rejected, the others are acknowledged.
+ */
+public class PartialBatchFailureException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final SortedSet<Integer> failedIndexes;
+
+  /**
+   * @param failedIndexes positions of the failed messages in the batch
+   * @param cause of the first failure, if there is one
+   */
+  public PartialBatchFailureException(Collection<Integer> failedIndexes, Throwable cause) {
+    super(failedIndexes.size() + " messages of the batch failed", cause);
+    this.failedIndexes = Collections.unmodifiableSortedSet(new TreeSet<>(failedIndexes));
+  }
+
+  public PartialBatchFailureException(Collection<Integer> failedIndexes) {
+    this(failedIndexes, null);
+  }
+
+  /** @return the positions of the failed messages in the batch, in ascending order */
+  public SortedSet<Integer> getFailedIndexes() {
+    return failedIndexes;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import java.util.Objects;
+import java.util.zip.Adler32;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A preset dictionary for deflate, trained from sample messages of one type by {@link
+ * DictionaryTrainer}. Its id is the Adler-32 checksum of its bytes, which is how zlib identifies
+ * the dictionary a stream was compressed with.
+ */
+@Immutable
+public final class CompressionDictionary {
+
+  private final String name;
+  private final byte[] bytes;
+  private final int id;
+
+  /**
+   * @param name of the message type the dictionary is used for, the fully qualified class name
+   * @param bytes of the dictionary, most frequent strings last
+   */
+  public CompressionDictionary(String name, byte[] bytes) {
+    this.name = Objects.requireNonNull(name, "name can't be null");
+    this.bytes = bytes.clone();
+    Adler32 checksum = new Adler32();
+    checksum.update(this.bytes);
+    this.id = (int) checksum.getValue();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public byte[] getBytes() {
+    return bytes.clone();
+  }
+
+  /** @return the bytes without a copy, they must not be modified */
+  byte[] bytes() {
+    return bytes;
+  }
+
+  public int size() {
+    return bytes.length;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s [id=%08x, %d bytes]", name, id, bytes.length);
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Deflate with a preset dictionary per message type, for small messages which are too short for
+ * plain deflate to find much repetition in.
+ *
+ * <p>The output is a zlib stream. Messages of a type with a dictionary carry the id of the
+ * dictionary in the zlib header, which is how consumers select the dictionary to inflate with, so
+ * producers and consumers need the same dictionaries. Messages of other types are compressed
+ * without one.
+ *
+ * <p>Publishers load it with the {@code compressionDictionaries} setting, listeners need it
+ * registered with their {@link MessageCodecs}.
+ */
+@ThreadSafe
+public class DictionaryCompressor implements PayloadCompressor {
+
+  public static final String ENCODING = "x-deflate-dictionary";
+
+  /** File extension of dictionaries written by {@link DictionaryTrainer}. */
+  public static final String FILE_EXTENSION = ".dict";
+
+  private static final int FDICT = 0x20;
+  private static final int HEADER_BYTES = 6;
+
+  private final Map<String, CompressionDictionary> byName = new HashMap<>();
+  private final Map<Integer, CompressionDictionary> byId = new HashMap<>();
+
+  public DictionaryCompressor(Collection<CompressionDictionary> dictionaries) {
+    for (CompressionDictionary dictionary : dictionaries) {
+      byName.put(dictionary.getName(), dictionary);
+      byId.put(dictionary.getId(), dictionary);
+    }
+  }
+
+  /**
+   * Reads the dictionaries of a directory, one file per message type named after the class with
+   * the {@link #FILE_EXTENSION} extension.
+   */
+  public static DictionaryCompressor load(Path directory) throws IOException {
+    List<CompressionDictionary> dictionaries = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_EXTENSION)) {
+      for (Path file : files) {
+        String fileName = file.getFileName().toString();
+        String name = fileName.substring(0, fileName.length() - FILE_EXTENSION.length());
+        dictionaries.add(new CompressionDictionary(name, Files.readAllBytes(file)));
+      }
+    }
+    return new DictionaryCompressor(dictionaries);
+  }
+
+  @Override
+  public String getEncoding() {
+    return ENCODING;
+  }
+
+  /** Compresses without a dictionary. */
+  @Override
+  public byte[] compress(byte[] body) {
+    return deflate(null, body);
+  }
+
+  /** Compresses with the dictionary of the type, if there is one. */
+  @Override
+  public byte[] compress(Class<?> type, byte[] body) {
+    return deflate(byName.get(type.getName()), body);
+  }
+
+  @Override
+  public InputStream decompress(InputStream body) throws IOException {
+    byte[] header = body.readNBytes(HEADER_BYTES);
+    Inflater inflater = new Inflater();
+    inflater.setInput(header);
+    if (header.length == HEADER_BYTES && (header[1] & FDICT) != 0) {
+      int id =
+          (header[2] & 0xff) << 24
+              | (header[3] & 0xff) << 16
+              | (header[4] & 0xff) << 8
+              | header[5] & 0xff;
+      CompressionDictionary dictionary = byId.get(id);
+      if (dictionary == null) {
+        inflater.end();
+        throw new ZipException(String.format("Unknown compression dictionary %08x", id));
+      }
+      try {
+        // reads the header, stopping where the dictionary is needed
+        inflater.inflate(new byte[1]);
+        inflater.setDictionary(dictionary.bytes());
+      } catch (DataFormatException e) {
+        inflater.end();
+        throw new ZipException(e.getMessage());
+      }
+    }
+    return new InflaterInputStream(body, inflater) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inf.end();
+        }
+      }
+    };
+  }
+
+  /** @return the dictionary used for messages of the type, null if there is none */
+  @Nullable
+  public CompressionDictionary getDictionary(Class<?> type) {
+    return byName.get(type.getName());
+  }
+
+  private static byte[] deflate(CompressionDictionary dictionary, byte[] body) {
+    Deflater deflater = new Deflater();
+    try {
+      if (dictionary != null) {
+        deflater.setDictionary(dictionary.bytes());
+      }
+      deflater.setInput(body);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2 + 16);
+      byte[] buffer = new byte[Math.min(body.length + 64, 8192)];
+      while (!deflater.finished()) {
+        compressed.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+}
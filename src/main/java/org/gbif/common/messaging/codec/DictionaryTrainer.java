@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import org.gbif.utils.PreconditionUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds {@link CompressionDictionary compression dictionaries} from captured messages.
+ *
+ * <p>Messages are split into JSON tokens, field names and values with the punctuation in front of
+ * them, and the tokens found in most messages make up the dictionary, weighted by their length.
+ * The best tokens are put at the end of the dictionary, where deflate references them with the
+ * shortest distances.
+ *
+ * <p>As a tool it reads a directory with one file of captured traffic per message type, named
+ * after the class with a {@code .jsonl} extension and holding one message per line, and writes a
+ * dictionary per type to be read by {@link DictionaryCompressor#load}:
+ *
+ * <pre>
+ *   java -cp ... org.gbif.common.messaging.codec.DictionaryTrainer captureDir outputDir [bytes]
+ * </pre>
+ */
+public final class DictionaryTrainer {
+
+  /** Beyond a few KB dictionaries compress small messages hardly better but cost more CPU. */
+  public static final int DEFAULT_DICTIONARY_BYTES = 4096;
+
+  private static final String SAMPLES_EXTENSION = ".jsonl";
+
+  private static final Pattern TOKEN =
+      Pattern.compile("[\\s{\\[,:]*(?:\"(?:[^\"\\\\]|\\\\.)*\"|[^\\s{}\\[\\],:\"]+)");
+
+  private DictionaryTrainer() {}
+
+  /**
+   * @param name of the message type, the fully qualified class name
+   * @param samples encoded messages of the type
+   * @param maxBytes size limit of the dictionary
+   */
+  public static CompressionDictionary train(
+      String name, Collection<byte[]> samples, int maxBytes) {
+    PreconditionUtils.checkArgument(!samples.isEmpty(), "No samples to train " + name);
+    PreconditionUtils.checkArgument(maxBytes > 0, "maxBytes has to be greater than 0");
+
+    // the number of messages every token occurs in
+    Map<String, Integer> occurrences = new HashMap<>();
+    for (byte[] sample : samples) {
+      Set<String> tokens = new HashSet<>();
+      // ISO-8859-1 maps every byte to one char, so the tokens convert back to the same bytes
+      Matcher matcher = TOKEN.matcher(new String(sample, StandardCharsets.ISO_8859_1));
+      while (matcher.find()) {
+        tokens.add(matcher.group());
+      }
+      for (String token : tokens) {
+        occurrences.merge(token, 1, Integer::sum);
+      }
+    }
+
+    int minOccurrences = samples.size() > 1 ? 2 : 1;
+    List<String> selected = new ArrayList<>();
+    int size = 0;
+    for (Map.Entry<String, Integer> token : byScore(occurrences)) {
+      int length = token.getKey().length();
+      if (token.getValue() >= minOccurrences && length > 1 && size + length <= maxBytes) {
+        selected.add(token.getKey());
+        size += length;
+      }
+    }
+
+    StringBuilder dictionary = new StringBuilder(size);
+    for (int i = selected.size() - 1; i >= 0; i--) {
+      dictionary.append(selected.get(i));
+    }
+    return new CompressionDictionary(
+        name, dictionary.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private static List<Map.Entry<String, Integer>> byScore(Map<String, Integer> occurrences) {
+    List<Map.Entry<String, Integer>> tokens = new ArrayList<>(occurrences.entrySet());
+    tokens.sort(
+        Comparator.comparingLong(
+                (Map.Entry<String, Integer> token) ->
+                    (long) token.getValue() * token.getKey().length())
+            .reversed()
+            .thenComparing(Map.Entry::getKey));
+    return tokens;
+  }
+
+  /** Reads the messages of a capture file, one per line. */
+  public static List<byte[]> readSamples(Path file) throws IOException {
+    List<byte[]> samples = new ArrayList<>();
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      if (!line.isBlank()) {
+        samples.add(line.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return samples;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: DictionaryTrainer captureDir outputDir [dictionaryBytes]");
+      System.exit(1);
+    }
+    Path captures = Paths.get(args[0]);
+    Path output = Files.createDirectories(Paths.get(args[1]));
+    int maxBytes = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_DICTIONARY_BYTES;
+
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(captures, "*" + SAMPLES_EXTENSION)) {
+      for (Path file : files) {
+        String fileName = file.getFileName().toString();
+        String name = fileName.substring(0, fileName.length() - SAMPLES_EXTENSION.length());
+        List<byte[]> samples = readSamples(file);
+        if (samples.isEmpty()) {
+          continue;
+        }
+        CompressionDictionary dictionary = train(name, samples, maxBytes);
+        Files.write(
+            output.resolve(name + DictionaryCompressor.FILE_EXTENSION), dictionary.bytes());
+        System.out.printf("%s from %d messages%n", dictionary, samples.size());
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * A codec backed by a Jackson {@link ObjectMapper}. Besides JSON, Jackson can read and write the
+ * binary Smile and CBOR formats with the same data binding, which are smaller and faster to parse.
+ */
+@ThreadSafe
+public class JacksonMessageCodec implements MessageCodec {
+
+  public static final String JSON = "application/json";
+  public static final String SMILE = "application/x-jackson-smile";
+  public static final String CBOR = "application/cbor";
+
+  private final ObjectMapper mapper;
+  private final String contentType;
+
+  public JacksonMessageCodec(ObjectMapper mapper, String contentType) {
+    this.mapper = Objects.requireNonNull(mapper, "mapper can't be null");
+    this.contentType = Objects.requireNonNull(contentType, "contentType can't be null");
+  }
+
+  /** @return a JSON codec using the mapper as it is */
+  public static JacksonMessageCodec json(ObjectMapper mapper) {
+    return new JacksonMessageCodec(mapper, JSON);
+  }
+
+  /** @return a Smile codec using a copy of the mapper, so it keeps its modules and features */
+  public static JacksonMessageCodec smile(ObjectMapper mapper) {
+    return new JacksonMessageCodec(mapper.copyWith(new SmileFactory()), SMILE);
+  }
+
+  /** @return a CBOR codec using a copy of the mapper, so it keeps its modules and features */
+  public static JacksonMessageCodec cbor(ObjectMapper mapper) {
+    return new JacksonMessageCodec(mapper.copyWith(new CBORFactory()), CBOR);
+  }
+
+  @Override
+  public String getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public byte[] encode(Object message) throws IOException {
+    return mapper.writeValueAsBytes(message);
+  }
+
+  @Override
+  public <T> T decode(byte[] body, Class<T> type) throws IOException {
+    return mapper.readValue(body, type);
+  }
+
+  @Override
+  public <T> T decode(InputStream body, Class<T> type) throws IOException {
+    return mapper.readValue(body, type);
+  }
+
+  @Override
+  public <T> T decode(byte[] body, JavaType type) throws IOException {
+    return mapper.readValue(body, type);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** The compression formats of the JDK, named like the HTTP content encodings. */
+public enum JdkCompressor implements PayloadCompressor {
+  GZIP("gzip") {
+    @Override
+    OutputStream compressing(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream body) throws IOException {
+      return new GZIPInputStream(body);
+    }
+  },
+
+  /** The zlib format, which is what HTTP calls deflate. */
+  DEFLATE("deflate") {
+    @Override
+    OutputStream compressing(OutputStream out) {
+      return new DeflaterOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream body) {
+      return new InflaterInputStream(body);
+    }
+  };
+
+  private final String encoding;
+
+  JdkCompressor(String encoding) {
+    this.encoding = encoding;
+  }
+
+  @Override
+  public String getEncoding() {
+    return encoding;
+  }
+
+  @Override
+  public byte[] compress(byte[] body) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+    try (OutputStream out = compressing(compressed)) {
+      out.write(body);
+    }
+    return compressed.toByteArray();
+  }
+
+  abstract OutputStream compressing(OutputStream out) throws IOException;
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.databind.JavaType;
+
+/**
+ * Turns messages into the bytes of an AMQP message body and back. Every codec is identified by the
+ * content type it stamps on the messages it encodes, which consumers use to pick the codec to
+ * decode them with.
+ *
+ * <p>Implementations need to be thread-safe.
+ */
+public interface MessageCodec {
+
+  /** @return the content type of the encoded messages, e.g. {@code application/json} */
+  String getContentType();
+
+  byte[] encode(Object message) throws IOException;
+
+  <T> T decode(byte[] body, Class<T> type) throws IOException;
+
+  /** Decodes a message read from a stream, e.g. one decompressing the body on the fly. */
+  <T> T decode(InputStream body, Class<T> type) throws IOException;
+
+  /** Decodes into a generic type, e.g. a list of messages. */
+  <T> T decode(byte[] body, JavaType type) throws IOException;
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import org.gbif.utils.PreconditionUtils;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The codecs known to a publisher or listener, by content type, and the compressors, by content
+ * encoding.
+ *
+ * <p>JSON is the default in both directions. Messages without a {@link Codec} annotation are
+ * encoded as JSON unless the publisher is configured otherwise, and messages with a missing or
+ * unknown content type are decoded as JSON, which is what all producers sent before codecs were
+ * introduced, usually labelled {@code text/plain}.
+ */
+@ThreadSafe
+public class MessageCodecs {
+
+  private static final ClassValue<Optional<String>> ANNOTATED_CONTENT_TYPES =
+      new ClassValue<Optional<String>>() {
+        @Override
+        protected Optional<String> computeValue(Class<?> type) {
+          Codec codec = type.getAnnotation(Codec.class);
+          return codec == null ? Optional.empty() : Optional.of(codec.value());
+        }
+      };
+
+  private final MessageCodec json;
+  private final ConcurrentMap<String, MessageCodec> codecs = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, PayloadCompressor> compressors = new ConcurrentHashMap<>();
+
+  private MessageCodecs(MessageCodec json) {
+    this.json = json;
+    register(json);
+  }
+
+  /**
+   * @return the JSON, Smile and CBOR codecs, all based on the given mapper, and the gzip and
+   *     deflate compressors
+   */
+  public static MessageCodecs withDefaults(ObjectMapper mapper) {
+    MessageCodecs codecs = new MessageCodecs(JacksonMessageCodec.json(mapper));
+    codecs.register(JacksonMessageCodec.smile(mapper));
+    codecs.register(JacksonMessageCodec.cbor(mapper));
+    for (JdkCompressor compressor : JdkCompressor.values()) {
+      codecs.register(compressor);
+    }
+    return codecs;
+  }
+
+  /** Adds a codec, replacing any registered for the same content type. */
+  public void register(MessageCodec codec) {
+    Objects.requireNonNull(codec, "codec can't be null");
+    codecs.put(normalize(codec.getContentType()), codec);
+  }
+
+  /** Adds a compressor, replacing any registered for the same content encoding. */
+  public void register(PayloadCompressor compressor) {
+    Objects.requireNonNull(compressor, "compressor can't be null");
+    compressors.put(normalize(compressor.getEncoding()), compressor);
+  }
+
+  /** @return the compressor registered for the content encoding */
+  public Optional<PayloadCompressor> getCompressor(@Nullable String encoding) {
+    return encoding == null
+        ? Optional.empty()
+        : Optional.ofNullable(compressors.get(normalize(encoding)));
+  }
+
+  /** @return the codec registered for the content type, ignoring parameters such as a charset */
+  public Optional<MessageCodec> get(@Nullable String contentType) {
+    return contentType == null
+        ? Optional.empty()
+        : Optional.ofNullable(codecs.get(normalize(contentType)));
+  }
+
+  /** @return the JSON codec, which is used unless another one is selected */
+  public MessageCodec getJson() {
+    return json;
+  }
+
+  /**
+   * Picks the codec to publish a message with, which is the one named by a {@link Codec}
+   * annotation on the class or else the default.
+   *
+   * @param defaultContentType of the default codec, {@code null} for JSON
+   * @throws IllegalArgumentException if no codec is registered for the selected content type
+   */
+  public MessageCodec forEncoding(Class<?> type, @Nullable String defaultContentType) {
+    String contentType = ANNOTATED_CONTENT_TYPES.get(type).orElse(defaultContentType);
+    if (contentType == null) {
+      return json;
+    }
+    Optional<MessageCodec> codec = get(contentType);
+    PreconditionUtils.checkArgument(
+        codec.isPresent(), "No codec registered for content type " + contentType);
+    return codec.get();
+  }
+
+  /** @return the codec for the content type of a delivery, JSON if it is missing or unknown */
+  public MessageCodec forDecoding(@Nullable String contentType) {
+    return get(contentType).orElse(json);
+  }
+
+  private static String normalize(String contentType) {
+    int parameters = contentType.indexOf(';');
+    String mediaType = parameters < 0 ? contentType : contentType.substring(0, parameters);
+    return mediaType.trim().toLowerCase(Locale.ROOT);
+  }
+}
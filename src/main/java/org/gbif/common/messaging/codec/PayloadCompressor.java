@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compresses encoded message bodies. Every compressor is identified by the content encoding it
+ * stamps on the messages it compressed, which consumers use to pick the compressor to decompress
+ * them with.
+ *
+ * <p>Implementations need to be thread-safe.
+ */
+public interface PayloadCompressor {
+
+  /** @return the content encoding of the compressed messages, e.g. {@code gzip} */
+  String getEncoding();
+
+  byte[] compress(byte[] body) throws IOException;
+
+  /**
+   * Compresses a message of the given type, for compressors which compress some types differently.
+   */
+  default byte[] compress(Class<?> type, byte[] body) throws IOException {
+    return compress(body);
+  }
+
+  /** @return a stream decompressing the body as it is read */
+  InputStream decompress(InputStream body) throws IOException;
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.config;
+
+import java.util.StringJoiner;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * A configuration class holding the tuning options of a {@code MessageListener}. The defaults are
+ * suitable for most consumers.
+ */
+@SuppressWarnings("PublicField")
+public class ListenerConfiguration {
+
+  @Parameter(
+      names = "--messaging-listener-connections",
+      description = "Number of connections the channels of all queues listened to are spread over")
+  public int connections = 1;
+
+  @Parameter(
+      names = "--messaging-listener-ack-coalescing",
+      description =
+          "Number of acks of a channel sent as one multiple ack, 0 to ack every message on its own")
+  public int ackCoalescing = 0;
+
+  @Parameter(
+      names = "--messaging-listener-ack-flush-interval-ms",
+      description = "Interval at which coalesced acks are sent even if fewer have accumulated")
+  public long ackFlushIntervalMs = 100;
+
+  @Parameter(
+      names = "--messaging-listener-adaptive-prefetch",
+      description =
+          "Adjust the prefetch count of every channel to the time its callbacks take and the round"
+              + " trip to the broker")
+  public boolean adaptivePrefetch = false;
+
+  @Parameter(
+      names = "--messaging-listener-min-prefetch",
+      description = "Lowest prefetch count of the adaptive prefetch")
+  public int minPrefetch = 1;
+
+  @Parameter(
+      names = "--messaging-listener-max-prefetch",
+      description = "Highest prefetch count of the adaptive prefetch")
+  public int maxPrefetch = 1000;
+
+  @Parameter(
+      names = "--messaging-listener-prefetch-adjust-interval-ms",
+      description = "Interval at which the adaptive prefetch counts are adjusted")
+  public long prefetchAdjustIntervalMs = 5_000;
+
+  @Parameter(
+      names = "--messaging-listener-autoscale-interval-ms",
+      description = "Interval at which the backlog of autoscaled queues is checked")
+  public long autoscaleIntervalMs = 10_000;
+
+  @Parameter(
+      names = "--messaging-listener-autoscale-cooldown-ms",
+      description =
+          "Time after changing the consumers of an autoscaled queue before they are changed again")
+  public long autoscaleCooldownMs = 60_000;
+
+  @Parameter(
+      names = "--messaging-listener-autoscale-target-drain-ms",
+      description = "Time in which autoscaled queues should be able to work off their backlog")
+  public long autoscaleTargetDrainMs = 300_000;
+
+  @Parameter(
+      names = "--messaging-listener-autoscale-hysteresis",
+      description =
+          "Share of the consumers of an autoscaled queue which have to be unneeded before any are"
+              + " removed")
+  public double autoscaleHysteresis = 0.25;
+
+  @Parameter(
+      names = "--messaging-listener-retry-attempts",
+      description =
+          "Number of times a message whose callback failed is retried after a delay before it is"
+              + " parked, 0 to nack failed messages")
+  public int retryAttempts = 0;
+
+  @Parameter(
+      names = "--messaging-listener-retry-initial-delay-ms",
+      description = "Delay of the first retry of a failed message")
+  public long retryInitialDelayMs = 1_000;
+
+  @Parameter(
+      names = "--messaging-listener-retry-backoff-multiplier",
+      description = "Factor the delay grows by with every further retry")
+  public double retryBackoffMultiplier = 5;
+
+  @Override
+  public String toString() {
+    return new StringJoiner(", ", ListenerConfiguration.class.getSimpleName() + "[", "]")
+        .add("connections=" + connections)
+        .add("ackCoalescing=" + ackCoalescing)
+        .add("ackFlushIntervalMs=" + ackFlushIntervalMs)
+        .add("adaptivePrefetch=" + adaptivePrefetch)
+        .add("minPrefetch=" + minPrefetch)
+        .add("maxPrefetch=" + maxPrefetch)
+        .add("prefetchAdjustIntervalMs=" + prefetchAdjustIntervalMs)
+        .add("autoscaleIntervalMs=" + autoscaleIntervalMs)
+        .add("autoscaleCooldownMs=" + autoscaleCooldownMs)
+        .add("autoscaleTargetDrainMs=" + autoscaleTargetDrainMs)
+        .add("autoscaleHysteresis=" + autoscaleHysteresis)
+        .add("retryAttempts=" + retryAttempts)
+        .add("retryInitialDelayMs=" + retryInitialDelayMs)
+        .add("retryBackoffMultiplier=" + retryBackoffMultiplier)
+        .toString();
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.config;
+
+import java.util.StringJoiner;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * A configuration class holding the tuning options of a {@code DefaultMessagePublisher}. The
+ * defaults are suitable for most producers.
+ */
+@SuppressWarnings("PublicField")
+public class PublisherConfiguration {
+
+  /** What to do when a channel is requested but the pool is already at its maximum size. */
+  public enum WhenExhausted {
+    /** Wait up to {@link #maxBorrowWaitMs} for a channel to be returned. */
+    BLOCK,
+    /** Fail immediately. */
+    FAIL
+  }
+
+  /** How messages are spread over the connections of a publisher. */
+  public enum StripeBy {
+    /** Use the connections in turn. */
+    ROUND_ROBIN,
+    /** Always use the same connection for a routing key, which keeps those messages in order. */
+    ROUTING_KEY
+  }
+
+  /** What to do when a message has to be buffered but the outbox is full. */
+  public enum OutboxOverflow {
+    /** Wait up to {@link #outboxMaxBlockMs} for the outbox to be drained. */
+    BLOCK,
+    /** Discard the oldest buffered message to make room. */
+    DROP_OLDEST,
+    /** Fail the send immediately. */
+    FAIL
+  }
+
+  @Parameter(
+      names = "--messaging-publisher-connections",
+      description = "Number of connections to spread the channels over")
+  public int connections = 1;
+
+  @Parameter(
+      names = "--messaging-publisher-stripe-by",
+      description = "Whether to use the connections in turn or by routing key")
+  public StripeBy stripeBy = StripeBy.ROUND_ROBIN;
+
+  @Parameter(
+      names = "--messaging-publisher-min-channels",
+      description = "Number of channels per pool that are kept open even when idle")
+  public int minChannels = 0;
+
+  @Parameter(
+      names = "--messaging-publisher-max-channels",
+      description = "Maximum number of channels per pool")
+  public int maxChannels = 64;
+
+  @Parameter(
+      names = "--messaging-publisher-channel-idle-timeout-ms",
+      description = "Idle channels above the minimum are closed after this time")
+  public long channelIdleTimeoutMs = 60_000;
+
+  @Parameter(
+      names = "--messaging-publisher-channel-affinity",
+      description = "Prefer handing a thread the channel it used last")
+  public boolean channelAffinity = false;
+
+  @Parameter(
+      names = "--messaging-publisher-when-exhausted",
+      description = "Whether to BLOCK or FAIL when all channels are in use")
+  public WhenExhausted whenExhausted = WhenExhausted.BLOCK;
+
+  @Parameter(
+      names = "--messaging-publisher-max-borrow-wait-ms",
+      description = "Maximum time to wait for a channel when the pool is exhausted")
+  public long maxBorrowWaitMs = 30_000;
+
+  @Parameter(
+      names = "--messaging-publisher-content-type",
+      description =
+          "Content type of the codec messages are encoded with unless their class selects one,"
+              + " JSON if not set")
+  public String contentType;
+
+  @Parameter(
+      names = "--messaging-publisher-compression",
+      description = "Content encoding to compress large messages with, e.g. gzip, none if not set")
+  public String compression;
+
+  @Parameter(
+      names = "--messaging-publisher-compression-threshold-bytes",
+      description = "Encoded messages smaller than this are not compressed")
+  public int compressionThresholdBytes = 1024;
+
+  @Parameter(
+      names = "--messaging-publisher-compression-dictionaries",
+      description =
+          "Directory of dictionaries built by DictionaryTrainer, for the x-deflate-dictionary"
+              + " compression")
+  public String compressionDictionaries;
+
+  @Parameter(
+      names = "--messaging-publisher-stamp-message-type",
+      description =
+          "Stamp the class of every message in its type property, for listeners consuming several"
+              + " types from one queue")
+  public boolean stampMessageType = false;
+
+  @Parameter(
+      names = "--messaging-publisher-stamp-headers",
+      description =
+          "Stamp the type, dataset, attempt, execution, runner and platform of messages in their"
+              + " properties, for listeners filtering messages without deserializing them")
+  public boolean stampHeaders = false;
+
+  @Parameter(
+      names = "--messaging-publisher-outbox-capacity",
+      description =
+          "Number of messages buffered in memory while the broker is unreachable, 0 to disable")
+  public int outboxCapacity = 0;
+
+  @Parameter(
+      names = "--messaging-publisher-outbox-overflow",
+      description = "Whether to BLOCK, DROP_OLDEST or FAIL when the outbox is full")
+  public OutboxOverflow outboxOverflow = OutboxOverflow.BLOCK;
+
+  @Parameter(
+      names = "--messaging-publisher-outbox-max-block-ms",
+      description = "Maximum time to wait for space when the outbox is full")
+  public long outboxMaxBlockMs = 30_000;
+
+  @Parameter(
+      names = "--messaging-publisher-outbox-retry-interval-ms",
+      description = "Interval at which replaying the outbox is attempted while it is not empty")
+  public long outboxRetryIntervalMs = 1_000;
+
+  @Parameter(
+      names = "--messaging-publisher-journal-dir",
+      description =
+          "Directory of the journal persistent sends are written to until the broker confirmed"
+              + " them, no journal if not set")
+  public String journalDirectory;
+
+  @Parameter(
+      names = "--messaging-publisher-journal-segment-bytes",
+      description = "Size of the journal segment files")
+  public int journalSegmentBytes = 64 * 1024 * 1024;
+
+  @Parameter(
+      names = "--messaging-publisher-journal-force",
+      description = "Force every journal entry to disk to survive the host failing")
+  public boolean journalForce = false;
+
+  @Parameter(
+      names = "--messaging-publisher-journal-retry-interval-ms",
+      description = "Delay before a journaled message the broker didn't confirm is sent again")
+  public long journalRetryIntervalMs = 1_000;
+
+  @Override
+  public String toString() {
+    return new StringJoiner(", ", PublisherConfiguration.class.getSimpleName() + "[", "]")
+        .add("connections=" + connections)
+        .add("stripeBy=" + stripeBy)
+        .add("minChannels=" + minChannels)
+        .add("maxChannels=" + maxChannels)
+        .add("channelIdleTimeoutMs=" + channelIdleTimeoutMs)
+        .add("channelAffinity=" + channelAffinity)
+        .add("whenExhausted=" + whenExhausted)
+        .add("maxBorrowWaitMs=" + maxBorrowWaitMs)
+        .add("contentType=" + contentType)
+        .add("compression=" + compression)
+        .add("compressionThresholdBytes=" + compressionThresholdBytes)
+        .add("compressionDictionaries=" + compressionDictionaries)
+        .add("stampMessageType=" + stampMessageType)
+        .add("stampHeaders=" + stampHeaders)
+        .add("outboxCapacity=" + outboxCapacity)
+        .add("outboxOverflow=" + outboxOverflow)
+        .add("outboxMaxBlockMs=" + outboxMaxBlockMs)
+        .add("outboxRetryIntervalMs=" + outboxRetryIntervalMs)
+        .add("journalDirectory=" + journalDirectory)
+        .add("journalSegmentBytes=" + journalSegmentBytes)
+        .add("journalForce=" + journalForce)
+        .add("journalRetryIntervalMs=" + journalRetryIntervalMs)
+        .toString();
+  }
+}
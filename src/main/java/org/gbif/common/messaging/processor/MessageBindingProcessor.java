@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Writes an index of the message classes annotated with {@code @MessageBinding} at compile time,
+ * which {@code DefaultMessageRegistry} loads instead of scanning the classpath for them.
+ *
+ * <p>Every line of the index holds the binary name of a message class, the name of its exchange
+ * type and its routing key, separated by tabs. The index only covers the classes compiled
+ * together, so the module needs to be compiled as a whole, which Maven does.
+ *
+ * <p>The processor only refers to the annotation and message types by name, so it can be compiled
+ * ahead of the classes it processes.
+ */
+@SupportedAnnotationTypes(MessageBindingProcessor.MESSAGE_BINDING)
+public class MessageBindingProcessor extends AbstractProcessor {
+
+  /** The resource the index is written to. */
+  public static final String INDEX = "META-INF/gbif/message-bindings";
+
+  static final String MESSAGE_BINDING = "org.gbif.common.messaging.MessageBinding";
+  private static final String MESSAGE = "org.gbif.common.messaging.api.Message";
+
+  // Map class name -> index line, sorted so the index is reproducible
+  private final Map<String, String> bindings = new TreeMap<>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    if (roundEnv.processingOver()) {
+      if (!bindings.isEmpty()) {
+        write();
+      }
+      return false;
+    }
+
+    TypeElement binding = processingEnv.getElementUtils().getTypeElement(MESSAGE_BINDING);
+    TypeElement message = processingEnv.getElementUtils().getTypeElement(MESSAGE);
+    if (binding == null || message == null) {
+      return false;
+    }
+    Types types = processingEnv.getTypeUtils();
+    for (Element element : roundEnv.getElementsAnnotatedWith(binding)) {
+      if (element.getKind() != ElementKind.CLASS
+          || !types.isAssignable(
+              types.erasure(element.asType()), types.erasure(message.asType()))) {
+        processingEnv
+            .getMessager()
+            .printMessage(
+                Diagnostic.Kind.WARNING,
+                "@MessageBinding on a type which is no message class, it isn't registered",
+                element);
+        continue;
+      }
+      TypeElement type = (TypeElement) element;
+      String name = processingEnv.getElementUtils().getBinaryName(type).toString();
+      bindings.put(name, indexLine(name, type, binding));
+    }
+    return false;
+  }
+
+  private String indexLine(String name, TypeElement type, TypeElement binding) {
+    String exchange = null;
+    String routingKey = null;
+    for (AnnotationMirror annotation : type.getAnnotationMirrors()) {
+      if (!annotation.getAnnotationType().asElement().equals(binding)) {
+        continue;
+      }
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+          annotation.getElementValues().entrySet()) {
+        String attribute = value.getKey().getSimpleName().toString();
+        if ("exchange".equals(attribute)) {
+          exchange = ((VariableElement) value.getValue().getValue()).getSimpleName().toString();
+        } else if ("routingKey".equals(attribute)) {
+          routingKey = (String) value.getValue().getValue();
+        }
+      }
+    }
+    return name + '\t' + exchange + '\t' + routingKey;
+  }
+
+  private void write() {
+    try {
+      FileObject index =
+          processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+      try (Writer writer = index.openWriter()) {
+        for (String line : bindings.values()) {
+          writer.write(line);
+          writer.write('\n');
+        }
+      }
+    } catch (IOException e) {
+      processingEnv
+          .getMessager()
+          .printMessage(Diagnostic.Kind.ERROR, "Could not write the message index: " + e);
+    }
+  }
+}
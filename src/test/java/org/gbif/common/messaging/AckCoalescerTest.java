@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.rabbitmq.client.Channel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class AckCoalescerTest {
+
+  @Mock Channel channel;
+
+  @Test
+  public void testAckEveryN() throws IOException {
+    AckCoalescer acks = new AckCoalescer(channel, 3);
+
+    acks.ack(1);
+    acks.ack(2);
+    verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+    acks.ack(3);
+    verify(channel).basicAck(3, true);
+    assertEquals(0, acks.getPendingAcks());
+  }
+
+  @Test
+  public void testOutOfOrderCompletion() throws IOException {
+    AckCoalescer acks = new AckCoalescer(channel, 3);
+
+    acks.ack(2);
+    acks.ack(3);
+    acks.ack(4);
+    // 1 is still in flight, so nothing can be acked yet
+    verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    assertEquals(3, acks.getPendingAcks());
+
+    acks.ack(1);
+    verify(channel).basicAck(4, true);
+  }
+
+  @Test
+  public void testNackedTagIsNeverAckTarget() throws IOException {
+    when(channel.isOpen()).thenReturn(true);
+    AckCoalescer acks = new AckCoalescer(channel, 10);
+
+    acks.ack(1);
+    acks.ack(2);
+    acks.settled(3);
+    acks.flush();
+
+    verify(channel).basicAck(2, true);
+    verify(channel, never()).basicAck(3, true);
+  }
+
+  @Test
+  public void testFlushWithoutPendingAcks() throws IOException {
+    AckCoalescer acks = new AckCoalescer(channel, 10);
+
+    acks.settled(1);
+    acks.flush();
+
+    verify(channel, never()).basicAck(anyLong(), anyBoolean());
+  }
+
+  @Test
+  public void testFlushAllAcksAheadOfWatermark() throws IOException {
+    when(channel.isOpen()).thenReturn(true);
+    AckCoalescer acks = new AckCoalescer(channel, 10);
+
+    acks.ack(1);
+    // 2 is left unsettled by draining
+    acks.ack(3);
+    acks.settled(4);
+    acks.ack(5);
+    acks.flushAll();
+
+    verify(channel).basicAck(1, true);
+    verify(channel).basicAck(3, false);
+    verify(channel).basicAck(5, false);
+    assertEquals(0, acks.getPendingAcks());
+  }
+}
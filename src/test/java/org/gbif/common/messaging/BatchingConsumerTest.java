@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.PartialBatchFailureException;
+import org.gbif.common.messaging.codec.MessageCodecs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.MessageProperties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+public class BatchingConsumerTest {
+
+  @Mock Channel channel;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final ExecutorService flusher = Executors.newSingleThreadExecutor();
+  private final List<List<TestMessage>> batches = new CopyOnWriteArrayList<>();
+
+  @AfterEach
+  public void tearDown() {
+    scheduler.shutdownNow();
+    flusher.shutdownNow();
+  }
+
+  @Test
+  public void testFlushWhenFull() throws IOException {
+    BatchingConsumer<TestMessage> consumer = consumer(3, 60_000, batch -> {});
+
+    deliver(consumer, 1, 2, 3, 4);
+
+    assertEquals(1, batches.size());
+    assertEquals(3, batches.get(0).size());
+    verify(channel).basicAck(3, true);
+    verify(channel, never()).basicAck(4, true);
+  }
+
+  @Test
+  public void testFlushAfterLinger() throws IOException {
+    BatchingConsumer<TestMessage> consumer = consumer(100, 10, batch -> {});
+
+    deliver(consumer, 1, 2);
+
+    verify(channel, timeout(1000)).basicAck(2, true);
+    assertEquals(2, batches.get(0).size());
+  }
+
+  @Test
+  public void testLingeringBatchIsNotHandledOnTheScheduler() throws Exception {
+    Thread timer = scheduler.submit(Thread::currentThread).get();
+    List<Thread> handlers = new CopyOnWriteArrayList<>();
+    BatchingConsumer<TestMessage> consumer =
+        consumer(100, 10, batch -> handlers.add(Thread.currentThread()));
+
+    deliver(consumer, 1);
+
+    verify(channel, timeout(1000)).basicAck(1, true);
+    assertEquals(1, handlers.size());
+    assertNotSame(timer, handlers.get(0));
+  }
+
+  @Test
+  public void testPartialFailure() throws IOException {
+    BatchingConsumer<TestMessage> consumer =
+        consumer(
+            3,
+            60_000,
+            batch -> {
+              throw new PartialBatchFailureException(Collections.singletonList(1));
+            });
+
+    deliver(consumer, 1, 2, 3);
+
+    verify(channel).basicNack(2, false, false);
+    verify(channel).basicAck(3, true);
+  }
+
+  @Test
+  public void testFailure() throws IOException {
+    BatchingConsumer<TestMessage> consumer =
+        consumer(
+            2,
+            60_000,
+            batch -> {
+              throw new IllegalStateException("index unavailable");
+            });
+
+    deliver(consumer, 1, 2);
+
+    verify(channel).basicNack(2, true, false);
+    verify(channel, never()).basicAck(anyLong(), anyBoolean());
+  }
+
+  @Test
+  public void testUndecodableMessageIsRejected() throws IOException {
+    BatchingConsumer<TestMessage> consumer = consumer(2, 60_000, batch -> {});
+
+    consumer.handleDelivery(
+        "tag",
+        new Envelope(1, false, "exchange", "key"),
+        MessageProperties.TEXT_PLAIN,
+        "{".getBytes(StandardCharsets.UTF_8));
+    deliver(consumer, 2, 3);
+
+    verify(channel).basicReject(1, false);
+    verify(channel).basicAck(3, true);
+  }
+
+  private BatchingConsumer<TestMessage> consumer(
+      int maxBatchSize, long maxLingerMs, Consumer<List<TestMessage>> handler) {
+    return new BatchingConsumer<>(
+        channel,
+        MessageCodecs.withDefaults(new ObjectMapper()),
+        new AbstractBatchMessageCallback<TestMessage>() {
+          @Override
+          public void handleMessages(List<TestMessage> messages) {
+            batches.add(new ArrayList<>(messages));
+            handler.accept(messages);
+          }
+        },
+        maxBatchSize,
+        maxLingerMs,
+        scheduler,
+        flusher);
+  }
+
+  private static void deliver(BatchingConsumer<TestMessage> consumer, long... tags)
+      throws IOException {
+    for (long tag : tags) {
+      consumer.handleDelivery(
+          "tag",
+          new Envelope(tag, false, "exchange", "key"),
+          MessageProperties.TEXT_PLAIN,
+          "{\"foo\":\"bar\"}".getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
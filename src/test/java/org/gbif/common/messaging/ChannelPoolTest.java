@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.PublisherConfiguration;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.rabbitmq.client.Channel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChannelPoolTest {
+
+  private PublisherConfiguration config;
+
+  @BeforeEach
+  public void setup() {
+    config = new PublisherConfiguration();
+    config.maxChannels = 2;
+  }
+
+  @Test
+  public void testReuse() throws IOException {
+    ChannelPool<Channel> pool = pool();
+
+    Channel first = pool.borrow();
+    pool.release(first);
+    Channel second = pool.borrow();
+
+    assertSame(first, second);
+    assertEquals(1, pool.getStats().getCreations());
+    assertEquals(2, pool.getStats().getBorrows());
+  }
+
+  @Test
+  public void testFailWhenExhausted() throws IOException {
+    config.whenExhausted = PublisherConfiguration.WhenExhausted.FAIL;
+    ChannelPool<Channel> pool = pool();
+
+    Channel first = pool.borrow();
+    Channel second = pool.borrow();
+    assertNotSame(first, second);
+
+    assertThrows(IOException.class, pool::borrow);
+    assertEquals(1, pool.getStats().getExhausted());
+    assertEquals(2, pool.getStats().getOpenChannels());
+  }
+
+  @Test
+  public void testBlockWhenExhausted() throws Exception {
+    ChannelPool<Channel> pool = pool();
+    Channel first = pool.borrow();
+    pool.borrow();
+
+    CompletableFuture<Channel> waiting =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return pool.borrow();
+              } catch (IOException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    Thread.sleep(50);
+    pool.release(first);
+
+    assertSame(first, waiting.get(5, TimeUnit.SECONDS));
+    assertEquals(2, pool.getStats().getCreations());
+    assertTrue(pool.getStats().getMaxBorrowWaitNanos() > 0);
+  }
+
+  @Test
+  public void testBorrowTimeout() throws IOException {
+    config.maxChannels = 1;
+    config.maxBorrowWaitMs = 10;
+    ChannelPool<Channel> pool = pool();
+    pool.borrow();
+
+    assertThrows(IOException.class, pool::borrow);
+  }
+
+  @Test
+  public void testDiscardFreesSlot() throws IOException {
+    config.maxChannels = 1;
+    config.whenExhausted = PublisherConfiguration.WhenExhausted.FAIL;
+    ChannelPool<Channel> pool = pool();
+
+    Channel broken = pool.borrow();
+    pool.discard(broken);
+    verify(broken).abort();
+
+    assertNotSame(broken, pool.borrow());
+  }
+
+  @Test
+  public void testIdleEviction() throws IOException {
+    config.minChannels = 1;
+    config.channelIdleTimeoutMs = 0;
+    ChannelPool<Channel> pool = pool();
+
+    Channel first = pool.borrow();
+    Channel second = pool.borrow();
+    pool.release(first);
+    pool.release(second);
+
+    // the minimum is kept open
+    assertEquals(1, pool.getStats().getEvictions());
+    assertEquals(1, pool.getStats().getOpenChannels());
+    assertEquals(1, pool.getStats().getIdleChannels());
+  }
+
+  @Test
+  public void testAffinity() throws Exception {
+    config.channelAffinity = true;
+    ChannelPool<Channel> pool = pool();
+    ExecutorService otherThread = Executors.newSingleThreadExecutor();
+
+    try {
+      Channel mine = pool.borrow();
+      Channel other = otherThread.submit(pool::borrow).get(5, TimeUnit.SECONDS);
+      pool.release(mine);
+      // the other channel becomes the most recently used one
+      otherThread.submit(() -> pool.release(other)).get(5, TimeUnit.SECONDS);
+
+      assertSame(mine, pool.borrow());
+    } finally {
+      otherThread.shutdown();
+    }
+  }
+
+  private ChannelPool<Channel> pool() throws IOException {
+    return new ChannelPool<>("test", config, ChannelPoolTest::openChannel, c -> c);
+  }
+
+  private static Channel openChannel() {
+    Channel channel = mock(Channel.class);
+    when(channel.isOpen()).thenReturn(true);
+    return channel;
+  }
+}
@@ -15,28 +15,56 @@ package org.gbif.common.messaging;
 
 import org.gbif.common.messaging.api.Message;
 import org.gbif.common.messaging.api.MessageRegistry;
+import org.gbif.common.messaging.codec.JacksonMessageCodec;
+import org.gbif.common.messaging.config.PublisherConfiguration;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.MessageProperties;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.refEq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -163,4 +191,443 @@ public class DefaultMessagePublisherTest {
             refEq(MessageProperties.TEXT_PLAIN),
             any(byte[].class));
   }
+
+  @Test
+  public void testRetriesOnClosedChannel() throws IOException {
+    doThrow(new AlreadyClosedException(new ShutdownSignalException(false, true, null, channel)))
+        .doNothing()
+        .when(channel)
+        .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+
+    publisher.send(message);
+
+    verify(channel, times(2))
+        .basicPublish(
+            eq(DEFAULT_EXCHANGE),
+            eq("foobar"),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+  }
+
+  @Test
+  public void testFailedRetriesOnClosedChannel() throws IOException {
+    doThrow(new AlreadyClosedException(new ShutdownSignalException(false, true, null, channel)))
+        .when(channel)
+        .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+
+    assertThrows(IOException.class, () -> publisher.send(message));
+    assertTrue(publisher.sendAsync(message).isCompletedExceptionally());
+  }
+
+  @Test
+  public void testSendAsyncCompletesOnAck() throws IOException {
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.getNextPublishSeqNo()).thenReturn(1L);
+
+    CompletableFuture<Void> future = publisher.sendAsync(message);
+
+    verify(channel).confirmSelect();
+    verify(channel)
+        .basicPublish(
+            eq(DEFAULT_EXCHANGE),
+            eq("foobar"),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+    assertFalse(future.isDone());
+
+    confirmListener().handleAck(1L, false);
+    assertTrue(future.isDone());
+    assertFalse(future.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testSendAsyncMultipleAck() throws IOException {
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L);
+
+    CompletableFuture<Void> first = publisher.sendAsync(message);
+    CompletableFuture<Void> second = publisher.sendAsync(message, true);
+    CompletableFuture<Void> third =
+        publisher.sendAsync(message, TEST_EXCHANGE, TEST_ROUTINGKEY, false);
+
+    confirmListener().handleAck(2L, true);
+    assertTrue(first.isDone());
+    assertTrue(second.isDone());
+    assertFalse(third.isDone());
+
+    confirmListener().handleAck(3L, false);
+    assertTrue(third.isDone());
+  }
+
+  @Test
+  public void testSendAsyncFailsOnNack() throws IOException {
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.getNextPublishSeqNo()).thenReturn(1L);
+
+    CompletableFuture<Void> future = publisher.sendAsync(message);
+    confirmListener().handleNack(1L, false);
+
+    ExecutionException e = assertThrows(ExecutionException.class, future::get);
+    assertInstanceOf(IOException.class, e.getCause());
+  }
+
+  @Test
+  public void testSendAsyncFailedRetries() throws IOException {
+    doThrow(new IOException())
+        .when(channel)
+        .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+
+    CompletableFuture<Void> future = publisher.sendAsync(message);
+
+    assertTrue(future.isCompletedExceptionally());
+    verify(channel, times(3))
+        .basicPublish(
+            eq(DEFAULT_EXCHANGE),
+            eq("foobar"),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+  }
+
+  @Test
+  public void testSendBatchWaitsForConfirms() throws Exception {
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L);
+
+    CompletableFuture<Void> batch =
+        CompletableFuture.runAsync(
+            () -> {
+              try {
+                publisher.sendBatch(Arrays.asList(message, message, message));
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+
+    verify(channel, timeout(5000).times(3))
+        .basicPublish(
+            eq(DEFAULT_EXCHANGE),
+            eq("foobar"),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+    // a single channel is used for the whole batch
+    verify(connection, times(2)).createChannel();
+    assertFalse(batch.isDone());
+
+    confirmListener().handleAck(3L, true);
+    batch.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testSendBatchFailsOnNack() throws Exception {
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+
+    CompletableFuture<Void> batch =
+        CompletableFuture.runAsync(
+            () -> {
+              try {
+                publisher.sendBatch(
+                    Arrays.asList(message, message), TEST_EXCHANGE, TEST_ROUTINGKEY);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+
+    verify(channel, timeout(5000).times(2))
+        .basicPublish(
+            eq(TEST_EXCHANGE),
+            eq(TEST_ROUTINGKEY),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+    confirmListener().handleAck(1L, false);
+    confirmListener().handleNack(2L, false);
+
+    ExecutionException e =
+        assertThrows(ExecutionException.class, () -> batch.get(5, TimeUnit.SECONDS));
+    assertInstanceOf(UncheckedIOException.class, e.getCause());
+  }
+
+  @Test
+  public void testSendBatchRepublishesAfterChannelFailure() throws Exception {
+    when(channel.isOpen()).thenReturn(true);
+    // the second channel counts its delivery tags from 1 again
+    when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L, 1L, 2L, 3L);
+    doNothing()
+        .doThrow(new IOException())
+        .doNothing()
+        .when(channel)
+        .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    // aborting the failed channel fails the confirms outstanding on it, like the client does
+    List<ShutdownListener> shutdownListeners = new ArrayList<>();
+    doAnswer(invocation -> shutdownListeners.add(invocation.getArgument(0)))
+        .when(channel)
+        .addShutdownListener(any(ShutdownListener.class));
+    doAnswer(
+            invocation -> {
+              shutdownListeners
+                  .get(0)
+                  .shutdownCompleted(new ShutdownSignalException(false, true, null, channel));
+              return null;
+            })
+        .when(channel)
+        .abort();
+
+    CompletableFuture<Void> batch =
+        CompletableFuture.runAsync(
+            () -> {
+              try {
+                publisher.sendBatch(Arrays.asList(message, message, message));
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+
+    // the unconfirmed first message is published again with the rest of the batch
+    verify(channel, timeout(5000).times(5))
+        .basicPublish(
+            eq(DEFAULT_EXCHANGE),
+            eq("foobar"),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+    ArgumentCaptor<ConfirmListener> confirmListeners =
+        ArgumentCaptor.forClass(ConfirmListener.class);
+    verify(channel, times(2)).addConfirmListener(confirmListeners.capture());
+    assertFalse(batch.isDone());
+
+    confirmListeners.getAllValues().get(1).handleAck(3L, true);
+    batch.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testStripeByRoutingKey() throws Exception {
+    DefaultMessagePublisher striped =
+        stripedPublisher(PublisherConfiguration.StripeBy.ROUTING_KEY, mock(Channel.class));
+
+    // "a" and "b" hash to different connections
+    striped.send(message, TEST_EXCHANGE, "a");
+    striped.send(message, TEST_EXCHANGE, "a");
+    striped.send(message, TEST_EXCHANGE, "b");
+
+    verify(channel)
+        .basicPublish(
+            eq(TEST_EXCHANGE), eq("b"), refEq(MessageProperties.TEXT_PLAIN), any(byte[].class));
+    verify(channel, times(0))
+        .basicPublish(
+            eq(TEST_EXCHANGE), eq("a"), refEq(MessageProperties.TEXT_PLAIN), any(byte[].class));
+  }
+
+  @Test
+  public void testStripeRoundRobin() throws Exception {
+    Channel secondChannel = mock(Channel.class);
+    DefaultMessagePublisher striped =
+        stripedPublisher(PublisherConfiguration.StripeBy.ROUND_ROBIN, secondChannel);
+
+    striped.send(message, TEST_EXCHANGE, TEST_ROUTINGKEY);
+    striped.send(message, TEST_EXCHANGE, TEST_ROUTINGKEY);
+
+    verify(channel)
+        .basicPublish(
+            eq(TEST_EXCHANGE),
+            eq(TEST_ROUTINGKEY),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+    verify(secondChannel)
+        .basicPublish(
+            eq(TEST_EXCHANGE),
+            eq(TEST_ROUTINGKEY),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+  }
+
+  @Test
+  public void testOutboxReplaysAfterOutage() throws Exception {
+    AtomicBoolean connected = new AtomicBoolean(false);
+    when(connection.isOpen()).thenAnswer(invocation -> connected.get());
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+    ConnectionParameters params = new MockConnectionParameters();
+    when(params.getConnectionFactory().newConnection()).thenReturn(connection);
+    PublisherConfiguration config = new PublisherConfiguration();
+    config.outboxCapacity = 10;
+    config.outboxRetryIntervalMs = 10;
+    DefaultMessagePublisher buffering =
+        new DefaultMessagePublisher(params, registry, new ObjectMapper(), config);
+
+    buffering.send(message);
+    CompletableFuture<Void> future = buffering.sendAsync(message, TEST_EXCHANGE, "second", false);
+    assertEquals(2, buffering.getOutboxStats().get().getBufferedMessages());
+    verify(channel, times(0))
+        .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+
+    connected.set(true);
+    verify(channel, timeout(5000))
+        .basicPublish(
+            eq(DEFAULT_EXCHANGE),
+            eq("foobar"),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+    verify(channel, timeout(5000))
+        .basicPublish(
+            eq(TEST_EXCHANGE),
+            eq("second"),
+            refEq(MessageProperties.TEXT_PLAIN),
+            any(byte[].class));
+    assertFalse(future.isDone());
+
+    confirmListener().handleAck(2L, true);
+    future.get(5, TimeUnit.SECONDS);
+    buffering.close();
+    assertEquals(0, buffering.getOutboxStats().get().getBufferedMessages());
+    assertEquals(2, buffering.getOutboxStats().get().getReplayed());
+  }
+
+  @Test
+  public void testOutboxBuffersFailedSends() throws Exception {
+    when(connection.isOpen()).thenReturn(true);
+    doThrow(new IOException())
+        .when(channel)
+        .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    ConnectionParameters params = new MockConnectionParameters();
+    when(params.getConnectionFactory().newConnection()).thenReturn(connection);
+    PublisherConfiguration config = new PublisherConfiguration();
+    config.outboxCapacity = 10;
+    config.outboxRetryIntervalMs = 60_000;
+    DefaultMessagePublisher buffering =
+        new DefaultMessagePublisher(params, registry, new ObjectMapper(), config);
+
+    buffering.send(message);
+
+    verify(channel, times(3))
+        .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    assertEquals(1, buffering.getOutboxStats().get().getBufferedMessages());
+    buffering.close();
+  }
+
+  @Test
+  public void testSendWithConfiguredCodec() throws Exception {
+    ConnectionParameters params = new MockConnectionParameters();
+    when(params.getConnectionFactory().newConnection()).thenReturn(connection);
+    PublisherConfiguration config = new PublisherConfiguration();
+    config.contentType = JacksonMessageCodec.CBOR;
+    DefaultMessagePublisher cbor =
+        new DefaultMessagePublisher(params, registry, new ObjectMapper(), config);
+
+    cbor.send(message, true);
+
+    ArgumentCaptor<AMQP.BasicProperties> properties =
+        ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+    verify(channel)
+        .basicPublish(eq(DEFAULT_EXCHANGE), eq("foobar"), properties.capture(), any(byte[].class));
+    assertEquals(JacksonMessageCodec.CBOR, properties.getValue().getContentType());
+    assertEquals(2, (int) properties.getValue().getDeliveryMode());
+  }
+
+  @Test
+  public void testSendCompressesAboveThreshold() throws Exception {
+    ConnectionParameters params = new MockConnectionParameters();
+    when(params.getConnectionFactory().newConnection()).thenReturn(connection);
+    PublisherConfiguration config = new PublisherConfiguration();
+    config.compression = "gzip";
+    config.compressionThresholdBytes = 1000;
+    DefaultMessagePublisher compressing =
+        new DefaultMessagePublisher(params, registry, new ObjectMapper(), config);
+
+    compressing.send("small", TEST_EXCHANGE, TEST_ROUTINGKEY);
+    compressing.send("large".repeat(1000), TEST_EXCHANGE, TEST_ROUTINGKEY);
+
+    ArgumentCaptor<AMQP.BasicProperties> properties =
+        ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+    ArgumentCaptor<byte[]> bodies = ArgumentCaptor.forClass(byte[].class);
+    verify(channel, times(2))
+        .basicPublish(
+            eq(TEST_EXCHANGE), eq(TEST_ROUTINGKEY), properties.capture(), bodies.capture());
+    assertNull(properties.getAllValues().get(0).getContentEncoding());
+    assertEquals("gzip", properties.getAllValues().get(1).getContentEncoding());
+    assertTrue(bodies.getAllValues().get(1).length < 1000);
+  }
+
+  @Test
+  public void testJournaledSendIsSentAgainOnRestart(@TempDir Path journal) throws Exception {
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.getNextPublishSeqNo()).thenReturn(1L);
+    ConnectionParameters params = new MockConnectionParameters();
+    when(params.getConnectionFactory().newConnection()).thenReturn(connection);
+    PublisherConfiguration config = new PublisherConfiguration();
+    config.journalDirectory = journal.toString();
+
+    DefaultMessagePublisher journaling =
+        new DefaultMessagePublisher(params, registry, new ObjectMapper(), config);
+    journaling.send(message, true);
+    // closing before the broker confirmed the message
+    journaling.close();
+
+    new DefaultMessagePublisher(params, registry, new ObjectMapper(), config).close();
+    verify(channel, times(2))
+        .basicPublish(
+            eq(DEFAULT_EXCHANGE),
+            eq("foobar"),
+            refEq(MessageProperties.PERSISTENT_TEXT_PLAIN),
+            any(byte[].class));
+  }
+
+  @Test
+  public void testJournaledSendIsSentAgainUntilConfirmed(@TempDir Path journal) throws Exception {
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L);
+    ConnectionParameters params = new MockConnectionParameters();
+    when(params.getConnectionFactory().newConnection()).thenReturn(connection);
+    PublisherConfiguration config = new PublisherConfiguration();
+    config.journalDirectory = journal.toString();
+    config.journalSegmentBytes = 1024;
+    config.journalRetryIntervalMs = 10;
+    DefaultMessagePublisher journaling =
+        new DefaultMessagePublisher(params, registry, new ObjectMapper(), config);
+
+    // too large to share a segment, so the first one is sealed by the second
+    String large = "x".repeat(600);
+    journaling.send(large, TEST_EXCHANGE, TEST_ROUTINGKEY, true);
+    CompletableFuture<Void> second =
+        journaling.sendAsync(large, TEST_EXCHANGE, TEST_ROUTINGKEY, true);
+    assertEquals(2, segments(journal));
+
+    confirmListener().handleNack(1L, false);
+    verify(channel, timeout(1000).times(3))
+        .basicPublish(
+            eq(TEST_EXCHANGE),
+            eq(TEST_ROUTINGKEY),
+            any(AMQP.BasicProperties.class),
+            any(byte[].class));
+    confirmListener().handleAck(3L, false);
+    assertEquals(1, segments(journal));
+
+    confirmListener().handleAck(2L, false);
+    assertTrue(second.isDone());
+    assertFalse(second.isCompletedExceptionally());
+    journaling.close();
+  }
+
+  private static long segments(Path journal) throws IOException {
+    try (Stream<Path> files = Files.list(journal)) {
+      return files.filter(p -> p.getFileName().toString().endsWith(".journal")).count();
+    }
+  }
+
+  private DefaultMessagePublisher stripedPublisher(
+      PublisherConfiguration.StripeBy stripeBy, Channel secondChannel) throws Exception {
+    Connection second = mock(Connection.class);
+    when(second.createChannel()).thenReturn(secondChannel);
+    ConnectionParameters params = new MockConnectionParameters();
+    when(params.getConnectionFactory().newConnection()).thenReturn(connection, second);
+
+    PublisherConfiguration config = new PublisherConfiguration();
+    config.connections = 2;
+    config.stripeBy = stripeBy;
+    return new DefaultMessagePublisher(params, registry, new ObjectMapper(), config);
+  }
+
+  private ConfirmListener confirmListener() {
+    ArgumentCaptor<ConfirmListener> captor = ArgumentCaptor.forClass(ConfirmListener.class);
+    verify(channel).addConfirmListener(captor.capture());
+    return captor.getValue();
+  }
 }
@@ -17,6 +17,7 @@ import org.gbif.common.messaging.api.Message;
 import org.gbif.common.messaging.api.MessageRegistry;
 import org.gbif.common.messaging.api.messages.BackboneChangedMessage;
 import org.gbif.common.messaging.api.messages.CrawlStartedMessage;
+import org.gbif.common.messaging.api.messages.UnindexedTestMessage;
 
 import java.util.Optional;
 import java.util.Set;
@@ -69,6 +70,16 @@ public class DefaultMessageRegistryTest {
     assertTrue(routing.get().contains("crawl.started"));
   }
 
+  @Test
+  public void testUnindexedMessageIsScanned() {
+    assertEquals(Optional.of("crawler"), registry.getExchange(UnindexedTestMessage.class));
+    assertEquals(
+        Optional.of(UnindexedTestMessage.ROUTING_KEY),
+        registry.getGenericRoutingKey(UnindexedTestMessage.class));
+    // the indexed messages are still registered
+    assertTrue(registry.getExchange(CrawlStartedMessage.class).isPresent());
+  }
+
   @Test
   public void testRegisterUnregister() {
     assertFalse(registry.getExchange(TestMessage.class).isPresent());
@@ -88,6 +99,22 @@ public class DefaultMessageRegistryTest {
     assertFalse(registry.getGenericRoutingKey(TestMessage.class).isPresent());
   }
 
+  @Test
+  public void testReregister() {
+    registry.register(TestMessage.class, "foo", "bar");
+    Set<Class<? extends Message>> messages = registry.getRegisteredMessages();
+    assertEquals(Optional.of("foo"), registry.getExchange(TestMessage.class));
+
+    registry.register(TestMessage.class, "baz", "bar");
+    assertEquals(Optional.of("baz"), registry.getExchange(TestMessage.class));
+    assertEquals(Optional.of("bar"), registry.getGenericRoutingKey(TestMessage.class));
+
+    registry.unregister(TestMessage.class);
+    // a set returned before stays as it was
+    assertTrue(messages.contains(TestMessage.class));
+    assertFalse(registry.getRegisteredMessages().contains(TestMessage.class));
+  }
+
   @Test
   public void testGetRegisteredMessages() {
     registry.clear();
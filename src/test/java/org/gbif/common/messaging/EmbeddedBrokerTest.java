@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.rabbitmq.client.MessageProperties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EmbeddedBrokerTest {
+
+  private static final String EXCHANGE = "occurrence";
+
+  private EmbeddedBroker broker;
+
+  @BeforeEach
+  public void setup() {
+    broker = new EmbeddedBroker();
+    broker.declareExchange(EXCHANGE);
+  }
+
+  @Test
+  public void testTopicRouting() throws IOException {
+    for (String queue : List.of("exact", "one", "any")) {
+      broker.declareQueue(queue);
+    }
+    broker.bind("exact", EXCHANGE, "crawl.finished");
+    broker.bind("one", EXCHANGE, "crawl.*");
+    broker.bind("any", EXCHANGE, "#.finished");
+
+    assertEquals(3, publish(EXCHANGE, "crawl.finished"));
+    assertEquals(1, publish(EXCHANGE, "crawl.started"));
+    assertEquals(1, publish(EXCHANGE, "index.crawl.finished"));
+    assertEquals(0, publish(EXCHANGE, "crawl"));
+
+    assertEquals(1, broker.getMessageCount("exact"));
+    assertEquals(2, broker.getMessageCount("one"));
+    assertEquals(2, broker.getMessageCount("any"));
+  }
+
+  @Test
+  public void testDefaultExchange() throws IOException {
+    broker.declareQueue("replies");
+
+    assertEquals(1, publish(EmbeddedBroker.DEFAULT_EXCHANGE, "replies"));
+    assertEquals(0, publish(EmbeddedBroker.DEFAULT_EXCHANGE, "unknown"));
+    assertEquals(1, broker.getMessageCount("replies"));
+  }
+
+  @Test
+  public void testUnknownExchange() {
+    assertThrows(IOException.class, () -> publish("unknown", "crawl"));
+  }
+
+  @Test
+  public void testDeleteQueue() throws IOException {
+    broker.declareQueue("queue");
+    broker.bind("queue", EXCHANGE, "#");
+    broker.deleteQueue("queue");
+
+    assertEquals(0, publish(EXCHANGE, "crawl"));
+    assertEquals(0, broker.getMessageCount("queue"));
+  }
+
+  @Test
+  public void testDeleteQueueCancelsConsumers() throws Exception {
+    broker.declareQueue("queue");
+    publish(EmbeddedBroker.DEFAULT_EXCHANGE, "queue");
+    BlockingQueue<EmbeddedBroker.Delivery> deliveries = new LinkedBlockingQueue<>();
+    EmbeddedBroker.Consumer consumer = broker.consume("queue", 1, deliveries::add);
+    EmbeddedBroker.Delivery delivery = deliveries.poll(1, TimeUnit.SECONDS);
+
+    broker.deleteQueue("queue");
+    broker.declareQueue("queue");
+    // requeued into the deleted queue, so dropped rather than delivered to the new one
+    delivery.reject(true);
+    consumer.whenStopped().get(1, TimeUnit.SECONDS);
+    assertEquals(0, broker.getMessageCount("queue"));
+    broker.close();
+  }
+
+  @Test
+  public void testPrefetchAndAcks() throws Exception {
+    broker.declareQueue("queue");
+    broker.bind("queue", EXCHANGE, "#");
+    for (int i = 0; i < 3; i++) {
+      publish(EXCHANGE, "crawl");
+    }
+
+    BlockingQueue<EmbeddedBroker.Delivery> deliveries = new LinkedBlockingQueue<>();
+    EmbeddedBroker.Consumer consumer = broker.consume("queue", 2, deliveries::add);
+    EmbeddedBroker.Delivery first = deliveries.poll(1, TimeUnit.SECONDS);
+    EmbeddedBroker.Delivery second = deliveries.poll(1, TimeUnit.SECONDS);
+    // no more than the prefetch count is outstanding
+    assertNull(deliveries.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, broker.getMessageCount("queue"));
+
+    first.ack();
+    EmbeddedBroker.Delivery third = deliveries.poll(1, TimeUnit.SECONDS);
+    assertEquals(3, third.getEnvelope().getDeliveryTag());
+
+    // a requeued message is delivered again, flagged as redelivered
+    second.reject(true);
+    EmbeddedBroker.Delivery redelivered = deliveries.poll(1, TimeUnit.SECONDS);
+    assertTrue(redelivered.getEnvelope().isRedeliver());
+    assertEquals("crawl", redelivered.getEnvelope().getRoutingKey());
+    assertEquals("body", new String(redelivered.getBody(), StandardCharsets.UTF_8));
+
+    // the consumer stops once its deliveries are settled
+    consumer.cancel();
+    third.reject(false);
+    assertFalse(consumer.whenStopped().isDone());
+    redelivered.ack();
+    consumer.whenStopped().get(1, TimeUnit.SECONDS);
+    assertEquals(0, broker.getMessageCount("queue"));
+    broker.close();
+  }
+
+  @Test
+  public void testRejectWhenHandlerFails() throws Exception {
+    broker.declareQueue("queue");
+    publish(EmbeddedBroker.DEFAULT_EXCHANGE, "queue");
+
+    CountDownLatch handled = new CountDownLatch(1);
+    EmbeddedBroker.Consumer consumer =
+        broker.consume(
+            "queue",
+            1,
+            delivery -> {
+              handled.countDown();
+              throw new IllegalStateException("handler fails");
+            });
+    assertTrue(handled.await(1, TimeUnit.SECONDS));
+
+    // the rejected delivery gave its credit back, so the consumer stops right away
+    consumer.cancel().get(1, TimeUnit.SECONDS);
+    assertEquals(0, broker.getMessageCount("queue"));
+    broker.close();
+  }
+
+  @Test
+  public void testCancelRequeuesUnsettled() throws Exception {
+    EmbeddedBroker settling = new EmbeddedBroker(100);
+    settling.declareQueue("queue");
+    settling.publish(
+        EmbeddedBroker.DEFAULT_EXCHANGE,
+        "queue",
+        MessageProperties.TEXT_PLAIN,
+        "body".getBytes(StandardCharsets.UTF_8));
+
+    BlockingQueue<EmbeddedBroker.Delivery> deliveries = new LinkedBlockingQueue<>();
+    EmbeddedBroker.Consumer consumer = settling.consume("queue", 1, deliveries::add);
+    EmbeddedBroker.Delivery delivery = deliveries.poll(1, TimeUnit.SECONDS);
+
+    consumer.cancel().get(1, TimeUnit.SECONDS);
+    assertEquals(1, settling.getMessageCount("queue"));
+    // settling it late has no effect
+    delivery.ack();
+    assertEquals(1, settling.getMessageCount("queue"));
+    settling.close();
+  }
+
+  private int publish(String exchange, String routingKey) throws IOException {
+    return broker.publish(
+        exchange,
+        routingKey,
+        MessageProperties.TEXT_PLAIN,
+        "body".getBytes(StandardCharsets.UTF_8));
+  }
+}
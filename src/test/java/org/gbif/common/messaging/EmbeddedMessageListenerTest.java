@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.MessageCallback;
+import org.gbif.common.messaging.api.MessageRegistry;
+
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.AMQP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class EmbeddedMessageListenerTest {
+
+  private static final String EXCHANGE = "foo";
+  private static final String QUEUE = "queue";
+
+  private EmbeddedBroker broker;
+  private EmbeddedMessagePublisher publisher;
+  private EmbeddedMessageListener listener;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    MessageRegistry registry = new DefaultMessageRegistry();
+    registry.register(TestMessage.class, EXCHANGE, "foobar");
+    broker = new EmbeddedBroker();
+    publisher = new EmbeddedMessagePublisher(broker, registry, new ObjectMapper());
+    listener = new EmbeddedMessageListener(broker, registry, new ObjectMapper());
+  }
+
+  @Test
+  public void testListen() throws Exception {
+    BlockingQueue<TestMessage> received = new LinkedBlockingQueue<>();
+    listener.listen(QUEUE, 2, new Callback(received));
+    assertEquals(2, listener.getConsumerCount(QUEUE));
+
+    TestMessage message = new TestMessage();
+    message.foo = "bar";
+    publisher.send(message);
+    assertEquals("bar", received.poll(1, TimeUnit.SECONDS).foo);
+
+    // messages published while paused wait in the queue
+    listener.pauseQueue(QUEUE);
+    assertEquals(0, listener.getConsumerCount(QUEUE));
+    publisher.send(message);
+    assertNull(received.poll(300, TimeUnit.MILLISECONDS));
+    assertEquals(1, broker.getMessageCount(QUEUE));
+
+    listener.resumeQueue(QUEUE);
+    assertEquals(2, listener.getConsumerCount(QUEUE));
+    assertEquals("bar", received.poll(1, TimeUnit.SECONDS).foo);
+
+    close();
+  }
+
+  @Test
+  public void testListenConcurrently() throws Exception {
+    BlockingQueue<TestMessage> received = new LinkedBlockingQueue<>();
+    listener.listenConcurrently(QUEUE, 10, new Callback(received));
+
+    for (int i = 0; i < 100; i++) {
+      publisher.send(new TestMessage());
+    }
+    for (int i = 0; i < 100; i++) {
+      assertEquals("foo", received.poll(1, TimeUnit.SECONDS).foo);
+    }
+
+    close();
+  }
+
+  @Test
+  public void testSendAndReceive() throws Exception {
+    broker.declareQueue("requests");
+    broker.bind("requests", EXCHANGE, "request");
+    broker.consume(
+        "requests",
+        1,
+        delivery -> {
+          AMQP.BasicProperties properties = delivery.getProperties();
+          try {
+            publisher.replyToQueue(
+                "pong", false, properties.getCorrelationId(), properties.getReplyTo());
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+          delivery.ack();
+        });
+
+    assertEquals(
+        "pong",
+        publisher.sendAndReceive(
+            "ping", EXCHANGE, "request", false, String.class, Duration.ofSeconds(1)));
+
+    close();
+  }
+
+  private void close() {
+    listener.close();
+    publisher.close();
+    broker.close();
+  }
+
+  private static class Callback implements MessageCallback<TestMessage> {
+
+    private final BlockingQueue<TestMessage> received;
+
+    private Callback(BlockingQueue<TestMessage> received) {
+      this.received = received;
+    }
+
+    @Override
+    public void handleMessage(TestMessage message) {
+      received.add(message);
+    }
+
+    @Override
+    public Class<TestMessage> getMessageClass() {
+      return TestMessage.class;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class ListenerConnectionsTest {
+
+  @Mock ConnectionFactory connectionFactory;
+  @Mock Connection first;
+  @Mock Connection second;
+  @Mock Channel firstChannel;
+  @Mock Channel secondChannel;
+
+  @Test
+  public void testChannelsSpreadOverConnections() throws IOException, TimeoutException {
+    when(connectionFactory.newConnection(any(ExecutorService.class)))
+        .thenReturn(first, second);
+    when(first.createChannel()).thenReturn(firstChannel);
+    when(second.createChannel()).thenReturn(secondChannel);
+    when(first.isOpen()).thenReturn(true);
+
+    try (ListenerConnections connections = new ListenerConnections(connectionFactory, 2)) {
+      assertSame(firstChannel, connections.createChannel());
+      assertSame(secondChannel, connections.createChannel());
+      assertSame(firstChannel, connections.createChannel());
+    }
+
+    // the second connection is only opened for its first channel
+    verify(connectionFactory, times(2)).newConnection(any(ExecutorService.class));
+    verify(first).close();
+  }
+
+  @Test
+  public void testClosedConnectionIsReplaced() throws IOException, TimeoutException {
+    when(connectionFactory.newConnection(any(ExecutorService.class)))
+        .thenReturn(first, second);
+    when(second.createChannel()).thenReturn(secondChannel);
+    when(first.isOpen()).thenReturn(false);
+    when(second.isOpen()).thenReturn(true);
+
+    ListenerConnections connections = new ListenerConnections(connectionFactory, 1);
+    assertSame(secondChannel, connections.createChannel());
+    assertEquals(1, connections.getOpenConnections());
+
+    connections.close();
+    assertThrows(IOException.class, connections::createChannel);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.messages.PipelineBasedMessage;
+import org.gbif.common.messaging.api.messages.PipelinesRunnerMessage;
+import org.gbif.common.messaging.api.messages.Platform;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.MessageProperties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MessageHeadersTest {
+
+  private static final UUID DATASET = UUID.randomUUID();
+
+  @Test
+  public void testStamp() {
+    Map<String, Object> headers = MessageHeaders.of(new RunnerMessage());
+
+    Map<String, Object> expected = new HashMap<>();
+    expected.put(MessageHeaders.DATASET_UUID, DATASET.toString());
+    expected.put(MessageHeaders.ATTEMPT, 3);
+    expected.put(MessageHeaders.EXECUTION_ID, 42L);
+    expected.put(MessageHeaders.RUNNER, "standalone");
+    expected.put(MessageHeaders.PLATFORM, "PIPELINES");
+    assertEquals(expected, headers);
+
+    assertTrue(MessageHeaders.of(new TestMessage()).isEmpty());
+  }
+
+  @Test
+  public void testRead() {
+    AMQP.BasicProperties properties =
+        MessageProperties.TEXT_PLAIN
+            .builder()
+            .type(RunnerMessage.class.getName())
+            .headers(MessageHeaders.of(new RunnerMessage()))
+            .build();
+    MessageHeaders headers = new MessageHeaders(properties);
+
+    assertEquals(Optional.of(RunnerMessage.class.getName()), headers.getType());
+    assertEquals(Optional.of(DATASET), headers.getDatasetUuid());
+    assertEquals(Optional.of(3), headers.getAttempt());
+    assertEquals(Optional.of(42L), headers.getExecutionId());
+    assertEquals(Optional.of("standalone"), headers.getRunner());
+    assertEquals(Optional.of(Platform.PIPELINES), headers.getPlatform());
+  }
+
+  @Test
+  public void testReadUnstamped() {
+    MessageHeaders headers = new MessageHeaders(MessageProperties.TEXT_PLAIN);
+
+    assertFalse(headers.getType().isPresent());
+    assertFalse(headers.getDatasetUuid().isPresent());
+    assertFalse(headers.getAttempt().isPresent());
+    assertFalse(headers.getPlatform().isPresent());
+  }
+
+  @Test
+  public void testAccept() {
+    AMQP.BasicProperties properties =
+        MessageProperties.TEXT_PLAIN
+            .builder()
+            .headers(Collections.singletonMap(MessageHeaders.RUNNER, "distributed"))
+            .build();
+
+    assertTrue(MessageHeaders.accept(null, properties));
+    assertTrue(MessageHeaders.accept(() -> null, properties));
+    assertFalse(
+        MessageHeaders.accept(
+            () -> headers -> headers.getRunner().equals(Optional.of("standalone")), properties));
+    // a failing filter lets the message through
+    assertTrue(
+        MessageHeaders.accept(
+            () ->
+                headers -> {
+                  throw new IllegalStateException();
+                },
+            properties));
+  }
+
+  /** A message with all the stamped metadata. */
+  public static class RunnerMessage implements PipelineBasedMessage, PipelinesRunnerMessage {
+
+    @Override
+    public UUID getDatasetUuid() {
+      return DATASET;
+    }
+
+    @Override
+    public Integer getAttempt() {
+      return 3;
+    }
+
+    @Override
+    public Set<String> getPipelineSteps() {
+      return Collections.emptySet();
+    }
+
+    @Override
+    public Long getExecutionId() {
+      return 42L;
+    }
+
+    @Override
+    public void setExecutionId(Long executionId) {}
+
+    @Override
+    public DatasetInfo getDatasetInfo() {
+      return null;
+    }
+
+    @Override
+    public String getRunner() {
+      return "standalone";
+    }
+
+    public Platform getPlatform() {
+      return Platform.PIPELINES;
+    }
+
+    @Override
+    public String getRoutingKey() {
+      return "runner";
+    }
+  }
+}
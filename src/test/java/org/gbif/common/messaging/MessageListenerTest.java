@@ -13,26 +13,48 @@
  */
 package org.gbif.common.messaging;
 
+import org.gbif.common.messaging.api.Message;
 import org.gbif.common.messaging.api.MessageRegistry;
+import org.gbif.common.messaging.config.ListenerConfiguration;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.MessageProperties;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -58,7 +80,6 @@ public class MessageListenerTest {
     ConnectionParameters params = new MockConnectionParameters();
     when(params.getConnectionFactory().newConnection(any(ExecutorService.class)))
         .thenReturn(connection);
-    when(params.getConnectionFactory().newConnection()).thenReturn(connection);
     listener = new MessageListener(params, registry, new ObjectMapper());
   }
 
@@ -99,9 +120,286 @@ public class MessageListenerTest {
     verify(channel).basicConsume(eq(queue), eq(false), isA(Consumer.class));
   }
 
+  @Test
+  public void testListenConcurrently() throws IOException {
+    CountDownLatch handled = new CountDownLatch(1);
+    listener.listenConcurrently(
+        QUEUE,
+        100,
+        new AbstractMessageCallback<TestMessage>() {
+          @Override
+          public void handleMessage(TestMessage message) {
+            handled.countDown();
+          }
+        });
+
+    verify(channel).queueBind(QUEUE, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY);
+    verify(channel).basicQos(100);
+    ArgumentCaptor<Consumer> consumer = ArgumentCaptor.forClass(Consumer.class);
+    verify(channel).basicConsume(eq(QUEUE), eq(false), consumer.capture());
+
+    consumer
+        .getValue()
+        .handleDelivery(
+            "tag",
+            new Envelope(1, false, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY),
+            MessageProperties.TEXT_PLAIN,
+            "{\"foo\":\"bar\"}".getBytes(StandardCharsets.UTF_8));
+    // the callback runs and acks on another thread
+    verify(channel, timeout(1000)).basicAck(1, false);
+    assertEquals(0, handled.getCount());
+  }
+
+  @Test
+  public void testScaleQueue() throws IOException, TimeoutException {
+    when(channel.basicConsume(eq(QUEUE), eq(false), any(Consumer.class)))
+        .thenReturn("tag1", "tag2", "tag3", "tag4");
+    when(channel.isOpen()).thenReturn(true);
+    listener.listen(QUEUE, 1, new TestMessageCallback());
+
+    listener.scaleQueue(QUEUE, 3);
+    assertEquals(3, listener.getConsumerCount(QUEUE));
+
+    listener.scaleQueue(QUEUE, 1);
+    assertEquals(1, listener.getConsumerCount(QUEUE));
+    verify(channel).basicCancel("tag2");
+    verify(channel).basicCancel("tag3");
+
+    // the channels of removed consumers are closed once they settled their messages
+    ArgumentCaptor<Consumer> consumers = ArgumentCaptor.forClass(Consumer.class);
+    verify(channel, times(3)).basicConsume(eq(QUEUE), eq(false), consumers.capture());
+    consumers.getAllValues().get(2).handleCancelOk("tag3");
+    verify(channel, timeout(1000)).close();
+
+    listener.pauseQueue(QUEUE);
+    assertEquals(0, listener.getConsumerCount(QUEUE));
+    verify(channel).basicCancel("tag1");
+
+    listener.resumeQueue(QUEUE);
+    assertEquals(1, listener.getConsumerCount(QUEUE));
+  }
+
+  @Test
+  public void testDrain() throws IOException, TimeoutException {
+    when(channel.basicConsume(eq(QUEUE), eq(false), any(Consumer.class))).thenReturn("tag1");
+    when(channel.isOpen()).thenReturn(true);
+    listener.listen(QUEUE, 1, new TestMessageCallback());
+    ArgumentCaptor<Consumer> consumer = ArgumentCaptor.forClass(Consumer.class);
+    verify(channel).basicConsume(eq(QUEUE), eq(false), consumer.capture());
+    doAnswer(
+        invocation -> {
+          // prefetched before the cancel, left to be requeued
+          consumer
+              .getValue()
+              .handleDelivery(
+                  "tag1",
+                  new Envelope(1, false, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY),
+                  MessageProperties.TEXT_PLAIN,
+                  "{\"foo\":\"bar\"}".getBytes(StandardCharsets.UTF_8));
+          consumer.getValue().handleCancelOk("tag1");
+          return null;
+        })
+        .when(channel)
+        .basicCancel("tag1");
+
+    assertTrue(listener.drain(Duration.ofSeconds(1)));
+
+    verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    InOrder inOrder = inOrder(channel);
+    inOrder.verify(channel).basicNack(0, true, true);
+    inOrder.verify(channel).close();
+    assertEquals(0, listener.getConsumerCount(QUEUE));
+  }
+
+  @Test
+  public void testFilterQueue() throws IOException {
+    CountDownLatch handled = new CountDownLatch(1);
+    listener.filterQueue(QUEUE, headers -> headers.getRunner().isPresent());
+    listener.listen(
+        QUEUE,
+        1,
+        new AbstractMessageCallback<TestMessage>() {
+          @Override
+          public void handleMessage(TestMessage message) {
+            handled.countDown();
+          }
+        });
+    ArgumentCaptor<Consumer> consumer = ArgumentCaptor.forClass(Consumer.class);
+    verify(channel).basicConsume(eq(QUEUE), eq(false), consumer.capture());
+
+    // skipped and acked without being deserialized
+    consumer
+        .getValue()
+        .handleDelivery(
+            "tag",
+            new Envelope(1, false, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY),
+            MessageProperties.TEXT_PLAIN,
+            "not json".getBytes(StandardCharsets.UTF_8));
+    verify(channel).basicAck(1, false);
+    assertEquals(1, handled.getCount());
+
+    // the filter can be lifted while listening
+    listener.filterQueue(QUEUE, null);
+    consumer
+        .getValue()
+        .handleDelivery(
+            "tag",
+            new Envelope(2, false, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY),
+            MessageProperties.TEXT_PLAIN,
+            "{\"foo\":\"bar\"}".getBytes(StandardCharsets.UTF_8));
+    verify(channel).basicAck(2, false);
+    assertEquals(0, handled.getCount());
+  }
+
+  @Test
+  public void testRetryOnSeveralTypes() throws Exception {
+    when(channel.getNextPublishSeqNo()).thenReturn(1L);
+    MessageRegistry registry = new DefaultMessageRegistry();
+    registry.register(TestMessage.class, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY);
+    registry.register(OtherMessage.class, DEFAULT_EXCHANGE, "other");
+    ListenerConfiguration configuration = new ListenerConfiguration();
+    configuration.retryAttempts = 1;
+    ConnectionParameters params = new MockConnectionParameters();
+    when(params.getConnectionFactory().newConnection(any(ExecutorService.class)))
+        .thenReturn(connection);
+    MessageListener retrying =
+        new MessageListener(params, registry, new ObjectMapper(), 1, configuration);
+
+    AtomicInteger attempts = new AtomicInteger();
+    CountDownLatch handled = new CountDownLatch(1);
+    retrying.listenConcurrently(
+        QUEUE,
+        10,
+        Arrays.asList(
+            new AbstractMessageCallback<TestMessage>() {
+              @Override
+              public void handleMessage(TestMessage message) {
+                if (attempts.incrementAndGet() == 1) {
+                  throw new IllegalStateException("first attempt fails");
+                }
+                handled.countDown();
+              }
+            },
+            new AbstractMessageCallback<OtherMessage>() {
+              @Override
+              public void handleMessage(OtherMessage message) {}
+            }));
+    ArgumentCaptor<Consumer> consumer = ArgumentCaptor.forClass(Consumer.class);
+    verify(channel).basicConsume(eq(QUEUE), eq(false), consumer.capture());
+
+    byte[] body = "{\"foo\":\"bar\"}".getBytes(StandardCharsets.UTF_8);
+    consumer
+        .getValue()
+        .handleDelivery(
+            "tag",
+            new Envelope(1, false, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY),
+            MessageProperties.TEXT_PLAIN,
+            body);
+    ArgumentCaptor<AMQP.BasicProperties> retried =
+        ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+    verify(channel, timeout(1000))
+        .basicPublish(eq(""), eq(QUEUE + ".retry.1"), retried.capture(), eq(body));
+    // acked once the retry channel confirmed the copy
+    verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    confirmListener().handleAck(1L, false);
+    verify(channel, timeout(1000)).basicAck(1, false);
+
+    // dead-lettered back to the queue with its name as routing key
+    consumer
+        .getValue()
+        .handleDelivery("tag", new Envelope(2, false, "", QUEUE), retried.getValue(), body);
+    verify(channel, timeout(1000)).basicAck(2, false);
+    assertEquals(0, handled.getCount());
+    retrying.close();
+  }
+
+  @Test
+  public void testRequeueWhenRetryNotConfirmed() throws Exception {
+    when(channel.getNextPublishSeqNo()).thenReturn(1L);
+    ListenerConfiguration configuration = new ListenerConfiguration();
+    configuration.retryAttempts = 1;
+    ConnectionParameters params = new MockConnectionParameters();
+    when(params.getConnectionFactory().newConnection(any(ExecutorService.class)))
+        .thenReturn(connection);
+    MessageRegistry registry = new DefaultMessageRegistry();
+    registry.register(TestMessage.class, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY);
+    MessageListener retrying =
+        new MessageListener(params, registry, new ObjectMapper(), 1, configuration);
+
+    // callbacks run off the delivery thread, which can then confirm the retry
+    retrying.listenConcurrently(
+        QUEUE,
+        DEFAULT_ROUTINGKEY,
+        DEFAULT_EXCHANGE,
+        10,
+        new AbstractMessageCallback<TestMessage>() {
+          @Override
+          public void handleMessage(TestMessage message) {
+            throw new IllegalStateException("fails");
+          }
+        });
+    ArgumentCaptor<Consumer> consumer = ArgumentCaptor.forClass(Consumer.class);
+    verify(channel).basicConsume(eq(QUEUE), eq(false), consumer.capture());
+
+    byte[] body = "{\"foo\":\"bar\"}".getBytes(StandardCharsets.UTF_8);
+    consumer
+        .getValue()
+        .handleDelivery(
+            "tag",
+            new Envelope(1, false, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY),
+            MessageProperties.TEXT_PLAIN,
+            body);
+    verify(channel, timeout(1000))
+        .basicPublish(eq(""), eq(QUEUE + ".retry.1"), any(AMQP.BasicProperties.class), eq(body));
+    confirmListener().handleNack(1L, false);
+    verify(channel, timeout(1000)).basicNack(1, false, true);
+    verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    retrying.close();
+  }
+
+  @Test
+  public void testRejectWhenOrderedKeyFails() throws IOException {
+    listener.listenOrdered(
+        QUEUE,
+        DEFAULT_ROUTINGKEY,
+        DEFAULT_EXCHANGE,
+        2,
+        message -> {
+          throw new IllegalStateException("no key");
+        },
+        new TestMessageCallback());
+    ArgumentCaptor<Consumer> consumer = ArgumentCaptor.forClass(Consumer.class);
+    verify(channel).basicConsume(eq(QUEUE), eq(false), consumer.capture());
+
+    byte[] body = "{\"foo\":\"bar\"}".getBytes(StandardCharsets.UTF_8);
+    consumer
+        .getValue()
+        .handleDelivery(
+            "tag",
+            new Envelope(1, false, DEFAULT_EXCHANGE, DEFAULT_ROUTINGKEY),
+            MessageProperties.TEXT_PLAIN,
+            body);
+    verify(channel).basicReject(1, false);
+    listener.close();
+  }
+
   private static class TestMessageCallback extends AbstractMessageCallback<TestMessage> {
 
     @Override
     public void handleMessage(TestMessage message) {}
   }
+
+  private static class OtherMessage implements Message {
+    @Override
+    public String getRoutingKey() {
+      return "other";
+    }
+  }
+
+  /** @return the confirm listener of the retry channel, once it was opened */
+  private ConfirmListener confirmListener() {
+    ArgumentCaptor<ConfirmListener> captor = ArgumentCaptor.forClass(ConfirmListener.class);
+    verify(channel, timeout(1000)).addConfirmListener(captor.capture());
+    return captor.getValue();
+  }
 }
@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.Message;
+import org.gbif.common.messaging.api.MessageCallback;
+import org.gbif.common.messaging.api.MessageRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.MessageProperties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MessageTypeDispatcherTest {
+
+  private final List<Object> handled = new ArrayList<>();
+  private MessageTypeDispatcher dispatcher;
+
+  @BeforeEach
+  public void setup() {
+    MessageRegistry registry = new DefaultMessageRegistry();
+    registry.register(StartedMessage.class, "crawler", "crawl.started");
+    registry.register(FinishedMessage.class, "crawler", "crawl.finished.#");
+    dispatcher =
+        new MessageTypeDispatcher(
+            Arrays.asList(
+                new Callback<>(StartedMessage.class), new Callback<>(FinishedMessage.class)),
+            registry);
+  }
+
+  @Test
+  public void testBindings() {
+    Map<String, Set<String>> expected = new HashMap<>();
+    expected.put("crawler", new HashSet<>(Arrays.asList("crawl.started", "crawl.finished.#")));
+    assertEquals(expected, dispatcher.getBindings());
+  }
+
+  @Test
+  public void testResolveByType() {
+    AMQP.BasicProperties properties =
+        MessageProperties.TEXT_PLAIN.builder().type(FinishedMessage.class.getName()).build();
+    // the type wins over the routing key
+    assertEquals(FinishedMessage.class, dispatcher.resolve(envelope("crawl.started"), properties));
+
+    AMQP.BasicProperties unknown =
+        MessageProperties.TEXT_PLAIN.builder().type(TestMessage.class.getName()).build();
+    assertNull(dispatcher.resolve(envelope("crawl.started"), unknown));
+  }
+
+  @Test
+  public void testResolveByRoutingKey() {
+    assertEquals(
+        StartedMessage.class,
+        dispatcher.resolve(envelope("crawl.started"), MessageProperties.TEXT_PLAIN));
+    assertEquals(
+        FinishedMessage.class,
+        dispatcher.resolve(envelope("crawl.finished.dataset"), MessageProperties.TEXT_PLAIN));
+    assertNull(dispatcher.resolve(envelope("crawl.aborted"), MessageProperties.TEXT_PLAIN));
+  }
+
+  @Test
+  public void testDispatch() {
+    StartedMessage started = new StartedMessage();
+    FinishedMessage finished = new FinishedMessage();
+    dispatcher.handleMessage(finished);
+    dispatcher.handleMessage(started);
+
+    assertEquals(Arrays.asList(finished, started), handled);
+  }
+
+  @Test
+  public void testUnregisteredType() {
+    MessageRegistry registry = new DefaultMessageRegistry();
+    registry.clear();
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new MessageTypeDispatcher(
+                Collections.singletonList(new Callback<>(StartedMessage.class)), registry));
+  }
+
+  private static Envelope envelope(String routingKey) {
+    return new Envelope(1, false, "crawler", routingKey);
+  }
+
+  private class Callback<T extends Message> implements MessageCallback<T> {
+
+    private final Class<T> type;
+
+    private Callback(Class<T> type) {
+      this.type = type;
+    }
+
+    @Override
+    public Class<T> getMessageClass() {
+      return type;
+    }
+
+    @Override
+    public void handleMessage(T message) {
+      handled.add(message);
+    }
+  }
+
+  private static class StartedMessage implements Message {
+    @Override
+    public String getRoutingKey() {
+      return "crawl.started";
+    }
+  }
+
+  private static class FinishedMessage implements Message {
+    @Override
+    public String getRoutingKey() {
+      return "crawl.finished";
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OrderedLanesTest {
+
+  private OrderedLanes lanes;
+
+  @BeforeEach
+  public void setup() {
+    lanes = new OrderedLanes("lane-", 4);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    lanes.getExecutors().forEach(ExecutorService::shutdownNow);
+  }
+
+  @Test
+  public void testSameKeySameLane() {
+    UUID key = UUID.randomUUID();
+    assertSame(lanes.laneFor(key), lanes.laneFor(UUID.fromString(key.toString())));
+    assertSame(lanes.laneFor(null), lanes.laneFor(null));
+  }
+
+  @Test
+  public void testKeysSpreadOverLanes() {
+    Set<Executor> used = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      used.add(lanes.laneFor(UUID.randomUUID()));
+    }
+    assertEquals(4, used.size());
+  }
+
+  @Test
+  public void testLaneKeepsOrder() throws InterruptedException {
+    UUID key = UUID.randomUUID();
+    List<Integer> sent = new ArrayList<>();
+    List<Integer> handled = new ArrayList<>();
+    CountDownLatch done = new CountDownLatch(100);
+    for (int i = 0; i < 100; i++) {
+      int message = i;
+      sent.add(message);
+      lanes
+          .laneFor(key)
+          .execute(
+              () -> {
+                handled.add(message);
+                done.countDown();
+              });
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(sent, handled);
+  }
+}
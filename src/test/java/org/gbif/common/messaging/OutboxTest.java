@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.PublisherConfiguration;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.rabbitmq.client.MessageProperties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboxTest {
+
+  private PublisherConfiguration config;
+
+  @BeforeEach
+  public void setup() {
+    config = new PublisherConfiguration();
+    config.outboxCapacity = 2;
+  }
+
+  @Test
+  public void testKeepsOrder() throws IOException {
+    config.outboxCapacity = 3;
+    Outbox outbox = new Outbox(config);
+    OutgoingMessage first = message("first");
+    OutgoingMessage second = message("second");
+    OutgoingMessage third = message("third");
+    outbox.add(first);
+    outbox.add(second);
+    outbox.add(third);
+
+    List<Outbox.Entry> taken = outbox.take(2);
+    assertEquals(1, outbox.getStats().getBufferedMessages());
+    outbox.putBack(taken);
+
+    taken = outbox.take(10);
+    assertEquals(3, taken.size());
+    assertSame(first, taken.get(0).getMessage());
+    assertSame(second, taken.get(1).getMessage());
+    assertSame(third, taken.get(2).getMessage());
+    outbox.replayed(3, 0);
+    assertTrue(outbox.isEmpty());
+  }
+
+  @Test
+  public void testNotEmptyWhileReplaying() throws IOException {
+    Outbox outbox = new Outbox(config);
+    outbox.add(message("first"));
+    outbox.add(message("second"));
+
+    List<Outbox.Entry> taken = outbox.take(2);
+    assertEquals(0, outbox.getStats().getBufferedMessages());
+    assertFalse(outbox.isEmpty());
+
+    OutgoingMessage newer = message("newer");
+    outbox.add(newer);
+    outbox.replayed(1, 0);
+    outbox.putBack(taken.subList(1, 2));
+    assertFalse(outbox.isEmpty());
+
+    taken = outbox.take(10);
+    assertSame(newer, taken.get(1).getMessage());
+    outbox.replayed(1, 1);
+    assertTrue(outbox.isEmpty());
+  }
+
+  @Test
+  public void testStats() throws IOException {
+    Outbox outbox = new Outbox(config);
+    outbox.add(message("12345"));
+    outbox.add(message("123"));
+
+    assertEquals(2, outbox.getStats().getBufferedMessages());
+    assertEquals(8, outbox.getStats().getBufferedBytes());
+
+    outbox.take(1);
+    outbox.replayed(1, 0);
+    assertEquals(1, outbox.getStats().getBufferedMessages());
+    assertEquals(3, outbox.getStats().getBufferedBytes());
+    assertEquals(2, outbox.getStats().getBuffered());
+    assertEquals(1, outbox.getStats().getReplayed());
+  }
+
+  @Test
+  public void testFailWhenFull() throws IOException {
+    config.outboxOverflow = PublisherConfiguration.OutboxOverflow.FAIL;
+    Outbox outbox = new Outbox(config);
+    outbox.add(message("a"));
+    outbox.add(message("b"));
+
+    assertThrows(IOException.class, () -> outbox.add(message("c")));
+    assertEquals(1, outbox.getStats().getRejected());
+    assertEquals(2, outbox.getStats().getBufferedMessages());
+  }
+
+  @Test
+  public void testDropOldestWhenFull() throws IOException {
+    config.outboxOverflow = PublisherConfiguration.OutboxOverflow.DROP_OLDEST;
+    Outbox outbox = new Outbox(config);
+    CompletableFuture<Void> oldest = outbox.add(message("a"));
+    OutgoingMessage second = message("b");
+    OutgoingMessage third = message("c");
+    outbox.add(second);
+    outbox.add(third);
+
+    assertTrue(oldest.isCompletedExceptionally());
+    assertEquals(1, outbox.getStats().getDropped());
+    List<Outbox.Entry> taken = outbox.take(10);
+    assertEquals(2, taken.size());
+    assertSame(second, taken.get(0).getMessage());
+    assertSame(third, taken.get(1).getMessage());
+  }
+
+  @Test
+  public void testBlockWhenFull() throws Exception {
+    config.outboxCapacity = 1;
+    Outbox outbox = new Outbox(config);
+    outbox.add(message("a"));
+
+    CompletableFuture<Void> waiting =
+        CompletableFuture.runAsync(
+            () -> {
+              try {
+                outbox.add(message("b"));
+              } catch (IOException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    Thread.sleep(50);
+    assertEquals(1, outbox.take(1).size());
+
+    waiting.get();
+    assertEquals(1, outbox.getStats().getBufferedMessages());
+  }
+
+  @Test
+  public void testBlockTimesOut() throws IOException {
+    config.outboxCapacity = 1;
+    config.outboxMaxBlockMs = 10;
+    Outbox outbox = new Outbox(config);
+    outbox.add(message("a"));
+
+    assertThrows(IOException.class, () -> outbox.add(message("b")));
+    assertEquals(1, outbox.getStats().getRejected());
+  }
+
+  @Test
+  public void testFailAll() throws IOException {
+    Outbox outbox = new Outbox(config);
+    CompletableFuture<Void> first = outbox.add(message("a"));
+    CompletableFuture<Void> second = outbox.add(message("b"));
+
+    assertEquals(2, outbox.failAll(new IOException("closed")));
+    assertTrue(first.isCompletedExceptionally());
+    assertTrue(second.isCompletedExceptionally());
+    assertTrue(outbox.isEmpty());
+  }
+
+  private static OutgoingMessage message(String body) {
+    return new OutgoingMessage("exchange", "key", MessageProperties.TEXT_PLAIN, body.getBytes());
+  }
+}
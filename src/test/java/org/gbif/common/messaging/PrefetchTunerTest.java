@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.rabbitmq.client.Channel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class PrefetchTunerTest {
+
+  @Mock Channel channel;
+
+  @Test
+  public void testInitialPrefetchWithinBounds() throws IOException {
+    PrefetchTuner prefetch = new PrefetchTuner(channel, 5_000, 1, 100, 1, 0);
+    prefetch.start();
+
+    assertEquals(100, prefetch.getPrefetchCount());
+    verify(channel).basicQos(100, true);
+  }
+
+  @Test
+  public void testFastCallbacksRaisePrefetch() throws IOException {
+    when(channel.isOpen()).thenReturn(true);
+    PrefetchTuner prefetch = new PrefetchTuner(channel, 10, 1, 100, 1, 0);
+    prefetch.start();
+
+    // callbacks much faster than the round trip need many messages in flight
+    prefetch.record(1);
+    prefetch.adjust();
+
+    assertEquals(100, prefetch.getPrefetchCount());
+    verify(channel).basicQos(100, true);
+  }
+
+  @Test
+  public void testSlowCallbacksLowerPrefetch() throws IOException {
+    when(channel.isOpen()).thenReturn(true);
+    PrefetchTuner prefetch = new PrefetchTuner(channel, 10, 1, 100, 4, 0);
+    prefetch.start();
+
+    // callbacks much slower than the round trip only need one more message each
+    prefetch.record(TimeUnit.MINUTES.toNanos(1));
+    prefetch.adjust();
+
+    assertEquals(5, prefetch.getPrefetchCount());
+    verify(channel).basicQos(5, true);
+  }
+}
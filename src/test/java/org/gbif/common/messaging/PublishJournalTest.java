@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.PublisherConfiguration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.MessageProperties;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PublishJournalTest {
+
+  @TempDir Path directory;
+
+  private PublisherConfiguration config;
+
+  @BeforeEach
+  public void setup() {
+    config = new PublisherConfiguration();
+    config.journalDirectory = directory.toString();
+    config.journalSegmentBytes = 1024;
+  }
+
+  @Test
+  public void testReplaysUnconfirmed() throws IOException {
+    try (PublishJournal journal = new PublishJournal(config)) {
+      PublishJournal.Entry first = journal.append(message("first"));
+      journal.append(message("second"));
+      journal.confirm(first);
+    }
+
+    try (PublishJournal journal = new PublishJournal(config)) {
+      List<PublishJournal.Entry> unconfirmed = journal.getUnconfirmed();
+      assertEquals(1, unconfirmed.size());
+      OutgoingMessage message = unconfirmed.get(0).getMessage();
+      assertEquals("exchange", message.getExchange());
+      assertEquals("key", message.getRoutingKey());
+      assertArrayEquals("second".getBytes(), message.getBody());
+      assertEquals("text/plain", message.getProperties().getContentType());
+      assertEquals(2, (int) message.getProperties().getDeliveryMode());
+      assertEquals("value", message.getProperties().getHeaders().get("header"));
+
+      // confirming the replayed message empties the journal
+      journal.confirm(unconfirmed.get(0));
+    }
+    assertTrue(segments().isEmpty());
+  }
+
+  @Test
+  public void testKeepsStampedProperties() throws IOException {
+    Map<String, Object> headers = new HashMap<>();
+    headers.put(MessageHeaders.DATASET_UUID, "b7a5a0a8-0c4d-4a4c-9e5e-7f3b0a2d1c6e");
+    headers.put(MessageHeaders.ATTEMPT, 3);
+    headers.put(MessageHeaders.EXECUTION_ID, 42L);
+    headers.put("flag", true);
+    AMQP.BasicProperties properties =
+        MessageProperties.PERSISTENT_TEXT_PLAIN
+            .builder()
+            .type(TestMessage.class.getName())
+            .headers(headers)
+            .build();
+    try (PublishJournal journal = new PublishJournal(config)) {
+      journal.append(new OutgoingMessage("exchange", "key", properties, new byte[1]));
+    }
+
+    try (PublishJournal journal = new PublishJournal(config)) {
+      AMQP.BasicProperties replayed = journal.getUnconfirmed().get(0).getMessage().getProperties();
+      assertEquals(TestMessage.class.getName(), replayed.getType());
+      assertEquals(headers, replayed.getHeaders());
+
+      MessageHeaders stamped = new MessageHeaders(replayed);
+      assertEquals(Optional.of(3), stamped.getAttempt());
+      assertEquals(Optional.of(42L), stamped.getExecutionId());
+    }
+  }
+
+  @Test
+  public void testDeletesConfirmedSegments() throws IOException {
+    try (PublishJournal journal = new PublishJournal(config)) {
+      // each entry takes a bit more than 300 bytes, so a segment holds two of them
+      PublishJournal.Entry first = journal.append(message(300));
+      journal.append(message(300));
+      journal.append(message(300));
+      journal.append(message(300));
+      assertEquals(2, segments().size());
+
+      journal.confirm(first);
+      assertEquals(2, segments().size());
+    }
+
+    try (PublishJournal journal = new PublishJournal(config)) {
+      assertEquals(3, journal.getUnconfirmed().size());
+      for (PublishJournal.Entry entry : journal.getUnconfirmed()) {
+        journal.confirm(entry);
+      }
+    }
+    assertTrue(segments().isEmpty());
+  }
+
+  @Test
+  public void testIgnoresCorruptEntries() throws IOException {
+    try (PublishJournal journal = new PublishJournal(config)) {
+      journal.append(message("first"));
+      journal.append(message("second"));
+    }
+    // corrupt the payload of the second entry, which follows the 9 byte header and the payload of
+    // the first one
+    try (FileChannel channel =
+        FileChannel.open(segments().get(0), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer length = ByteBuffer.allocate(4);
+      channel.read(length, 0);
+      int secondEntry = 9 + length.getInt(0);
+      channel.write(ByteBuffer.wrap(new byte[] {42}), secondEntry + 9 + 2);
+    }
+
+    try (PublishJournal journal = new PublishJournal(config)) {
+      List<PublishJournal.Entry> unconfirmed = journal.getUnconfirmed();
+      assertEquals(1, unconfirmed.size());
+      assertArrayEquals("first".getBytes(), unconfirmed.get(0).getMessage().getBody());
+    }
+  }
+
+  @Test
+  public void testLocked() throws IOException {
+    try (PublishJournal journal = new PublishJournal(config)) {
+      assertThrows(IOException.class, () -> new PublishJournal(config));
+    }
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(p -> p.getFileName().toString().endsWith(".journal"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static OutgoingMessage message(String body) {
+    AMQP.BasicProperties properties =
+        MessageProperties.PERSISTENT_TEXT_PLAIN
+            .builder()
+            .headers(Collections.singletonMap("header", "value"))
+            .build();
+    return new OutgoingMessage("exchange", "key", properties, body.getBytes());
+  }
+
+  private static OutgoingMessage message(int size) {
+    return new OutgoingMessage(
+        "exchange", "key", MessageProperties.PERSISTENT_TEXT_PLAIN, new byte[size]);
+  }
+}
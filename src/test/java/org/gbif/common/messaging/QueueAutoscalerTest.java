@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.ListenerConfiguration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(MockitoExtension.class)
+public class QueueAutoscalerTest {
+
+  @Mock MessageListener listener;
+
+  private final AtomicLong clock = new AtomicLong();
+  private QueueAutoscaler autoscaler;
+
+  @BeforeEach
+  public void setup() {
+    ListenerConfiguration config = new ListenerConfiguration();
+    config.autoscaleCooldownMs = 60_000;
+    config.autoscaleTargetDrainMs = 100_000;
+    config.autoscaleHysteresis = 0.25;
+    autoscaler = new QueueAutoscaler(listener, "queue", 1, 10, config, clock::get);
+  }
+
+  @Test
+  public void testScaleToBacklog() {
+    // 10 messages/s per consumer work off 1000 messages in 100 s each
+    assertEquals(5, autoscaler.desiredConsumers(4_500, 10, 1, clock.get()));
+  }
+
+  @Test
+  public void testBounds() {
+    assertEquals(10, autoscaler.desiredConsumers(1_000_000, 10, 1, clock.get()));
+    advance(60);
+    assertEquals(1, autoscaler.desiredConsumers(0, 10, 10, clock.get()));
+  }
+
+  @Test
+  public void testStalledConsumers() {
+    assertEquals(3, autoscaler.desiredConsumers(100, 0, 2, clock.get()));
+    // the rate of new consumers isn't known yet
+    advance(60);
+    assertEquals(3, autoscaler.desiredConsumers(100, Double.NaN, 3, clock.get()));
+  }
+
+  @Test
+  public void testHysteresis() {
+    // 8 needed of 10 isn't enough to remove any
+    assertEquals(10, autoscaler.desiredConsumers(8_000, 10, 10, clock.get()));
+    assertEquals(7, autoscaler.desiredConsumers(7_000, 10, 10, clock.get()));
+  }
+
+  @Test
+  public void testCooldown() {
+    assertEquals(5, autoscaler.desiredConsumers(5_000, 10, 1, clock.get()));
+    advance(30);
+    assertEquals(5, autoscaler.desiredConsumers(10_000, 10, 5, clock.get()));
+    advance(30);
+    assertEquals(10, autoscaler.desiredConsumers(10_000, 10, 5, clock.get()));
+  }
+
+  private void advance(long seconds) {
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.api.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * A benchmark of the exchange lookups of {@link DefaultMessageRegistry}, which are done for every
+ * published message, as the number of threads looking up concurrently grows.
+ *
+ * <p>It compares the registry with a lookup like the one it had before, a {@link
+ * ConcurrentHashMap} wrapping every result in a new {@link Optional}. Not run as part of the
+ * build, start it with:
+ *
+ * <pre>
+ *   java -cp ... org.gbif.common.messaging.RegistryLookupBenchmark [maxThreads] [lookupsPerThread]
+ * </pre>
+ */
+public class RegistryLookupBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int lookupsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 50_000_000;
+
+    DefaultMessageRegistry registry = new DefaultMessageRegistry();
+    registry.register(TestMessage.class, "benchmark", "benchmark.key");
+    ConcurrentMap<Class<? extends Message>, String> exchanges = new ConcurrentHashMap<>();
+    exchanges.put(TestMessage.class, "benchmark");
+    Function<Class<? extends Message>, Optional<String>> mapLookup =
+        type -> Optional.ofNullable(exchanges.get(type));
+
+    System.out.printf("%d lookups per thread%n", lookupsPerThread);
+    System.out.printf("%8s %18s %18s%n", "threads", "map lookups/s", "registry lookups/s");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      run(mapLookup, threads, lookupsPerThread / 10); // warm up
+      run(registry::getExchange, threads, lookupsPerThread / 10);
+      double map = run(mapLookup, threads, lookupsPerThread);
+      double snapshot = run(registry::getExchange, threads, lookupsPerThread);
+      System.out.printf("%8d %18.0f %18.0f%n", threads, map, snapshot);
+    }
+  }
+
+  private static double run(
+      Function<Class<? extends Message>, Optional<String>> lookup,
+      int threads,
+      int lookupsPerThread)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Integer>> futures = new ArrayList<>();
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  // consumes the results, so the lookups can't be optimized away
+                  int found = 0;
+                  for (int i = 0; i < lookupsPerThread; i++) {
+                    if (lookup.apply(TestMessage.class).isPresent()) {
+                      found++;
+                    }
+                  }
+                  return found;
+                }));
+      }
+      int found = 0;
+      for (Future<Integer> future : futures) {
+        found += future.get();
+      }
+      long elapsed = System.nanoTime() - start;
+      if (found != threads * lookupsPerThread) {
+        throw new IllegalStateException("Lookups failed");
+      }
+      return (double) threads * lookupsPerThread / elapsed * 1_000_000_000L;
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.MessageProperties;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class RetryChannelTest {
+
+  private static final byte[] BODY = {1, 2, 3};
+
+  @Mock Channel channel;
+
+  @Test
+  public void testConfirmsEachMessage() throws IOException {
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+    RetryChannel retryChannel = new RetryChannel(() -> channel);
+
+    CompletableFuture<Void> first =
+        retryChannel.publish("queue.retry.1", MessageProperties.PERSISTENT_TEXT_PLAIN, BODY);
+    CompletableFuture<Void> second =
+        retryChannel.publish("queue.parking-lot", MessageProperties.PERSISTENT_TEXT_PLAIN, BODY);
+
+    verify(channel).confirmSelect();
+    verify(channel)
+        .basicPublish("", "queue.retry.1", MessageProperties.PERSISTENT_TEXT_PLAIN, BODY);
+    // a nack only fails the message it is for
+    confirmListener().handleNack(2L, false);
+    assertFalse(first.isDone());
+    assertTrue(second.isCompletedExceptionally());
+
+    confirmListener().handleAck(1L, false);
+    assertTrue(first.isDone());
+    assertFalse(first.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testReopensClosedChannel() throws IOException {
+    RetryChannel retryChannel = new RetryChannel(() -> channel);
+
+    retryChannel.publish("queue.retry.1", MessageProperties.PERSISTENT_TEXT_PLAIN, BODY);
+    retryChannel.publish("queue.retry.1", MessageProperties.PERSISTENT_TEXT_PLAIN, BODY);
+    verify(channel, times(2)).confirmSelect();
+
+    retryChannel.close();
+    assertThrows(
+        IOException.class,
+        () -> retryChannel.publish("queue.retry.1", MessageProperties.PERSISTENT_TEXT_PLAIN, BODY));
+  }
+
+  private ConfirmListener confirmListener() {
+    ArgumentCaptor<ConfirmListener> captor = ArgumentCaptor.forClass(ConfirmListener.class);
+    verify(channel).addConfirmListener(captor.capture());
+    return captor.getValue();
+  }
+}
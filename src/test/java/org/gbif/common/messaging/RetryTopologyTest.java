@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.ListenerConfiguration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.MessageProperties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class RetryTopologyTest {
+
+  private static final byte[] BODY = {1, 2, 3};
+  private static final Envelope ENVELOPE = new Envelope(1, false, "exchange", "crawl.finished");
+
+  @Mock Channel channel;
+
+  @Mock RetryChannel retryChannel;
+
+  private RetryTopology retries;
+
+  @BeforeEach
+  public void setup() {
+    ListenerConfiguration config = new ListenerConfiguration();
+    config.retryAttempts = 3;
+    config.retryInitialDelayMs = 1_000;
+    config.retryBackoffMultiplier = 5;
+    retries = new RetryTopology("queue", config, retryChannel);
+  }
+
+  @Test
+  public void testDeclare() throws IOException {
+    retries.declare(channel);
+
+    Map<String, Object> arguments = new HashMap<>();
+    arguments.put("x-dead-letter-exchange", "");
+    arguments.put("x-dead-letter-routing-key", "queue");
+    arguments.put("x-message-ttl", 1_000L);
+    verify(channel).queueDeclare("queue.retry.1", true, false, false, arguments);
+    arguments.put("x-message-ttl", 5_000L);
+    verify(channel).queueDeclare("queue.retry.2", true, false, false, arguments);
+    arguments.put("x-message-ttl", 25_000L);
+    verify(channel).queueDeclare("queue.retry.3", true, false, false, arguments);
+    verify(channel).queueDeclare("queue.parking-lot", true, false, false, null);
+  }
+
+  @Test
+  public void testRetryCountsAttempts() throws Exception {
+    confirmAll();
+    AMQP.BasicProperties properties = MessageProperties.PERSISTENT_TEXT_PLAIN;
+
+    assertTrue(retries.retry(ENVELOPE, properties, BODY));
+
+    ArgumentCaptor<AMQP.BasicProperties> retried =
+        ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+    verify(retryChannel).publish(eq("queue.retry.1"), retried.capture(), eq(BODY));
+    assertEquals(1, RetryTopology.getRetryCount(retried.getValue()));
+    assertEquals(properties.getContentType(), retried.getValue().getContentType());
+  }
+
+  @Test
+  public void testRetryKeepsRoutingKey() throws Exception {
+    confirmAll();
+    assertTrue(retries.retry(ENVELOPE, MessageProperties.PERSISTENT_TEXT_PLAIN, BODY));
+    ArgumentCaptor<AMQP.BasicProperties> retried =
+        ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+    verify(retryChannel).publish(eq("queue.retry.1"), retried.capture(), eq(BODY));
+
+    // dead-lettered back to the queue, by its name
+    Envelope returned = new Envelope(2, false, "", "queue");
+    assertEquals("crawl.finished", RetryTopology.getRoutingKey(returned, retried.getValue()));
+
+    // the second retry keeps the first routing key
+    assertTrue(retries.retry(returned, retried.getValue(), BODY));
+    verify(retryChannel).publish(eq("queue.retry.2"), retried.capture(), eq(BODY));
+    assertEquals("crawl.finished", RetryTopology.getRoutingKey(returned, retried.getValue()));
+
+    assertEquals(
+        "crawl.finished",
+        RetryTopology.getRoutingKey(ENVELOPE, MessageProperties.PERSISTENT_TEXT_PLAIN));
+  }
+
+  @Test
+  public void testParkAfterLastRetry() throws Exception {
+    confirmAll();
+    AMQP.BasicProperties properties =
+        new AMQP.BasicProperties.Builder()
+            .headers(Collections.singletonMap(RetryTopology.RETRY_COUNT_HEADER, 3))
+            .build();
+
+    assertFalse(retries.retry(ENVELOPE, properties, BODY));
+
+    verify(retryChannel).publish("queue.parking-lot", properties, BODY);
+  }
+
+  @Test
+  public void testRetryFailsUnlessConfirmed() throws Exception {
+    when(retryChannel.publish(anyString(), any(AMQP.BasicProperties.class), any(byte[].class)))
+        .thenReturn(CompletableFuture.failedFuture(new IOException("nacked")));
+
+    assertThrows(
+        IOException.class,
+        () -> retries.retry(ENVELOPE, MessageProperties.PERSISTENT_TEXT_PLAIN, BODY));
+  }
+
+  private void confirmAll() throws IOException {
+    when(retryChannel.publish(anyString(), any(AMQP.BasicProperties.class), any(byte[].class)))
+        .thenReturn(CompletableFuture.completedFuture(null));
+  }
+}
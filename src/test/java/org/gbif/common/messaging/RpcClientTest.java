@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.codec.MessageCodecs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.MessageProperties;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class RpcClientTest {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Mock Connection connection;
+
+  @Mock Channel channel;
+
+  private RpcClient client;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    when(connection.createChannel()).thenReturn(channel);
+    client = new RpcClient(connection, MessageCodecs.withDefaults(MAPPER));
+  }
+
+  @Test
+  public void testCallsShareTheReplyConsumer() throws Exception {
+    when(channel.isOpen()).thenReturn(true);
+    JavaType listType = MAPPER.getTypeFactory().constructCollectionType(List.class, String.class);
+    CompletableFuture<List<String>> first = call("1", listType, null);
+    CompletableFuture<List<String>> second = call("2", listType, null);
+
+    ArgumentCaptor<AMQP.BasicProperties> properties =
+        ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+    verify(channel, times(2))
+        .basicPublish(eq("exchange"), eq("key"), properties.capture(), any(byte[].class));
+    assertEquals(RpcClient.DIRECT_REPLY_TO, properties.getValue().getReplyTo());
+    assertEquals("2", properties.getValue().getCorrelationId());
+    verify(connection).createChannel();
+
+    Consumer replies = replyConsumer();
+    // replies arrive in any order
+    reply(replies, "2", "[\"b\"]");
+    reply(replies, "1", "[\"a\"]");
+    assertEquals(Arrays.asList("a"), first.get(1, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("b"), second.get(1, TimeUnit.SECONDS));
+    assertEquals(0, client.getPendingCalls());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    CompletableFuture<String> call =
+        call("1", MAPPER.constructType(String.class), Duration.ofMillis(10));
+
+    ExecutionException e = assertThrows(ExecutionException.class, call::get);
+    assertInstanceOf(TimeoutException.class, e.getCause());
+    assertEquals(0, client.getPendingCalls());
+    // a late reply is dropped
+    reply(replyConsumer(), "1", "\"late\"");
+  }
+
+  @Test
+  public void testDuplicateCorrelationId() throws Exception {
+    call("1", MAPPER.constructType(String.class), null);
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> call("1", MAPPER.constructType(String.class), null));
+  }
+
+  @Test
+  public void testChannelShutdownFailsWaitingCalls() throws Exception {
+    CompletableFuture<String> call = call("1", MAPPER.constructType(String.class), null);
+
+    replyConsumer().handleShutdownSignal("tag", mock(ShutdownSignalException.class));
+
+    ExecutionException e = assertThrows(ExecutionException.class, call::get);
+    assertInstanceOf(IOException.class, e.getCause());
+  }
+
+  private <T> CompletableFuture<T> call(String correlationId, JavaType type, Duration timeout)
+      throws IOException {
+    return client.call(
+        "exchange",
+        "key",
+        MessageProperties.TEXT_PLAIN,
+        new byte[0],
+        correlationId,
+        type,
+        timeout);
+  }
+
+  private Consumer replyConsumer() throws IOException {
+    ArgumentCaptor<Consumer> consumer = ArgumentCaptor.forClass(Consumer.class);
+    verify(channel).basicConsume(eq(RpcClient.DIRECT_REPLY_TO), anyBoolean(), consumer.capture());
+    return consumer.getValue();
+  }
+
+  private static void reply(Consumer consumer, String correlationId, String body)
+      throws IOException {
+    consumer.handleDelivery(
+        "tag",
+        null,
+        new AMQP.BasicProperties.Builder().correlationId(correlationId).build(),
+        body.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import org.gbif.common.messaging.config.PublisherConfiguration;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * A load benchmark showing how publishing throughput scales with the number of connections of a
+ * {@link DefaultMessagePublisher}.
+ *
+ * <p>Instead of a broker it uses an in-process stand-in where every connection writes its frames
+ * under a single lock, which takes a fixed amount of time per message. That is what limits a real
+ * AMQP connection, one socket written by one thread, so the numbers show the effect of striping
+ * independently of broker and network. Not run as part of the build, start it with:
+ *
+ * <pre>
+ *   java -cp ... org.gbif.common.messaging.StripedPublisherBenchmark [threads] [messagesPerThread]
+ * </pre>
+ */
+public class StripedPublisherBenchmark {
+
+  /** Simulated time the frame writer of a connection is busy per published message. */
+  private static final long FRAME_WRITE_NANOS = 5_000;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int messagesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+    System.out.printf("%d threads publishing %d messages each%n", threads, messagesPerThread);
+    System.out.printf("%12s %15s %10s%n", "connections", "messages/s", "speedup");
+    double baseline = 0;
+    for (int connections = 1; connections <= 8; connections *= 2) {
+      run(connections, threads, messagesPerThread / 10); // warm up
+      double throughput = run(connections, threads, messagesPerThread);
+      if (connections == 1) {
+        baseline = throughput;
+      }
+      System.out.printf("%12d %15.0f %9.2fx%n", connections, throughput, throughput / baseline);
+    }
+  }
+
+  private static double run(int connections, int threads, int messagesPerThread)
+      throws Exception {
+    PublisherConfiguration config = new PublisherConfiguration();
+    config.connections = connections;
+    config.maxChannels = threads;
+    DefaultMessagePublisher publisher =
+        new DefaultMessagePublisher(
+            new StandInConnectionParameters(),
+            new DefaultMessageRegistry(),
+            new ObjectMapper(),
+            config);
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  TestMessage message = new TestMessage();
+                  for (int i = 0; i < messagesPerThread; i++) {
+                    publisher.send(message, "benchmark", "benchmark.key");
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      long elapsed = System.nanoTime() - start;
+      return (double) threads * messagesPerThread / elapsed * 1_000_000_000L;
+    } finally {
+      executor.shutdown();
+      publisher.close();
+    }
+  }
+
+  /** Hands out stand-in connections instead of connecting to a broker. */
+  private static class StandInConnectionParameters extends ConnectionParameters {
+
+    StandInConnectionParameters() {
+      super("localhost", 5672, "benchmark", "benchmark", "/");
+    }
+
+    @Override
+    ConnectionFactory getConnectionFactory() {
+      return new ConnectionFactory() {
+        @Override
+        public Connection newConnection() {
+          return standInConnection();
+        }
+      };
+    }
+  }
+
+  private static Connection standInConnection() {
+    ReentrantLock frameWriter = new ReentrantLock();
+    return (Connection)
+        Proxy.newProxyInstance(
+            StripedPublisherBenchmark.class.getClassLoader(),
+            new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "createChannel":
+                  return standInChannel(frameWriter);
+                case "isOpen":
+                  return true;
+                case "toString":
+                  return "stand-in connection";
+                default:
+                  return defaultValue(method.getReturnType());
+              }
+            });
+  }
+
+  private static Channel standInChannel(ReentrantLock frameWriter) {
+    AtomicLong publishSeqNo = new AtomicLong(1);
+    return (Channel)
+        Proxy.newProxyInstance(
+            StripedPublisherBenchmark.class.getClassLoader(),
+            new Class<?>[] {Channel.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "basicPublish":
+                  frameWriter.lock();
+                  try {
+                    long until = System.nanoTime() + FRAME_WRITE_NANOS;
+                    while (System.nanoTime() < until) {
+                      Thread.onSpinWait();
+                    }
+                  } finally {
+                    frameWriter.unlock();
+                  }
+                  publishSeqNo.incrementAndGet();
+                  return null;
+                case "getNextPublishSeqNo":
+                  return publishSeqNo.get();
+                case "isOpen":
+                  return true;
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "equals":
+                  return proxy == args[0];
+                case "toString":
+                  return "stand-in channel";
+                default:
+                  return defaultValue(method.getReturnType());
+              }
+            });
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TopicTrieTest {
+
+  @Test
+  public void testExactAndOneWord() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("crawl.started", "started");
+    trie.add("crawl.*", "any crawl");
+
+    assertEquals(new HashSet<>(Arrays.asList("started", "any crawl")), trie.match("crawl.started"));
+    assertEquals(Collections.singleton("any crawl"), trie.match("crawl.finished"));
+    assertEquals(Collections.emptySet(), trie.match("crawl"));
+    assertEquals(Collections.emptySet(), trie.match("crawl.finished.now"));
+  }
+
+  @Test
+  public void testAnyWords() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("registry.change.#", "change");
+    trie.add("#.finished", "finished");
+    trie.add("#", "all");
+
+    assertEquals(new HashSet<>(Arrays.asList("change", "all")), trie.match("registry.change"));
+    assertEquals(
+        new HashSet<>(Arrays.asList("change", "all")), trie.match("registry.change.dataset.x"));
+    assertEquals(new HashSet<>(Arrays.asList("finished", "all")), trie.match("finished"));
+    assertEquals(
+        new HashSet<>(Arrays.asList("finished", "all")),
+        trie.match("occurrence.pipelines.finished"));
+    assertEquals(Collections.singleton("all"), trie.match("registry"));
+  }
+
+  @Test
+  public void testAnyWordsBetween() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("occurrence.#.finished", "finished");
+
+    assertEquals(Collections.singleton("finished"), trie.match("occurrence.finished"));
+    assertEquals(Collections.singleton("finished"), trie.match("occurrence.a.b.finished"));
+    assertEquals(Collections.emptySet(), trie.match("occurrence.a.b"));
+  }
+}
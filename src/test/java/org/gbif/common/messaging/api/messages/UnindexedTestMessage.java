@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.api.messages;
+
+import org.gbif.common.messaging.ExchangeType;
+import org.gbif.common.messaging.MessageBinding;
+import org.gbif.common.messaging.api.Message;
+
+/**
+ * A message of the messages package which is missing from the message index, as the test classes
+ * are compiled without the processor writing it.
+ */
+@MessageBinding(exchange = ExchangeType.CRAWLER, routingKey = UnindexedTestMessage.ROUTING_KEY)
+public class UnindexedTestMessage implements Message {
+
+  public static final String ROUTING_KEY = "test.unindexed";
+
+  @Override
+  public String getRoutingKey() {
+    return ROUTING_KEY;
+  }
+}
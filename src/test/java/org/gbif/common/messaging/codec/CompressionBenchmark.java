@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import org.gbif.api.vocabulary.DatasetType;
+import org.gbif.api.vocabulary.EndpointType;
+import org.gbif.common.messaging.api.messages.CrawlResponseMessage;
+import org.gbif.common.messaging.api.messages.PipelinesIndexedMessage;
+import org.gbif.common.messaging.api.messages.PipelinesInterpretedMessage;
+import org.gbif.common.messaging.api.messages.Platform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.IntFunction;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares the compression ratio and CPU cost per message of gzip, deflate and deflate with a
+ * trained dictionary, per message type.
+ *
+ * <p>Half of the messages of every type train the dictionary, the other half is measured. By
+ * default it generates typical pipelines and crawler messages, given a directory of captured
+ * traffic as read by {@link DictionaryTrainer} it uses those instead. Not run as part of the build,
+ * start it with:
+ *
+ * <pre>
+ *   java -cp ... org.gbif.common.messaging.codec.CompressionBenchmark [captureDir]
+ * </pre>
+ */
+public class CompressionBenchmark {
+
+  private static final int MESSAGES_PER_TYPE = 2_000;
+  private static final int ROUNDS = 20;
+
+  public static void main(String[] args) throws Exception {
+    Map<String, List<byte[]>> messages =
+        args.length > 0 ? readCaptures(Paths.get(args[0])) : generate();
+
+    System.out.printf(
+        "%-32s %-22s %10s %8s %14s %14s%n",
+        "type", "encoding", "bytes/msg", "ratio", "compress us", "decompress us");
+    for (Map.Entry<String, List<byte[]>> type : messages.entrySet()) {
+      List<byte[]> all = type.getValue();
+      List<byte[]> training = all.subList(0, all.size() / 2);
+      List<byte[]> measured = all.subList(all.size() / 2, all.size());
+      DictionaryCompressor dictionary =
+          new DictionaryCompressor(
+              List.of(
+                  DictionaryTrainer.train(
+                      type.getKey(), training, DictionaryTrainer.DEFAULT_DICTIONARY_BYTES)));
+      Class<?> messageClass = Class.forName(type.getKey());
+
+      String name = messageClass.getSimpleName();
+      for (PayloadCompressor compressor :
+          Arrays.asList(JdkCompressor.GZIP, JdkCompressor.DEFLATE, dictionary)) {
+        run(name, messageClass, compressor, measured);
+      }
+    }
+  }
+
+  private static void run(
+      String name, Class<?> type, PayloadCompressor compressor, List<byte[]> messages)
+      throws IOException {
+    long raw = 0;
+    long compressed = 0;
+    long compressNanos = 0;
+    long decompressNanos = 0;
+    for (int round = 0; round <= ROUNDS; round++) {
+      // the first round warms up
+      boolean measure = round > 0;
+      for (byte[] message : messages) {
+        long start = System.nanoTime();
+        byte[] body = compressor.compress(type, message);
+        long compressedAt = System.nanoTime();
+        try (InputStream in = compressor.decompress(new ByteArrayInputStream(body))) {
+          in.readAllBytes();
+        }
+        if (measure) {
+          compressNanos += compressedAt - start;
+          decompressNanos += System.nanoTime() - compressedAt;
+          raw += message.length;
+          compressed += body.length;
+        }
+      }
+    }
+    long count = (long) ROUNDS * messages.size();
+    System.out.printf(
+        "%-32s %-22s %10d %8.2f %14.2f %14.2f%n",
+        name,
+        compressor.getEncoding(),
+        compressed / count,
+        (double) raw / compressed,
+        compressNanos / 1000.0 / count,
+        decompressNanos / 1000.0 / count);
+  }
+
+  private static Map<String, List<byte[]>> readCaptures(Path directory) throws IOException {
+    Map<String, List<byte[]>> messages = new LinkedHashMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.jsonl")) {
+      for (Path file : files) {
+        String fileName = file.getFileName().toString();
+        messages.put(
+            fileName.substring(0, fileName.length() - ".jsonl".length()),
+            DictionaryTrainer.readSamples(file));
+      }
+    }
+    return messages;
+  }
+
+  private static Map<String, List<byte[]>> generate() throws IOException {
+    Random random = new Random(42);
+    Map<String, List<byte[]>> messages = new LinkedHashMap<>();
+    messages.put(
+        PipelinesInterpretedMessage.class.getName(),
+        encode(
+            i ->
+                new PipelinesInterpretedMessage(
+                    UUID.randomUUID(),
+                    random.nextInt(300) + 1,
+                    new HashSet<>(Arrays.asList("VERBATIM_TO_INTERPRETED", "INTERPRETED_TO_INDEX")),
+                    (long) random.nextInt(10_000_000),
+                    null,
+                    "DISTRIBUTED",
+                    false,
+                    null,
+                    random.nextLong() & Long.MAX_VALUE,
+                    EndpointType.DWC_ARCHIVE,
+                    null,
+                    Collections.singleton("ALL"),
+                    DatasetType.OCCURRENCE)));
+    messages.put(
+        PipelinesIndexedMessage.class.getName(),
+        encode(
+            i ->
+                new PipelinesIndexedMessage(
+                    UUID.randomUUID(),
+                    random.nextInt(300) + 1,
+                    new HashSet<>(Arrays.asList("INTERPRETED_TO_INDEX", "HDFS_VIEW")),
+                    "STANDALONE",
+                    random.nextLong() & Long.MAX_VALUE,
+                    EndpointType.BIOCASE)));
+    messages.put(
+        CrawlResponseMessage.class.getName(),
+        encode(
+            i ->
+                new CrawlResponseMessage(
+                    UUID.randomUUID(),
+                    random.nextInt(300) + 1,
+                    random.nextInt(3) + 1,
+                    ("<response><records>" + i + "</records></response>")
+                        .getBytes(StandardCharsets.UTF_8),
+                    random.nextInt(60_000),
+                    random.nextInt(1_000),
+                    "OK",
+                    Platform.ALL)));
+    return messages;
+  }
+
+  private static List<byte[]> encode(IntFunction<Object> message) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    List<byte[]> encoded = new ArrayList<>(MESSAGES_PER_TYPE);
+    for (int i = 0; i < MESSAGES_PER_TYPE; i++) {
+      encoded.add(mapper.writeValueAsBytes(message.apply(i)));
+    }
+    return encoded;
+  }
+}
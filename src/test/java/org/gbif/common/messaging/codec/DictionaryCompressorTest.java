@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.ZipException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DictionaryCompressorTest {
+
+  @Test
+  public void testTrain() {
+    CompressionDictionary dictionary =
+        DictionaryTrainer.train(Sample.class.getName(), samples(50), 256);
+
+    assertTrue(dictionary.size() <= 256);
+    String content = new String(dictionary.getBytes(), StandardCharsets.ISO_8859_1);
+    assertTrue(content.contains("\"pipelineSteps\""));
+    // the UUIDs are different in every message
+    assertFalse(content.contains("-4000-"));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    DictionaryCompressor compressor =
+        new DictionaryCompressor(
+            Collections.singletonList(
+                DictionaryTrainer.train(Sample.class.getName(), samples(50), 4096)));
+    byte[] body = samples(1).get(0);
+
+    byte[] withDictionary = compressor.compress(Sample.class, body);
+    byte[] withoutDictionary = compressor.compress(String.class, body);
+    assertTrue(withDictionary.length < withoutDictionary.length);
+    assertArrayEquals(body, decompress(compressor, withDictionary));
+    assertArrayEquals(body, decompress(compressor, withoutDictionary));
+    assertArrayEquals(body, decompress(compressor, compressor.compress(body)));
+  }
+
+  @Test
+  public void testUnknownDictionary() throws IOException {
+    DictionaryCompressor producer =
+        new DictionaryCompressor(
+            Collections.singletonList(
+                DictionaryTrainer.train(Sample.class.getName(), samples(50), 4096)));
+    DictionaryCompressor consumer = new DictionaryCompressor(Collections.emptyList());
+
+    byte[] compressed = producer.compress(Sample.class, samples(1).get(0));
+    assertThrows(ZipException.class, () -> decompress(consumer, compressed));
+  }
+
+  @Test
+  public void testLoad(@TempDir Path directory) throws IOException {
+    CompressionDictionary dictionary =
+        DictionaryTrainer.train(Sample.class.getName(), samples(10), 1024);
+    Files.write(
+        directory.resolve(Sample.class.getName() + DictionaryCompressor.FILE_EXTENSION),
+        dictionary.getBytes());
+
+    DictionaryCompressor compressor = DictionaryCompressor.load(directory);
+    assertEquals(dictionary.getId(), compressor.getDictionary(Sample.class).getId());
+    assertNull(compressor.getDictionary(String.class));
+  }
+
+  private static byte[] decompress(PayloadCompressor compressor, byte[] compressed)
+      throws IOException {
+    try (InputStream in = compressor.decompress(new ByteArrayInputStream(compressed))) {
+      return in.readAllBytes();
+    }
+  }
+
+  private static List<byte[]> samples(int count) {
+    List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String json =
+          String.format(
+              "{\"datasetUuid\":\"%s\",\"attempt\":%d,\"pipelineSteps\":["
+                  + "\"VERBATIM_TO_INTERPRETED\",\"INTERPRETED_TO_INDEX\",\"HDFS_VIEW\"],"
+                  + "\"runner\":\"DISTRIBUTED\","
+                  + "\"executionId\":%d,\"endpointType\":\"DWC_ARCHIVE\"}",
+              new UUID(i, 0x4000_0000_0000_0000L + i),
+              i % 7 + 1,
+              1000 + i);
+      samples.add(json.getBytes(StandardCharsets.UTF_8));
+    }
+    return samples;
+  }
+
+  /** Stands in for a message type. */
+  private static class Sample {}
+}
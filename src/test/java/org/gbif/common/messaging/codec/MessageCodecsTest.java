@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MessageCodecsTest {
+
+  private final MessageCodecs codecs = MessageCodecs.withDefaults(new ObjectMapper());
+
+  @Test
+  public void testForEncoding() {
+    assertEquals(JacksonMessageCodec.JSON, codecs.forEncoding(Plain.class, null).getContentType());
+    assertEquals(
+        JacksonMessageCodec.CBOR,
+        codecs.forEncoding(Plain.class, JacksonMessageCodec.CBOR).getContentType());
+    // the annotation wins over the default
+    assertEquals(
+        JacksonMessageCodec.SMILE,
+        codecs.forEncoding(Annotated.class, JacksonMessageCodec.CBOR).getContentType());
+
+    assertThrows(IllegalArgumentException.class, () -> codecs.forEncoding(Plain.class, "foo/bar"));
+  }
+
+  @Test
+  public void testForDecoding() {
+    assertSame(codecs.getJson(), codecs.forDecoding(null));
+    assertSame(codecs.getJson(), codecs.forDecoding("text/plain"));
+    assertEquals(
+        JacksonMessageCodec.SMILE,
+        codecs.forDecoding("Application/X-Jackson-Smile").getContentType());
+    assertEquals(
+        JacksonMessageCodec.JSON,
+        codecs.forDecoding("application/json; charset=UTF-8").getContentType());
+  }
+
+  @Test
+  public void testRegister() {
+    MessageCodec custom = new JacksonMessageCodec(new ObjectMapper(), "application/vnd.gbif+json");
+    codecs.register(custom);
+
+    assertSame(custom, codecs.forDecoding("application/vnd.gbif+json"));
+    assertSame(custom, codecs.forEncoding(Plain.class, "application/vnd.gbif+json"));
+  }
+
+  @Test
+  public void testRoundTrips() throws IOException {
+    Plain message = new Plain();
+    message.setNames(Arrays.asList("a", "b"));
+
+    for (String contentType :
+        Arrays.asList(
+            JacksonMessageCodec.JSON, JacksonMessageCodec.SMILE, JacksonMessageCodec.CBOR)) {
+      MessageCodec codec = codecs.forDecoding(contentType);
+      byte[] body = codec.encode(message);
+      assertEquals(message.getNames(), codec.decode(body, Plain.class).getNames());
+      assertEquals(
+          message.getNames(),
+          codec.decode(new ByteArrayInputStream(body), Plain.class).getNames());
+    }
+  }
+
+  @Test
+  public void testCompressorRoundTrips() throws IOException {
+    byte[] body = "compressible ".repeat(100).getBytes(StandardCharsets.UTF_8);
+
+    for (String encoding : Arrays.asList("gzip", "DEFLATE")) {
+      PayloadCompressor compressor = codecs.getCompressor(encoding).get();
+      byte[] compressed = compressor.compress(body);
+      assertTrue(compressed.length < body.length);
+      try (InputStream in = compressor.decompress(new ByteArrayInputStream(compressed))) {
+        assertArrayEquals(body, in.readAllBytes());
+      }
+    }
+    assertFalse(codecs.getCompressor("br").isPresent());
+    assertFalse(codecs.getCompressor(null).isPresent());
+  }
+
+  public static class Plain {
+    private List<String> names;
+
+    public List<String> getNames() {
+      return names;
+    }
+
+    public void setNames(List<String> names) {
+      this.names = names;
+    }
+  }
+
+  @Codec(JacksonMessageCodec.SMILE)
+  public static class Annotated {}
+}
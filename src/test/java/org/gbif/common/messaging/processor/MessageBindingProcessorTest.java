@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.messaging.processor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MessageBindingProcessorTest {
+
+  private static final String SOURCE =
+      "package foo;\n"
+          + "import org.gbif.common.messaging.ExchangeType;\n"
+          + "import org.gbif.common.messaging.MessageBinding;\n"
+          + "import org.gbif.common.messaging.api.Message;\n"
+          + "@MessageBinding(exchange = ExchangeType.CRAWLER, routingKey = \"foo.started\")\n"
+          + "public class FooMessage implements Message {\n"
+          + "  public String getRoutingKey() { return \"foo.started\"; }\n"
+          + "  @MessageBinding(exchange = ExchangeType.OCCURRENCE, routingKey = \"foo.#\")\n"
+          + "  public static class Nested extends FooMessage {}\n"
+          + "  @MessageBinding(exchange = ExchangeType.REGISTRY, routingKey = \"not.a.message\")\n"
+          + "  public static class NotAMessage {}\n"
+          + "}\n";
+
+  @Test
+  public void testIndex(@TempDir Path dir) throws IOException {
+    Path source = dir.resolve("FooMessage.java");
+    Files.write(source, SOURCE.getBytes(StandardCharsets.UTF_8));
+    Path out = Files.createDirectory(dir.resolve("out"));
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    int result =
+        compiler.run(
+            null,
+            null,
+            null,
+            "-proc:only",
+            "-processor",
+            MessageBindingProcessor.class.getName(),
+            "-classpath",
+            System.getProperty("java.class.path"),
+            "-d",
+            out.toString(),
+            source.toString());
+    assertEquals(0, result);
+
+    List<String> index =
+        Files.readAllLines(out.resolve(MessageBindingProcessor.INDEX), StandardCharsets.UTF_8);
+    assertEquals(
+        Arrays.asList(
+            "foo.FooMessage\tCRAWLER\tfoo.started", "foo.FooMessage$Nested\tOCCURRENCE\tfoo.#"),
+        index);
+  }
+}